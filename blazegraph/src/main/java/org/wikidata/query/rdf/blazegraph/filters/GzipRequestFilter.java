@@ -0,0 +1,275 @@
+package org.wikidata.query.rdf.blazegraph.filters;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Decode the body of POST requests sent with "Content-Encoding: gzip" so the
+ * updater can post compressed RDF to the REST API.
+ *
+ * Decoding is off unless the "enabled" parameter is set, and the decoded body
+ * is limited to "max-decoded-bytes" so a small request can't inflate into
+ * an unbounded one. Requests over the limit are answered with 413. Like the
+ * throttling filter, parameters can be overridden with the
+ * <code>wdqs.&lt;filter-name&gt;.&lt;name&gt;</code> system properties.
+ */
+public class GzipRequestFilter implements Filter {
+
+    /** Header name for Content-Encoding. */
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    /** Default limit of the decoded body. */
+    private static final long DEFAULT_MAX_DECODED_BYTES = 256L * 1024 * 1024;
+
+    /** Are gzipped requests decoded? */
+    private boolean enabled;
+    /** Largest decoded body accepted, in bytes. */
+    private long maxDecodedBytes = DEFAULT_MAX_DECODED_BYTES;
+
+    /** {@inheritDoc} */
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        String enabledParam = loadParam("enabled", filterConfig);
+        enabled = enabledParam != null && Boolean.parseBoolean(enabledParam);
+        String maxParam = loadParam("max-decoded-bytes", filterConfig);
+        if (maxParam != null) {
+            try {
+                maxDecodedBytes = Long.parseLong(maxParam);
+            } catch (NumberFormatException e) {
+                throw new ServletException("Invalid max-decoded-bytes: " + maxParam, e);
+            }
+        }
+    }
+
+    /**
+     * Load a parameter from the system properties or the filter config, the
+     * system property winning.
+     *
+     * @return the value or null if not set
+     */
+    private static String loadParam(String name, FilterConfig filterConfig) {
+        String value = System.getProperty("wdqs." + filterConfig.getFilterName() + "." + name);
+        return value != null ? value : filterConfig.getInitParameter(name);
+    }
+
+    /**
+     * Wrap gzipped {@link HttpServletRequest}s so that their body is read
+     * decoded, and answer 413 if the decoded body is too large.
+     *
+     * @param request {@inheritDoc}
+     * @param response {@inheritDoc}
+     * @param chain {@inheritDoc}
+     * @throws IOException {@inheritDoc}
+     * @throws ServletException {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("checkstyle:illegalcatch")
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        if (!enabled || !(request instanceof HttpServletRequest) || !(response instanceof HttpServletResponse)) {
+            chain.doFilter(request, response);
+            return;
+        }
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        if (!"POST".equalsIgnoreCase(httpRequest.getMethod())
+                || !"gzip".equalsIgnoreCase(httpRequest.getHeader(CONTENT_ENCODING))) {
+            chain.doFilter(request, response);
+            return;
+        }
+        GzipHttpRequestWrapper decoded = new GzipHttpRequestWrapper(httpRequest, maxDecodedBytes);
+        try {
+            chain.doFilter(decoded, response);
+        } catch (IOException | ServletException | RuntimeException e) {
+            // The servlet failed reading the body, answer 413 below instead
+            if (!decoded.tooLarge()) {
+                throw e;
+            }
+        }
+        if (decoded.tooLarge() && !response.isCommitted()) {
+            response.reset();
+            ((HttpServletResponse) response).sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                    "Decoded request body is larger than " + maxDecodedBytes + " bytes");
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void destroy() {
+        // Do nothing
+    }
+
+    /** Wrapping the request so its body is decoded and it looks like it never was encoded. */
+    private static final class GzipHttpRequestWrapper extends HttpServletRequestWrapper {
+
+        /** Largest decoded body accepted, in bytes. */
+        private final long maxDecodedBytes;
+        /** The decoded body, opened on first use. */
+        private GzipServletInputStream body;
+
+        /** Constructor. */
+        private GzipHttpRequestWrapper(HttpServletRequest request, long maxDecodedBytes) {
+            super(request);
+            this.maxDecodedBytes = maxDecodedBytes;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public synchronized ServletInputStream getInputStream() throws IOException {
+            if (body == null) {
+                body = new GzipServletInputStream(super.getInputStream(), maxDecodedBytes);
+            }
+            return body;
+        }
+
+        /** Did reading the body go over the limit? */
+        private synchronized boolean tooLarge() {
+            return body != null && body.tooLarge;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public BufferedReader getReader() throws IOException {
+            String encoding = getCharacterEncoding();
+            try {
+                return new BufferedReader(encoding == null
+                        ? new InputStreamReader(getInputStream(), StandardCharsets.ISO_8859_1)
+                        : new InputStreamReader(getInputStream(), encoding));
+            } catch (UnsupportedEncodingException e) {
+                throw new IOException("Unsupported request encoding " + encoding, e);
+            }
+        }
+
+        /** The decoded length is unknown. */
+        @Override
+        public int getContentLength() {
+            return -1;
+        }
+
+        /** The decoded length is unknown. */
+        @Override
+        public long getContentLengthLong() {
+            return -1;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public String getHeader(String name) {
+            if (isDecodedHeader(name)) {
+                return null;
+            }
+            return super.getHeader(name);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            if (isDecodedHeader(name)) {
+                return Collections.emptyEnumeration();
+            }
+            return super.getHeaders(name);
+        }
+
+        /** Is this a header that no longer applies to the decoded body? */
+        private static boolean isDecodedHeader(String name) {
+            return CONTENT_ENCODING.equalsIgnoreCase(name) || "Content-Length".equalsIgnoreCase(name);
+        }
+    }
+
+    /** Decodes a gzipped servlet input stream, up to a limit. */
+    private static final class GzipServletInputStream extends ServletInputStream {
+
+        /** The encoded body. */
+        private final ServletInputStream encoded;
+        /** The decoded body. */
+        private final GZIPInputStream decoded;
+        /** Largest decoded body accepted, in bytes. */
+        private final long maxDecodedBytes;
+        /** Number of bytes decoded so far. */
+        private long decodedBytes;
+        /** Was the end of the decoded body reached? */
+        private boolean finished;
+        /** Did the decoded body go over the limit? */
+        private volatile boolean tooLarge;
+
+        /** Constructor. */
+        private GzipServletInputStream(ServletInputStream encoded, long maxDecodedBytes) throws IOException {
+            this.encoded = encoded;
+            this.decoded = new GZIPInputStream(encoded);
+            this.maxDecodedBytes = maxDecodedBytes;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public int read() throws IOException {
+            int read = decoded.read();
+            finished = read < 0;
+            count(finished ? 0 : 1);
+            return read;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = decoded.read(b, off, len);
+            finished = read < 0;
+            count(read);
+            return read;
+        }
+
+        /**
+         * Count decoded bytes.
+         *
+         * @throws IOException if the decoded body went over the limit
+         */
+        private void count(int read) throws IOException {
+            if (read > 0) {
+                decodedBytes += read;
+            }
+            if (decodedBytes > maxDecodedBytes) {
+                tooLarge = true;
+                throw new IOException("Decoded request body is larger than " + maxDecodedBytes + " bytes");
+            }
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public void close() throws IOException {
+            decoded.close();
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public boolean isFinished() {
+            return finished;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public boolean isReady() {
+            return encoded.isReady();
+        }
+
+        /** Non-blocking reads aren't supported on decoded bodies. */
+        @Override
+        public void setReadListener(ReadListener readListener) {
+            throw new UnsupportedOperationException("Non-blocking reads of gzipped requests aren't supported");
+        }
+    }
+}
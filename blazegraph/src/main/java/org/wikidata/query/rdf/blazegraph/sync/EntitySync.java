@@ -0,0 +1,322 @@
+package org.wikidata.query.rdf.blazegraph.sync;
+
+import static org.wikidata.query.rdf.common.EntitySyncFormat.readString;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.wikidata.query.rdf.common.EntitySyncFormat;
+import org.wikidata.query.rdf.common.uri.SchemaDotOrg;
+
+import com.bigdata.rdf.internal.IV;
+import com.bigdata.rdf.internal.impl.TermId;
+import com.bigdata.rdf.lexicon.LexiconRelation;
+import com.bigdata.rdf.model.BigdataValue;
+import com.bigdata.rdf.model.BigdataValueFactory;
+import com.bigdata.rdf.model.StatementEnum;
+import com.bigdata.rdf.rio.StatementBuffer;
+import com.bigdata.rdf.spo.ISPO;
+import com.bigdata.rdf.spo.SPO;
+import com.bigdata.rdf.store.AbstractTripleStore;
+import com.bigdata.relation.accesspath.IAccessPath;
+import com.bigdata.striterator.IChunkedOrderedIterator;
+
+/**
+ * A batch of entities to replace, as sent by the updater in the
+ * {@link EntitySyncFormat}, and the code replacing them directly in the
+ * indexes of a triple store.
+ *
+ * Replacing an entity does what the updater's multiSync SPARQL update does:
+ * the triples of the entity, of its statements and of its site links that
+ * aren't among the new statements are deleted, the new statements are
+ * inserted and the cleanup candidates nothing uses any more are deleted. But
+ * it works on term ids straight from the access paths rather than having the
+ * query engine parse, optimize and evaluate MINUS and VALUES joins.
+ */
+@SuppressWarnings("rawtypes")
+public class EntitySync {
+    /**
+     * Number of statements buffered before they are written to the indexes.
+     */
+    private static final int INSERT_BUFFER_CAPACITY = 10000;
+
+    /**
+     * Prefix of statement uris.
+     */
+    private final String statementPrefix;
+    /**
+     * The entities to replace.
+     */
+    private final List<Entity> entities;
+
+    EntitySync(String statementPrefix, List<Entity> entities) {
+        this.statementPrefix = statementPrefix;
+        this.entities = entities;
+    }
+
+    /**
+     * Number of entities in the batch.
+     */
+    public int size() {
+        return entities.size();
+    }
+
+    /**
+     * Read a batch.
+     *
+     * @param valueFactory builds the terms of the batch
+     * @throws IOException if the batch can't be read or is malformed
+     */
+    public static EntitySync read(InputStream stream, ValueFactory valueFactory) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        int version = in.readInt();
+        if (version != EntitySyncFormat.VERSION) {
+            throw new IOException("Unsupported entity sync batch version " + version);
+        }
+        String statementPrefix = readString(in);
+        int entityCount = readCount(in);
+        List<Entity> entities = new ArrayList<>();
+        for (int e = 0; e < entityCount; e++) {
+            Entity entity = new Entity(valueFactory.createURI(readString(in)));
+            int statementCount = readCount(in);
+            for (int s = 0; s < statementCount; s++) {
+                Value subject = readTerm(in, valueFactory);
+                Value predicate = readTerm(in, valueFactory);
+                Value object = readTerm(in, valueFactory);
+                if (!(subject instanceof Resource) || !(predicate instanceof URI)) {
+                    throw new IOException("Malformed statement " + subject + " " + predicate + " " + object);
+                }
+                entity.statements.add(valueFactory.createStatement((Resource) subject, (URI) predicate, object));
+            }
+            int cleanupCount = readCount(in);
+            for (int c = 0; c < cleanupCount; c++) {
+                entity.cleanup.add(valueFactory.createURI(readString(in)));
+            }
+            entities.add(entity);
+        }
+        return new EntitySync(statementPrefix, entities);
+    }
+
+    /**
+     * Read a count.
+     *
+     * @throws IOException if the count is negative
+     */
+    private static int readCount(DataInput in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("Negative count " + count);
+        }
+        return count;
+    }
+
+    /**
+     * Read a term.
+     *
+     * @throws IOException if the term has an unknown tag
+     */
+    private static Value readTerm(DataInput in, ValueFactory valueFactory) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+        case EntitySyncFormat.URI:
+            return valueFactory.createURI(readString(in));
+        case EntitySyncFormat.BNODE:
+            return valueFactory.createBNode(readString(in));
+        case EntitySyncFormat.LITERAL:
+            String label = readString(in);
+            return valueFactory.createLiteral(label, valueFactory.createURI(readString(in)));
+        case EntitySyncFormat.LANGUAGE_LITERAL:
+            String languageLabel = readString(in);
+            return valueFactory.createLiteral(languageLabel, readString(in));
+        default:
+            throw new IOException("Unknown term tag " + tag);
+        }
+    }
+
+    /**
+     * Replace the entities in the store. The changes are written to the
+     * store's indexes, committing them is up to the caller.
+     *
+     * @return the number of triples deleted and inserted
+     */
+    public long apply(AbstractTripleStore store) {
+        LexiconRelation lexicon = store.getLexiconRelation();
+        BigdataValueFactory valueFactory = store.getValueFactory();
+
+        /*
+         * Resolve the ids of the terms that are already known, without adding
+         * the others. Blank nodes never match stored ones so they are left
+         * out, like the SPARQL update leaves them out of its VALUES.
+         */
+        Map<Value, BigdataValue> terms = new HashMap<>();
+        BigdataValue about = term(terms, valueFactory, valueFactory.createURI(SchemaDotOrg.ABOUT));
+        for (Entity entity : entities) {
+            term(terms, valueFactory, entity.uri);
+            for (Statement statement : entity.statements) {
+                term(terms, valueFactory, statement.getSubject());
+                term(terms, valueFactory, statement.getPredicate());
+                term(terms, valueFactory, statement.getObject());
+            }
+            for (URI cleanup : entity.cleanup) {
+                term(terms, valueFactory, cleanup);
+            }
+        }
+        BigdataValue[] resolve = terms.values().toArray(new BigdataValue[terms.size()]);
+        lexicon.addTerms(resolve, resolve.length, true);
+
+        Set<ISPO> keep = new HashSet<>();
+        for (Entity entity : entities) {
+            for (Statement statement : entity.statements) {
+                IV s = known(terms.get(statement.getSubject()));
+                IV p = known(terms.get(statement.getPredicate()));
+                IV o = known(terms.get(statement.getObject()));
+                if (s != null && p != null && o != null) {
+                    keep.add(new SPO(s, p, o, StatementEnum.Explicit));
+                }
+            }
+        }
+
+        Set<ISPO> delete = new LinkedHashSet<>();
+        for (Entity entity : entities) {
+            IV entityIv = known(terms.get(entity.uri));
+            if (entityIv == null) {
+                continue;
+            }
+            for (IV subject : managedSubjects(store, entityIv, known(about))) {
+                forEach(store.getAccessPath(subject, null, null), spo -> {
+                    if (!keep.contains(spo)) {
+                        delete.add(spo);
+                    }
+                });
+            }
+        }
+        long modified = 0;
+        if (!delete.isEmpty()) {
+            modified += store.removeStatements(delete.toArray(new ISPO[delete.size()]), delete.size());
+        }
+
+        StatementBuffer<Statement> insert = new StatementBuffer<>(store, INSERT_BUFFER_CAPACITY);
+        for (Entity entity : entities) {
+            for (Statement statement : entity.statements) {
+                insert.add(statement.getSubject(), statement.getPredicate(), statement.getObject());
+            }
+        }
+        modified += insert.flush();
+
+        // Values and references are shared so they can only go once nothing uses them
+        for (Entity entity : entities) {
+            for (URI cleanup : entity.cleanup) {
+                IV value = known(terms.get(cleanup));
+                if (value != null && store.getAccessPath((IV) null, (IV) null, value).isEmpty()) {
+                    modified += store.getAccessPath(value, (IV) null, (IV) null).removeAll();
+                }
+            }
+        }
+        return modified;
+    }
+
+    /**
+     * Subjects whose triples belong to an entity: the entity, its statements
+     * and its site links.
+     */
+    private Collection<IV> managedSubjects(AbstractTripleStore store, IV entity, IV about) {
+        Set<IV> subjects = new LinkedHashSet<>();
+        subjects.add(entity);
+        List<IV<?, ?>> objects = new ArrayList<>();
+        forEach(store.getAccessPath(entity, null, null), spo -> {
+            if (spo.o().isURI()) {
+                objects.add(spo.o());
+            }
+        });
+        if (!objects.isEmpty()) {
+            for (Map.Entry<IV<?, ?>, BigdataValue> object : store.getLexiconRelation().getTerms(objects).entrySet()) {
+                if (object.getValue().stringValue().startsWith(statementPrefix)) {
+                    subjects.add(object.getKey());
+                }
+            }
+        }
+        if (about != null) {
+            forEach(store.getAccessPath(null, about, entity), spo -> subjects.add(spo.s()));
+        }
+        return subjects;
+    }
+
+    /**
+     * Get the term resolving a value, creating it if needed. Blank nodes
+     * aren't resolved.
+     */
+    private static BigdataValue term(Map<Value, BigdataValue> terms, BigdataValueFactory valueFactory, Value value) {
+        if (value instanceof BNode) {
+            return null;
+        }
+        return terms.computeIfAbsent(value, valueFactory::asValue);
+    }
+
+    /**
+     * The id of a resolved term, or null if the store doesn't know the term.
+     */
+    private static IV known(BigdataValue term) {
+        if (term == null) {
+            return null;
+        }
+        IV iv = term.getIV();
+        if (iv == null || iv instanceof TermId && ((TermId<?>) iv).getTermId() == 0L) {
+            return null;
+        }
+        return iv;
+    }
+
+    /**
+     * Call a consumer with every triple of an access path.
+     */
+    private static void forEach(IAccessPath<ISPO> accessPath, Consumer<ISPO> consumer) {
+        IChunkedOrderedIterator<ISPO> it = accessPath.iterator();
+        try {
+            while (it.hasNext()) {
+                consumer.accept(it.next());
+            }
+        } finally {
+            it.close();
+        }
+    }
+
+    /**
+     * An entity to replace.
+     */
+    static final class Entity {
+        /**
+         * Uri of the entity.
+         */
+        private final URI uri;
+        /**
+         * All the statements of the entity.
+         */
+        private final List<Statement> statements = new ArrayList<>();
+        /**
+         * Values and references the entity might have been the last one to use.
+         */
+        private final List<URI> cleanup = new ArrayList<>();
+
+        Entity(URI uri) {
+            this.uri = uri;
+        }
+    }
+}
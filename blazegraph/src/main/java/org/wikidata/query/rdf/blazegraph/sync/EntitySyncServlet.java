@@ -0,0 +1,118 @@
+package org.wikidata.query.rdf.blazegraph.sync;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.query.rdf.common.EntitySyncFormat;
+
+import com.bigdata.journal.ITx;
+import com.bigdata.rdf.sail.BigdataSailRepositoryConnection;
+import com.bigdata.rdf.sail.webapp.AbstractRestApiTask;
+import com.bigdata.rdf.sail.webapp.BigdataRDFServlet;
+
+/**
+ * Replaces batches of entities posted by the updater in the
+ * {@link EntitySyncFormat} directly in the indexes of the triple store,
+ * bypassing the query engine for the write path. Each batch is applied in a
+ * single unisolated transaction.
+ *
+ * The namespace is the one in the namespace parameter or the default one.
+ * The response reports the number of modified triples like the REST API's
+ * mutation responses do.
+ */
+public class EntitySyncServlet extends BigdataRDFServlet {
+    private static final Logger log = LoggerFactory.getLogger(EntitySyncServlet.class);
+
+    /**
+     *
+     */
+    private static final long serialVersionUID = 4815960255378244186L;
+
+    @Override
+    protected void doPost(final HttpServletRequest req, final HttpServletResponse resp)
+            throws ServletException, IOException {
+        if (!isWritable(getServletContext(), req, resp)) {
+            return;
+        }
+        String contentType = req.getContentType();
+        if (contentType == null || !contentType.startsWith(EntitySyncFormat.CONTENT_TYPE)) {
+            resp.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,
+                    "Expected " + EntitySyncFormat.CONTENT_TYPE + " but got " + contentType);
+            return;
+        }
+        long start = System.currentTimeMillis();
+        EntitySync sync;
+        try {
+            sync = EntitySync.read(req.getInputStream(), ValueFactoryImpl.getInstance());
+        } catch (IOException e) {
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, "Can't read entity sync batch: " + e.getMessage());
+            return;
+        }
+        String namespace = req.getParameter("namespace");
+        if (namespace == null) {
+            namespace = getBigdataRDFContext().getConfig().namespace;
+        }
+        long modified;
+        try {
+            modified = submitApiTask(new EntitySyncTask(req, resp, namespace, sync)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServletException("Interrupted syncing entities", e);
+        } catch (ExecutionException e) {
+            throw new ServletException("Failed to sync entities", e.getCause());
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        log.debug("Synced {} entities modifying {} triples in {} ms", sync.size(), modified, elapsed);
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType("application/xml");
+        resp.getWriter().write("<?xml version=\"1.0\"?><data modified=\"" + modified
+                + "\" milliseconds=\"" + elapsed + "\"/>");
+    }
+
+    /**
+     * Applies a batch with the unisolated connection and commits it.
+     */
+    private static class EntitySyncTask extends AbstractRestApiTask<Long> {
+        /**
+         * The batch to apply.
+         */
+        private final EntitySync sync;
+
+        EntitySyncTask(HttpServletRequest req, HttpServletResponse resp, String namespace, EntitySync sync) {
+            super(req, resp, namespace, ITx.UNISOLATED);
+            this.sync = sync;
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return false;
+        }
+
+        @Override
+        public Long call() throws Exception {
+            BigdataSailRepositoryConnection conn = null;
+            boolean success = false;
+            try {
+                conn = getConnection();
+                long modified = sync.apply(conn.getTripleStore());
+                conn.commit();
+                success = true;
+                return modified;
+            } finally {
+                if (conn != null) {
+                    if (!success) {
+                        conn.rollback();
+                    }
+                    conn.close();
+                }
+            }
+        }
+    }
+}
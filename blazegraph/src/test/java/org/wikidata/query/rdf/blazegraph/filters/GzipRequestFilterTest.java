@@ -0,0 +1,133 @@
+package org.wikidata.query.rdf.blazegraph.filters;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.mock.web.MockFilterConfig;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import com.google.common.io.ByteStreams;
+
+@RunWith(MockitoJUnitRunner.class)
+public class GzipRequestFilterTest {
+
+    private static final String BODY = "<http://www.wikidata.org/entity/Q1> <http://schema.org/name> \"Q1\" .\n";
+
+    private Filter filter = new GzipRequestFilter();
+    @Mock private HttpServletResponse response;
+    @Mock private FilterChain chain;
+    @Captor private ArgumentCaptor<ServletRequest> filteredRequest;
+
+    @Before
+    public void enableFilter() throws ServletException {
+        MockFilterConfig config = new MockFilterConfig("gzip-request-filter");
+        config.addInitParameter("enabled", "true");
+        config.addInitParameter("max-decoded-bytes", Integer.toString(BODY.length()));
+        filter.init(config);
+    }
+
+    @Test
+    public void plainRequestIsUntouched() throws Exception {
+        MockHttpServletRequest request = new MockHttpServletRequest();
+        request.setContent(BODY.getBytes(StandardCharsets.UTF_8));
+
+        filter.doFilter(request, response, chain);
+
+        verify(chain).doFilter(filteredRequest.capture(), any(ServletResponse.class));
+        assertThat(filteredRequest.getValue(), sameInstance((ServletRequest) request));
+    }
+
+    @Test
+    public void gzippedRequestIsDecoded() throws Exception {
+        MockHttpServletRequest request = gzippedPost(BODY);
+
+        filter.doFilter(request, response, chain);
+
+        verify(chain).doFilter(filteredRequest.capture(), any(ServletResponse.class));
+        HttpServletRequest decoded = (HttpServletRequest) filteredRequest.getValue();
+        byte[] body = ByteStreams.toByteArray(decoded.getInputStream());
+        assertThat(new String(body, StandardCharsets.UTF_8), equalTo(BODY));
+        assertThat(decoded.getHeader("Content-Encoding"), nullValue());
+        assertThat(decoded.getContentLength(), equalTo(-1));
+    }
+
+    @Test
+    public void disabledFilterLeavesRequestAlone() throws Exception {
+        filter = new GzipRequestFilter();
+        filter.init(new MockFilterConfig("gzip-request-filter"));
+        MockHttpServletRequest request = gzippedPost(BODY);
+
+        filter.doFilter(request, response, chain);
+
+        verify(chain).doFilter(filteredRequest.capture(), any(ServletResponse.class));
+        assertThat(filteredRequest.getValue(), sameInstance((ServletRequest) request));
+    }
+
+    @Test
+    public void getIsNotDecoded() throws Exception {
+        MockHttpServletRequest request = gzippedPost(BODY);
+        request.setMethod("GET");
+
+        filter.doFilter(request, response, chain);
+
+        verify(chain).doFilter(filteredRequest.capture(), any(ServletResponse.class));
+        assertThat(filteredRequest.getValue(), sameInstance((ServletRequest) request));
+    }
+
+    @Test
+    public void tooLargeDecodedBodyIsRejected() throws Exception {
+        MockHttpServletRequest request = gzippedPost(BODY + BODY);
+        doAnswer(invocation -> {
+            ByteStreams.toByteArray(((ServletRequest) invocation.getArguments()[0]).getInputStream());
+            return null;
+        }).when(chain).doFilter(any(ServletRequest.class), any(ServletResponse.class));
+
+        filter.doFilter(request, response, chain);
+
+        verify(response).sendError(eq(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE), anyString());
+    }
+
+    private MockHttpServletRequest gzippedPost(String content) throws IOException {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/namespace/wdq/sparql");
+        request.addHeader("Content-Encoding", "gzip");
+        byte[] gzipped = gzip(content);
+        request.addHeader("Content-Length", gzipped.length);
+        request.setContent(gzipped);
+        return request;
+    }
+
+    private byte[] gzip(String content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes.toByteArray();
+    }
+}
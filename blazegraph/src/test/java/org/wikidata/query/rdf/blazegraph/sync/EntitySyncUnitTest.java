@@ -0,0 +1,207 @@
+package org.wikidata.query.rdf.blazegraph.sync;
+
+import static org.wikidata.query.rdf.common.EntitySyncFormat.writeString;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.wikidata.query.rdf.blazegraph.AbstractRandomizedBlazegraphTestBase;
+import org.wikidata.query.rdf.common.EntitySyncFormat;
+import org.wikidata.query.rdf.common.uri.RDFS;
+import org.wikidata.query.rdf.common.uri.SchemaDotOrg;
+
+public class EntitySyncUnitTest extends AbstractRandomizedBlazegraphTestBase {
+    private static final String SITE_LINK = "https://en.wikipedia.org/wiki/George_Washington";
+
+    @Test
+    public void replacesEntity() throws IOException {
+        add("wd:Q23", RDFS.LABEL, new LiteralImpl("George Washington", "en"));
+        add("wd:Q23", "p:P509", "wds:Q23-01EDEEEE-F0DF-4A07-980F-5E76866B74D7");
+        add("wds:Q23-01EDEEEE-F0DF-4A07-980F-5E76866B74D7", "ps:P509", "wd:Q12152");
+        add(SITE_LINK, SchemaDotOrg.ABOUT, "wd:Q23");
+        add(SITE_LINK, SchemaDotOrg.NAME, new LiteralImpl("George Washington", "en"));
+        add("wd:Q12152", RDFS.LABEL, new LiteralImpl("death", "en"));
+
+        apply(new Batch().entity("Q23")
+                .statement("wd:Q23", RDFS.LABEL, new LiteralImpl("George Washingmoved", "en"))
+                .statement("wd:Q23", "p:P509", "wds:Q23-8D0D8A2B-4F5F-4B6B-9D4F-9E5C5C8A1E11")
+                .statement("wds:Q23-8D0D8A2B-4F5F-4B6B-9D4F-9E5C5C8A1E11", "ps:P509", "wd:Q12152")
+                .statement(SITE_LINK, SchemaDotOrg.ABOUT, "wd:Q23"));
+
+        assertFalse(has("wd:Q23", RDFS.LABEL, new LiteralImpl("George Washington", "en")));
+        assertFalse(has("wd:Q23", "p:P509", "wds:Q23-01EDEEEE-F0DF-4A07-980F-5E76866B74D7"));
+        assertFalse(has("wds:Q23-01EDEEEE-F0DF-4A07-980F-5E76866B74D7", "ps:P509", "wd:Q12152"));
+        assertFalse(has(SITE_LINK, SchemaDotOrg.NAME, new LiteralImpl("George Washington", "en")));
+        assertTrue(has("wd:Q23", RDFS.LABEL, new LiteralImpl("George Washingmoved", "en")));
+        assertTrue(has("wd:Q23", "p:P509", "wds:Q23-8D0D8A2B-4F5F-4B6B-9D4F-9E5C5C8A1E11"));
+        assertTrue(has("wds:Q23-8D0D8A2B-4F5F-4B6B-9D4F-9E5C5C8A1E11", "ps:P509", "wd:Q12152"));
+        assertTrue(has(SITE_LINK, SchemaDotOrg.ABOUT, "wd:Q23"));
+        // Other entities are left alone
+        assertTrue(has("wd:Q12152", RDFS.LABEL, new LiteralImpl("death", "en")));
+    }
+
+    @Test
+    public void keepsUnchangedStatements() throws IOException {
+        add("wd:Q23", "wdt:P509", "wd:Q12152");
+
+        long modified = apply(new Batch().entity("Q23").statement("wd:Q23", "wdt:P509", "wd:Q12152"));
+
+        assertEquals(0, modified);
+        assertTrue(has("wd:Q23", "wdt:P509", "wd:Q12152"));
+    }
+
+    @Test
+    public void insertsNewEntity() throws IOException {
+        long modified = apply(new Batch().entity("Q23")
+                .statement("wd:Q23", "wdt:P509", "wd:Q12152")
+                .statement("wd:Q23", RDFS.LABEL, new LiteralImpl("George Washington", "en")));
+
+        assertEquals(2, modified);
+        assertTrue(has("wd:Q23", "wdt:P509", "wd:Q12152"));
+        assertTrue(has("wd:Q23", RDFS.LABEL, new LiteralImpl("George Washington", "en")));
+    }
+
+    @Test
+    public void cleansUpUnusedValues() throws IOException {
+        add("wds:Q23-01EDEEEE-F0DF-4A07-980F-5E76866B74D7", "psv:P580", "wdv:a10564107110b2d5739b8fe235cddf73");
+        add("wdv:a10564107110b2d5739b8fe235cddf73", "ontology:timePrecision", 11);
+        add("wds:Q1-8D0D8A2B-4F5F-4B6B-9D4F-9E5C5C8A1E11", "psv:P580", "wdv:b10564107110b2d5739b8fe235cddf73");
+        add("wdv:b10564107110b2d5739b8fe235cddf73", "ontology:timePrecision", 11);
+        add("wd:Q23", "p:P580", "wds:Q23-01EDEEEE-F0DF-4A07-980F-5E76866B74D7");
+
+        apply(new Batch().entity("Q23")
+                .statement("wd:Q23", "wdt:P509", "wd:Q12152")
+                .cleanup("wdv:a10564107110b2d5739b8fe235cddf73")
+                .cleanup("wdv:b10564107110b2d5739b8fe235cddf73"));
+
+        assertFalse(has("wds:Q23-01EDEEEE-F0DF-4A07-980F-5E76866B74D7", "psv:P580", "wdv:a10564107110b2d5739b8fe235cddf73"));
+        assertFalse(has("wdv:a10564107110b2d5739b8fe235cddf73", "ontology:timePrecision", 11));
+        // Still used by another statement
+        assertTrue(has("wdv:b10564107110b2d5739b8fe235cddf73", "ontology:timePrecision", 11));
+    }
+
+    @Test
+    public void insertsBlankNodes() throws IOException {
+        apply(new Batch().entity("Q23")
+                .statement("wd:Q23", "wdt:P509", ValueFactoryImpl.getInstance().createBNode("b1")));
+
+        assertTrue(ask("ASK { <" + uris().entity() + "Q23> ?p ?o . FILTER(isBlank(?o)) }"));
+    }
+
+    @Test(expected = IOException.class)
+    public void unsupportedVersion() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(EntitySyncFormat.VERSION + 1);
+        }
+        EntitySync.read(new ByteArrayInputStream(bytes.toByteArray()), ValueFactoryImpl.getInstance());
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownTag() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(EntitySyncFormat.VERSION);
+            writeString(out, uris().statement());
+            out.writeInt(1);
+            writeString(out, uris().entity() + "Q23");
+            out.writeInt(1);
+            out.writeByte(42);
+        }
+        EntitySync.read(new ByteArrayInputStream(bytes.toByteArray()), ValueFactoryImpl.getInstance());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncated() throws IOException {
+        byte[] bytes = new Batch().entity("Q23").statement("wd:Q23", "wdt:P509", "wd:Q12152").toBytes();
+        EntitySync.read(new ByteArrayInputStream(bytes, 0, bytes.length - 3), ValueFactoryImpl.getInstance());
+    }
+
+    private long apply(Batch batch) throws IOException {
+        EntitySync sync = EntitySync.read(new ByteArrayInputStream(batch.toBytes()), ValueFactoryImpl.getInstance());
+        return sync.apply(store());
+    }
+
+    private boolean has(Object s, Object p, Object o) {
+        return store().hasStatement((Resource) convert(s), (URI) convert(p), convert(o));
+    }
+
+    /**
+     * Builds a batch in the entity sync format.
+     */
+    private final class Batch {
+        private final List<String> entities = new ArrayList<>();
+        private final List<List<Value[]>> statements = new ArrayList<>();
+        private final List<List<String>> cleanups = new ArrayList<>();
+
+        Batch entity(String id) {
+            entities.add(uris().entity() + id);
+            statements.add(new ArrayList<>());
+            cleanups.add(new ArrayList<>());
+            return this;
+        }
+
+        Batch statement(Object s, Object p, Object o) {
+            statements.get(statements.size() - 1).add(new Value[] {convert(s), convert(p), convert(o)});
+            return this;
+        }
+
+        Batch cleanup(String value) {
+            cleanups.get(cleanups.size() - 1).add(convert(value).stringValue());
+            return this;
+        }
+
+        byte[] toBytes() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeInt(EntitySyncFormat.VERSION);
+                writeString(out, uris().statement());
+                out.writeInt(entities.size());
+                for (int e = 0; e < entities.size(); e++) {
+                    writeString(out, entities.get(e));
+                    out.writeInt(statements.get(e).size());
+                    for (Value[] statement : statements.get(e)) {
+                        for (Value term : statement) {
+                            writeTerm(out, term);
+                        }
+                    }
+                    out.writeInt(cleanups.get(e).size());
+                    for (String cleanup : cleanups.get(e)) {
+                        writeString(out, cleanup);
+                    }
+                }
+            }
+            return bytes.toByteArray();
+        }
+
+        private void writeTerm(DataOutputStream out, Value term) throws IOException {
+            if (term instanceof BNode) {
+                out.writeByte(EntitySyncFormat.BNODE);
+                writeString(out, ((BNode) term).getID());
+            } else if (term instanceof Literal && ((Literal) term).getLanguage() != null) {
+                out.writeByte(EntitySyncFormat.LANGUAGE_LITERAL);
+                writeString(out, ((Literal) term).getLabel());
+                writeString(out, ((Literal) term).getLanguage());
+            } else if (term instanceof Literal) {
+                out.writeByte(EntitySyncFormat.LITERAL);
+                writeString(out, ((Literal) term).getLabel());
+                writeString(out, ((Literal) term).getDatatype().stringValue());
+            } else {
+                out.writeByte(EntitySyncFormat.URI);
+                writeString(out, term.stringValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.wikidata.query.rdf.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary format of the batches of entities the updater sends to the entity
+ * sync servlet of the triple store, which replaces the entities directly in
+ * its indexes.
+ *
+ * <pre>
+ * int     VERSION
+ * string  prefix of statement uris
+ * int     number of entities, then for each entity:
+ *   string  entity uri
+ *   int     number of statements, then for each statement:
+ *     term    subject
+ *     term    predicate
+ *     term    object
+ *   int     number of cleanup candidates, then for each:
+ *     string  uri of a value or reference that might no longer be used
+ * </pre>
+ *
+ * A term is one of the tag bytes followed by its strings: {@link #URI} and
+ * the uri, {@link #BNODE} and the id, {@link #LITERAL} and the label and the
+ * datatype, {@link #LANGUAGE_LITERAL} and the label and the language. Strings
+ * are the length of their UTF-8 encoding as an int followed by the encoding.
+ */
+public final class EntitySyncFormat {
+    /**
+     * Content type of the batches.
+     */
+    public static final String CONTENT_TYPE = "application/x-wdqs-entity-sync";
+    /**
+     * Version of the format, the first int of every batch.
+     */
+    public static final int VERSION = 1;
+    /**
+     * Tag of a uri.
+     */
+    public static final byte URI = 1;
+    /**
+     * Tag of a blank node.
+     */
+    public static final byte BNODE = 2;
+    /**
+     * Tag of a literal with a datatype.
+     */
+    public static final byte LITERAL = 3;
+    /**
+     * Tag of a literal with a language.
+     */
+    public static final byte LANGUAGE_LITERAL = 4;
+
+    /**
+     * Write a string.
+     */
+    public static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a string.
+     *
+     * @throws IOException if the input ends early or the length is negative
+     */
+    public static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Negative string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Utility class uncallable constructor.
+     */
+    private EntitySyncFormat() {
+        // Utility class.
+    }
+}
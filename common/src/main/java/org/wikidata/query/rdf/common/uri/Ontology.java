@@ -93,6 +93,11 @@ public final class Ontology {
      * Sitelinks count.
      */
     public static final String SITELINKS = NAMESPACE + "sitelinks";
+    /**
+     * Hash of the content of an entity, stored by the updater so it can skip
+     * entities whose content didn't change.
+     */
+    public static final String CONTENT_HASH = NAMESPACE + "contentHash";
 
     /**
      * Predicates used to describe a time.
@@ -0,0 +1,160 @@
+package org.wikidata.query.rdf.tool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Adapts the number of changes sent per SPARQL update and the number of
+ * fetch threads to the observed cost of recent updates.
+ *
+ * The cost of a batch varies wildly depending on which entities changed, so
+ * instead of a fixed size the sizer targets an update latency and a
+ * statement count per update. It shrinks quickly when an update goes over
+ * target and grows slowly while updates stay comfortably under it. Fetch
+ * threads are added while preparing a batch takes longer than the target
+ * latency and removed while it is much faster.
+ */
+public class AdaptiveBatchSizer {
+    private static final Logger log = LoggerFactory.getLogger(AdaptiveBatchSizer.class);
+
+    /**
+     * Updates faster than target divided by this are considered cheap enough
+     * to grow the sync size.
+     */
+    private static final double GROW_MARGIN = 1.25;
+
+    /**
+     * Target latency of a single SPARQL update, in milliseconds.
+     */
+    private final long targetLatency;
+    /**
+     * Target number of statements in a single SPARQL update.
+     */
+    private final int targetStatements;
+    /**
+     * Smallest number of changes per update.
+     */
+    private final int minSyncSize;
+    /**
+     * Largest number of changes per update.
+     */
+    private final int maxSyncSize;
+    /**
+     * Smallest number of fetch threads.
+     */
+    private final int minThreads;
+    /**
+     * Largest number of fetch threads.
+     */
+    private final int maxThreads;
+    /**
+     * Current number of changes per update.
+     */
+    private volatile int syncSize;
+    /**
+     * Current number of fetch threads.
+     */
+    private volatile int fetchThreads;
+
+    public AdaptiveBatchSizer(long targetLatency, int targetStatements, int maxSyncSize, int maxThreads) {
+        this(targetLatency, targetStatements, 1, maxSyncSize, 1, maxThreads);
+    }
+
+    public AdaptiveBatchSizer(long targetLatency, int targetStatements, int minSyncSize, int maxSyncSize,
+            int minThreads, int maxThreads) {
+        if (minSyncSize < 1 || maxSyncSize < minSyncSize) {
+            throw new IllegalArgumentException("Invalid sync size bounds " + minSyncSize + "-" + maxSyncSize);
+        }
+        if (minThreads < 1 || maxThreads < minThreads) {
+            throw new IllegalArgumentException("Invalid thread bounds " + minThreads + "-" + maxThreads);
+        }
+        this.targetLatency = targetLatency;
+        this.targetStatements = targetStatements;
+        this.minSyncSize = minSyncSize;
+        this.maxSyncSize = maxSyncSize;
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.syncSize = maxSyncSize;
+        this.fetchThreads = (minThreads + maxThreads) / 2;
+    }
+
+    /**
+     * Number of changes to send in the next update.
+     */
+    public int syncSize() {
+        return syncSize;
+    }
+
+    /**
+     * Target number of statements in a single update.
+     */
+    public int targetStatements() {
+        return targetStatements;
+    }
+
+    /**
+     * Number of threads that should be fetching changes.
+     */
+    public int fetchThreads() {
+        return fetchThreads;
+    }
+
+    /**
+     * Record the outcome of an update and adjust the sync size.
+     *
+     * @param changes number of changes in the update
+     * @param statements number of statements in the update
+     * @param millis how long the update took
+     */
+    public synchronized void syncDone(int changes, int statements, long millis) {
+        double ratio = Math.min(
+                (double) targetLatency / Math.max(millis, 1),
+                (double) targetStatements / Math.max(statements, 1));
+        int size = syncSize;
+        if (ratio < 1) {
+            // Over target - shrink in proportion but never by more than half at once
+            size = (int) (size * Math.max(ratio, 0.5));
+        } else if (ratio > GROW_MARGIN && changes >= size) {
+            // Only a full update tells us that a bigger one would be cheap enough
+            size += Math.max(1, size / 10);
+        }
+        size = Math.max(minSyncSize, Math.min(maxSyncSize, size));
+        if (size != syncSize) {
+            log.debug("Update of {} changes and {} statements took {} ms, sync size now {}",
+                    changes, statements, millis, size);
+            syncSize = size;
+        }
+    }
+
+    /**
+     * Record how long preparing a batch took and adjust the fetch thread
+     * count.
+     *
+     * @param changes number of changes prepared
+     * @param millis how long fetching and munging them took
+     */
+    public synchronized void prepareDone(int changes, long millis) {
+        int threads = fetchThreads;
+        if (millis > targetLatency && changes > threads) {
+            threads++;
+        } else if (millis < targetLatency / 2) {
+            threads--;
+        }
+        threads = Math.max(minThreads, Math.min(maxThreads, threads));
+        if (threads != fetchThreads) {
+            log.debug("Preparing {} changes took {} ms, fetch threads now {}", changes, millis, threads);
+            fetchThreads = threads;
+        }
+    }
+
+    /**
+     * Publish the current decisions of the sizer.
+     */
+    public void registerMetrics(MetricRegistry metrics) {
+        metrics.register("adaptive-sync-size", (Gauge<Integer>) this::syncSize);
+        metrics.register("adaptive-fetch-threads", (Gauge<Integer>) this::fetchThreads);
+    }
+}
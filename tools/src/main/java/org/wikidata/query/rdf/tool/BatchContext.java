@@ -0,0 +1,657 @@
+package org.wikidata.query.rdf.tool;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+
+import com.google.common.collect.SetMultimap;
+import com.google.common.collect.Sets;
+
+/**
+ * The value and reference nodes the rdf store has for the entities in a
+ * batch, handed to each change's fetch task.
+ *
+ * Built once per batch and read only afterwards. To keep allocation low on
+ * large batches, entity ids like Q42 are stored as numbers and node uris
+ * ending in a hex hash are stored as the longs making up the hash, all in
+ * flat arrays with open addressing. Ids and nodes that don't fit those
+ * shapes are kept as strings. Tasks get a mutable view of the nodes of their
+ * entity, as the munger removes the nodes that are still used from it.
+ */
+public final class BatchContext {
+    /**
+     * Kind of a value node.
+     */
+    private static final byte VALUE = 0;
+    /**
+     * Kind of a reference node.
+     */
+    private static final byte REFERENCE = 1;
+    /**
+     * Number of longs holding the hash of a node.
+     */
+    private static final int WORDS = 3;
+    /**
+     * Number of hex digits held by a long.
+     */
+    private static final int DIGITS_PER_WORD = 16;
+    /**
+     * Longest node hash that can be stored as longs.
+     */
+    private static final int MAX_DIGITS = WORDS * DIGITS_PER_WORD;
+    /**
+     * Longest entity number that can be stored in an entity key.
+     */
+    private static final int MAX_ENTITY_DIGITS = 17;
+
+    /**
+     * Empty context for batches without changes to prepare.
+     */
+    public static BatchContext empty(WikibaseUris uris) {
+        return new Builder(uris).build();
+    }
+
+    /**
+     * Wikibase uris.
+     */
+    private final WikibaseUris uris;
+    /**
+     * Open addressing table of encoded entity keys, 0 for empty slots.
+     */
+    private final long[] entityTable;
+    /**
+     * Ordinal of the entity in each slot of entityTable.
+     */
+    private final int[] entityOrdinals;
+    /**
+     * Ordinals of entities whose ids can't be encoded.
+     */
+    private final Map<String, Integer> otherEntities;
+    /**
+     * Position of the first node of each entity in the node arrays, indexed
+     * by ordinal, with one extra entry marking the end.
+     */
+    private final int[] starts;
+    /**
+     * Hashes of the nodes, WORDS longs per node.
+     */
+    private final long[] words;
+    /**
+     * Kind of each node.
+     */
+    private final byte[] kinds;
+    /**
+     * Number of hex digits of each node's hash.
+     */
+    private final byte[] lengths;
+    /**
+     * Open addressing table of node positions plus one, 0 for empty slots.
+     */
+    private final int[] nodeTable;
+    /**
+     * Nodes that can't be encoded, by entity ordinal.
+     */
+    private final Map<Integer, Set<String>> otherNodes;
+
+    private BatchContext(Builder b) {
+        uris = b.uris;
+        entityTable = b.entityTable;
+        entityOrdinals = b.entityOrdinals;
+        otherEntities = b.otherEntities;
+        starts = Arrays.copyOf(b.starts, b.entities + 1);
+        starts[b.entities] = b.nodes;
+        words = b.words;
+        kinds = b.kinds;
+        lengths = b.lengths;
+        otherNodes = b.otherNodes;
+        nodeTable = new int[tableSize(b.nodes)];
+        for (int entity = 0; entity < b.entities; entity++) {
+            for (int node = starts[entity]; node < starts[entity + 1]; node++) {
+                int slot = nodeSlot(entity, kinds[node], lengths[node], node * WORDS);
+                nodeTable[slot] = node + 1;
+            }
+        }
+    }
+
+    /**
+     * Value nodes the rdf store has for an entity. The collection is a fresh
+     * mutable view for the caller.
+     */
+    public Collection<String> values(String entityId) {
+        return new NodeView(ordinal(entityId), VALUE);
+    }
+
+    /**
+     * Reference nodes the rdf store has for an entity. The collection is a
+     * fresh mutable view for the caller.
+     */
+    public Collection<String> refs(String entityId) {
+        return new NodeView(ordinal(entityId), REFERENCE);
+    }
+
+    /**
+     * Ordinal of an entity, -1 if the entity has no nodes.
+     */
+    private int ordinal(String entityId) {
+        long key = entityKey(entityId);
+        if (key == 0) {
+            Integer ordinal = otherEntities.get(entityId);
+            return ordinal == null ? -1 : ordinal;
+        }
+        for (int slot = slot(mix(key), entityTable.length); ; slot = (slot + 1) & (entityTable.length - 1)) {
+            if (entityTable[slot] == 0) {
+                return -1;
+            }
+            if (entityTable[slot] == key) {
+                return entityOrdinals[slot];
+            }
+        }
+    }
+
+    /**
+     * Find a node of an entity.
+     *
+     * @param encoded kind, length and hash words of the node as built by
+     *            encodeNode
+     * @return position of the node or -1 if the entity doesn't have it
+     */
+    private int find(int entity, long[] encoded) {
+        byte kind = (byte) encoded[WORDS];
+        byte length = (byte) encoded[WORDS + 1];
+        int slot = nodeSlot(entity, kind, length, encoded, 0);
+        int node = nodeTable[slot] - 1;
+        return node < 0 ? -1 : node;
+    }
+
+    /**
+     * Find the slot of the node table holding a node, or the empty slot
+     * where it should go.
+     */
+    private int nodeSlot(int entity, byte kind, byte length, int offset) {
+        return nodeSlot(entity, kind, length, words, offset);
+    }
+
+    /**
+     * Find the slot of the node table holding a node, or the empty slot
+     * where it should go.
+     */
+    private int nodeSlot(int entity, byte kind, byte length, long[] hash, int offset) {
+        long h = entity * 0x9E3779B97F4A7C15L + (kind << 8 | length);
+        for (int i = 0; i < WORDS; i++) {
+            h = h * 31 + hash[offset + i];
+        }
+        int mask = nodeTable.length - 1;
+        for (int slot = slot(mix(h), nodeTable.length); ; slot = (slot + 1) & mask) {
+            int node = nodeTable[slot] - 1;
+            if (node < 0) {
+                return slot;
+            }
+            if (node >= starts[entity] && node < starts[entity + 1] && kinds[node] == kind
+                    && lengths[node] == length && sameHash(node * WORDS, hash, offset)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Does the node at this offset have this hash?
+     */
+    private boolean sameHash(int nodeOffset, long[] hash, int offset) {
+        for (int i = 0; i < WORDS; i++) {
+            if (words[nodeOffset + i] != hash[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Uri of a stored node.
+     */
+    private String nodeUri(int node) {
+        StringBuilder b = new StringBuilder(kinds[node] == VALUE ? uris.value() : uris.reference());
+        int digits = lengths[node];
+        for (int i = 0; digits > 0; i++) {
+            int chunk = Math.min(digits, DIGITS_PER_WORD);
+            String hex = Long.toHexString(words[node * WORDS + i]);
+            for (int pad = hex.length(); pad < chunk; pad++) {
+                b.append('0');
+            }
+            b.append(hex);
+            digits -= chunk;
+        }
+        return b.toString();
+    }
+
+    /**
+     * Encode a node uri.
+     *
+     * @param encoded filled with the hash words followed by the kind and digit
+     *            count, WORDS + 2 longs
+     * @return false if the uri can't be encoded
+     */
+    private static boolean encodeNode(String uri, WikibaseUris uris, long[] encoded) {
+        byte kind;
+        int start;
+        if (uri.startsWith(uris.value())) {
+            kind = VALUE;
+            start = uris.value().length();
+        } else if (uri.startsWith(uris.reference())) {
+            kind = REFERENCE;
+            start = uris.reference().length();
+        } else {
+            return false;
+        }
+        int digits = uri.length() - start;
+        if (digits == 0 || digits > MAX_DIGITS) {
+            return false;
+        }
+        Arrays.fill(encoded, 0, WORDS, 0);
+        for (int i = 0; i < digits; i++) {
+            char c = uri.charAt(start + i);
+            int digit;
+            if (c >= '0' && c <= '9') {
+                digit = c - '0';
+            } else if (c >= 'a' && c <= 'f') {
+                digit = c - 'a' + 10;
+            } else {
+                // Only lower case hex round trips
+                return false;
+            }
+            encoded[i / DIGITS_PER_WORD] = encoded[i / DIGITS_PER_WORD] << 4 | digit;
+        }
+        encoded[WORDS] = kind;
+        encoded[WORDS + 1] = digits;
+        return true;
+    }
+
+    /**
+     * Encode an entity id made of a single letter and a number.
+     *
+     * @return the key or 0 if the id can't be encoded
+     */
+    private static long entityKey(String entityId) {
+        int digits = entityId.length() - 1;
+        if (digits < 1 || digits > MAX_ENTITY_DIGITS) {
+            return 0;
+        }
+        char letter = entityId.charAt(0);
+        if (letter < 'A' || letter > 'Z') {
+            return 0;
+        }
+        long number = 0;
+        for (int i = 1; i <= digits; i++) {
+            char c = entityId.charAt(i);
+            if (c < '0' || c > '9') {
+                return 0;
+            }
+            number = number * 10 + c - '0';
+        }
+        return (long) (letter - 'A' + 1) << 58 | number;
+    }
+
+    /**
+     * Size of an open addressing table for this many entries.
+     */
+    private static int tableSize(int entries) {
+        return Integer.highestOneBit(Math.max(entries, 4) * 2 - 1) << 1;
+    }
+
+    /**
+     * Spread the bits of a hash.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Initial slot for a hash.
+     */
+    private static int slot(long hash, int tableLength) {
+        return (int) hash & (tableLength - 1);
+    }
+
+    /**
+     * Mutable view of the nodes of one kind of an entity. Removing nodes only
+     * affects the view.
+     */
+    private final class NodeView extends AbstractCollection<String> {
+        /**
+         * Entity ordinal, -1 if the entity has no nodes.
+         */
+        private final int entity;
+        /**
+         * Kind of the nodes in the view.
+         */
+        private final byte kind;
+        /**
+         * Nodes removed from the view, by position relative to the entity's
+         * first node.
+         */
+        private final BitSet removed = new BitSet();
+        /**
+         * Nodes that can't be encoded, copied lazily.
+         */
+        private Set<String> others;
+        /**
+         * Scratch space for encoding looked up nodes. Views aren't shared
+         * between threads so one per view is enough.
+         */
+        private final long[] encoded = new long[WORDS + 2];
+        /**
+         * Number of encoded nodes in the view.
+         */
+        private int size;
+
+        NodeView(int entity, byte kind) {
+            this.entity = entity;
+            this.kind = kind;
+            if (entity >= 0) {
+                for (int node = starts[entity]; node < starts[entity + 1]; node++) {
+                    if (kinds[node] == kind) {
+                        size++;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            return size + others().size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return position(o) >= 0 || others().contains(o);
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            int position = position(o);
+            if (position >= 0) {
+                removed.set(position);
+                size--;
+                return true;
+            }
+            return others().remove(o);
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> c) {
+            boolean modified = false;
+            for (Object o : c) {
+                modified |= remove(o);
+            }
+            return modified;
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            return new Iterator<String>() {
+                private int next = advance(entity < 0 ? 0 : starts[entity]);
+                private int last = -1;
+                private Iterator<String> otherItr;
+
+                @Override
+                public boolean hasNext() {
+                    return entity >= 0 && next < starts[entity + 1] || otherIterator().hasNext();
+                }
+
+                @Override
+                public String next() {
+                    if (entity >= 0 && next < starts[entity + 1]) {
+                        last = next;
+                        next = advance(next + 1);
+                        return nodeUri(last);
+                    }
+                    last = -1;
+                    if (!otherIterator().hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return otherIterator().next();
+                }
+
+                @Override
+                public void remove() {
+                    if (last >= 0) {
+                        removed.set(last - starts[entity]);
+                        size--;
+                        last = -1;
+                    } else {
+                        otherIterator().remove();
+                    }
+                }
+
+                /**
+                 * Skip to the next node of the view's kind that wasn't
+                 * removed.
+                 */
+                private int advance(int node) {
+                    if (entity < 0) {
+                        return node;
+                    }
+                    while (node < starts[entity + 1]
+                            && (kinds[node] != kind || removed.get(node - starts[entity]))) {
+                        node++;
+                    }
+                    return node;
+                }
+
+                /**
+                 * Iterator over the nodes that can't be encoded.
+                 */
+                private Iterator<String> otherIterator() {
+                    if (otherItr == null) {
+                        otherItr = others().iterator();
+                    }
+                    return otherItr;
+                }
+            };
+        }
+
+        /**
+         * Position of a node in the view relative to the entity's first node.
+         *
+         * @return the position or -1 if it isn't in the view
+         */
+        private int position(Object o) {
+            if (entity < 0 || !(o instanceof String)) {
+                return -1;
+            }
+            if (!encodeNode((String) o, uris, encoded) || encoded[WORDS] != kind) {
+                return -1;
+            }
+            int node = find(entity, encoded);
+            if (node < 0 || removed.get(node - starts[entity])) {
+                return -1;
+            }
+            return node - starts[entity];
+        }
+
+        /**
+         * Nodes of the view's kind that can't be encoded.
+         */
+        private Set<String> others() {
+            if (others == null) {
+                Set<String> all = entity < 0 ? null : otherNodes.get(entity);
+                if (all == null) {
+                    others = Collections.emptySet();
+                } else {
+                    others = new HashSet<>();
+                    String prefix = kind == VALUE ? uris.value() : uris.reference();
+                    for (String node : all) {
+                        if (node.startsWith(prefix)) {
+                            others.add(node);
+                        }
+                    }
+                }
+            }
+            return others;
+        }
+    }
+
+    /**
+     * Builds a context, one entity at a time.
+     */
+    public static final class Builder {
+        /**
+         * Wikibase uris.
+         */
+        private final WikibaseUris uris;
+        /**
+         * Entity table being built.
+         */
+        private long[] entityTable = new long[16];
+        /**
+         * Ordinals of entityTable being built.
+         */
+        private int[] entityOrdinals = new int[16];
+        /**
+         * Ordinals of entities whose ids can't be encoded.
+         */
+        private final Map<String, Integer> otherEntities = new HashMap<>();
+        /**
+         * Position of the first node of each entity.
+         */
+        private int[] starts = new int[16];
+        /**
+         * Node hashes being built.
+         */
+        private long[] words = new long[16 * WORDS];
+        /**
+         * Node kinds being built.
+         */
+        private byte[] kinds = new byte[16];
+        /**
+         * Node lengths being built.
+         */
+        private byte[] lengths = new byte[16];
+        /**
+         * Nodes that can't be encoded, by entity ordinal.
+         */
+        private final Map<Integer, Set<String>> otherNodes = new HashMap<>();
+        /**
+         * Scratch space for encoding added nodes.
+         */
+        private final long[] encoded = new long[WORDS + 2];
+        /**
+         * Number of entities added.
+         */
+        private int entities;
+        /**
+         * Number of encoded nodes added.
+         */
+        private int nodes;
+
+        public Builder(WikibaseUris uris) {
+            this.uris = uris;
+        }
+
+        /**
+         * Add the nodes of an entity. Each entity may only be added once.
+         *
+         * @param entityId id of the entity
+         * @param nodeUris distinct uris of its value and reference nodes
+         * @return this
+         */
+        public Builder add(String entityId, Collection<String> nodeUris) {
+            if (nodeUris.isEmpty()) {
+                return this;
+            }
+            int ordinal = entities++;
+            long key = entityKey(entityId);
+            if (key == 0) {
+                otherEntities.put(entityId, ordinal);
+            } else {
+                putEntity(key, ordinal);
+            }
+            if (ordinal == starts.length) {
+                starts = Arrays.copyOf(starts, ordinal * 2);
+            }
+            starts[ordinal] = nodes;
+            for (String uri : nodeUris) {
+                if (!encodeNode(uri, uris, encoded)) {
+                    otherNodes.computeIfAbsent(ordinal, o -> new HashSet<>()).add(uri);
+                    continue;
+                }
+                if (nodes == kinds.length) {
+                    kinds = Arrays.copyOf(kinds, nodes * 2);
+                    lengths = Arrays.copyOf(lengths, nodes * 2);
+                    words = Arrays.copyOf(words, nodes * 2 * WORDS);
+                }
+                System.arraycopy(encoded, 0, words, nodes * WORDS, WORDS);
+                kinds[nodes] = (byte) encoded[WORDS];
+                lengths[nodes] = (byte) encoded[WORDS + 1];
+                nodes++;
+            }
+            return this;
+        }
+
+        /**
+         * Add the nodes the rdf store returned. The store keys them by entity
+         * uri while the context is looked up by entity id, so the uris are
+         * turned into ids here.
+         *
+         * @param values value nodes by entity uri
+         * @param refs reference nodes by entity uri
+         * @return this
+         */
+        public Builder addStored(SetMultimap<String, String> values, SetMultimap<String, String> refs) {
+            for (String entityUri : Sets.union(values.keySet(), refs.keySet())) {
+                add(entityUri.substring(uris.entity().length()),
+                        Sets.union(values.get(entityUri), refs.get(entityUri)));
+            }
+            return this;
+        }
+
+        /**
+         * Build the context.
+         */
+        public BatchContext build() {
+            return new BatchContext(this);
+        }
+
+        /**
+         * Add an entity to the entity table, growing it as needed.
+         */
+        private void putEntity(long key, int ordinal) {
+            if ((entities + 1) * 2 > entityTable.length) {
+                long[] oldTable = entityTable;
+                int[] oldOrdinals = entityOrdinals;
+                entityTable = new long[oldTable.length * 2];
+                entityOrdinals = new int[oldTable.length * 2];
+                for (int i = 0; i < oldTable.length; i++) {
+                    if (oldTable[i] != 0) {
+                        insertEntity(oldTable[i], oldOrdinals[i]);
+                    }
+                }
+            }
+            insertEntity(key, ordinal);
+        }
+
+        /**
+         * Insert an entity in the entity table.
+         */
+        private void insertEntity(long key, int ordinal) {
+            int slot = slot(mix(key), entityTable.length);
+            while (entityTable[slot] != 0 && entityTable[slot] != key) {
+                slot = (slot + 1) & (entityTable.length - 1);
+            }
+            entityTable[slot] = key;
+            entityOrdinals[slot] = ordinal;
+        }
+    }
+}
@@ -0,0 +1,655 @@
+package org.wikidata.query.rdf.tool;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.BNodeImpl;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.StatementImpl;
+import org.openrdf.model.impl.URIImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.query.rdf.tool.change.Change;
+import org.wikidata.query.rdf.tool.exception.FatalException;
+
+/**
+ * Append only journal of munged changes waiting to be synced to the rdf
+ * store.
+ *
+ * Batches of changes are appended and flushed to disk before they are synced
+ * and marked as synced afterwards, so the batches left unsynced by a crash
+ * can be synced on restart without fetching and munging them again. The
+ * journal is made of memory mapped segment files. Each record is prefixed
+ * with its length and a checksum and followed by an end marker so a torn
+ * write at the end of the journal is detected and ignored. Segments are
+ * deleted once all of their batches are synced, and the journal starts over
+ * at the beginning of its segment whenever nothing is pending.
+ *
+ * A journal can also retain synced batches so the recorded stream of batches
+ * can be replayed later, for example into a fresh rdf store to compare its
+ * performance.
+ */
+public class ChangeJournal implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(ChangeJournal.class);
+
+    /**
+     * Marks the start of a segment file.
+     */
+    private static final int MAGIC = 0x574a524e;
+    /**
+     * Size of the segment header.
+     */
+    private static final int HEADER_BYTES = Integer.BYTES;
+    /**
+     * Size of the length and checksum in front of each record.
+     */
+    private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES;
+    /**
+     * Record type of a batch of changes.
+     */
+    private static final byte BATCH = 1;
+    /**
+     * Record type marking a batch as synced.
+     */
+    private static final byte SYNCED = 2;
+    /**
+     * Prefix of segment file names.
+     */
+    private static final String PREFIX = "journal-";
+    /**
+     * Suffix of segment file names.
+     */
+    private static final String SUFFIX = ".seg";
+    /**
+     * Value kinds in serialized statements.
+     */
+    private static final byte KIND_URI = 'U';
+    /**
+     * Blank node value.
+     */
+    private static final byte KIND_BNODE = 'B';
+    /**
+     * Plain literal value.
+     */
+    private static final byte KIND_LITERAL = 'L';
+    /**
+     * Literal value with a language.
+     */
+    private static final byte KIND_LANGUAGE_LITERAL = 'G';
+    /**
+     * Literal value with a datatype.
+     */
+    private static final byte KIND_TYPED_LITERAL = 'T';
+
+    /**
+     * Directory holding the segments.
+     */
+    private final Path directory;
+    /**
+     * Minimum size of new segments.
+     */
+    private final int segmentSize;
+    /**
+     * Keep synced batches around to replay them later?
+     */
+    private final boolean retain;
+    /**
+     * Segments by number, oldest first.
+     */
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    /**
+     * Segment appended to.
+     */
+    private Segment current;
+    /**
+     * Segment holding each unsynced batch, by batch id.
+     */
+    private final Map<Long, Segment> pending = new LinkedHashMap<>();
+    /**
+     * Batches left unsynced by a previous run, by batch id in journal order.
+     */
+    private final Map<Long, List<Change>> recovered = new LinkedHashMap<>();
+    /**
+     * Id of the next batch.
+     */
+    private long nextId;
+
+    /**
+     * Open a journal, recovering the batches left unsynced by a previous
+     * run.
+     *
+     * @param segmentSize minimum size of segment files in bytes
+     * @param retain keep synced batches so they can be replayed later
+     */
+    public ChangeJournal(Path directory, int segmentSize, boolean retain) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.retain = retain;
+        try {
+            Files.createDirectories(directory);
+            load();
+        } catch (IOException e) {
+            throw new FatalException("Can't open change journal in " + directory, e);
+        }
+        if (!recovered.isEmpty()) {
+            log.info("Recovered {} unsynced batches from the change journal in {}", recovered.size(), directory);
+        }
+    }
+
+    /**
+     * Read every batch recorded in a journal, synced or not, in the order
+     * they were appended.
+     *
+     * @param consumer receives the changes of each batch
+     * @throws IOException if the journal can't be read
+     */
+    public static void readAll(Path directory, Consumer<List<Change>> consumer) throws IOException {
+        for (Path path : segmentFiles(directory).values()) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (!hasMagic(buffer)) {
+                    continue;
+                }
+                int position = HEADER_BYTES;
+                byte[] record;
+                while ((record = readRecord(buffer, position)) != null) {
+                    position += RECORD_HEADER_BYTES + record.length;
+                    if (record[0] == BATCH) {
+                        consumer.accept(decodeBatch(record));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Append a batch of changes and flush it to disk.
+     *
+     * @return the id of the batch, to mark it synced
+     */
+    public synchronized long append(List<Change> changes) {
+        long id = nextId++;
+        byte[] data;
+        try {
+            data = encodeBatch(changes);
+        } catch (IOException e) {
+            throw new FatalException("Can't serialize changes for the journal", e);
+        }
+        write(BATCH, id, data);
+        current.buffer.force();
+        pending.put(id, current);
+        current.unsynced++;
+        return id;
+    }
+
+    /**
+     * Mark a batch as synced. It isn't flushed to disk right away: syncing a
+     * batch again after a crash is harmless.
+     */
+    public synchronized void synced(long id) {
+        recovered.remove(id);
+        Segment segment = pending.remove(id);
+        if (segment == null) {
+            return;
+        }
+        write(SYNCED, id, new byte[0]);
+        segment.unsynced--;
+        if (!retain) {
+            truncate();
+        }
+    }
+
+    /**
+     * Batches left unsynced by a previous run that weren't synced since.
+     *
+     * @return the changes by batch id, in journal order
+     */
+    public synchronized Map<Long, List<Change>> recovered() {
+        return new LinkedHashMap<>(recovered);
+    }
+
+    /**
+     * Number of batches waiting to be synced.
+     */
+    public synchronized int pendingCount() {
+        return pending.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+        }
+        segments.clear();
+        current = null;
+    }
+
+    /**
+     * Load the segments left by a previous run.
+     */
+    private void load() throws IOException {
+        Set<Long> synced = new HashSet<>();
+        for (Map.Entry<Long, Path> file : segmentFiles(directory).entrySet()) {
+            Segment segment = new Segment(file.getKey(), file.getValue(), 0);
+            if (!hasMagic(segment.buffer)) {
+                log.warn("Dropping invalid change journal segment {}", file.getValue());
+                Files.deleteIfExists(file.getValue());
+                continue;
+            }
+            segments.put(file.getKey(), segment);
+            int position = HEADER_BYTES;
+            byte[] record;
+            while ((record = readRecord(segment.buffer, position)) != null) {
+                position += RECORD_HEADER_BYTES + record.length;
+                long id = recordId(record);
+                nextId = Math.max(nextId, id + 1);
+                if (record[0] == BATCH) {
+                    recovered.put(id, decodeBatch(record));
+                    pending.put(id, segment);
+                } else if (record[0] == SYNCED) {
+                    synced.add(id);
+                }
+            }
+            segment.position = position;
+        }
+        for (Long id : synced) {
+            recovered.remove(id);
+            pending.remove(id);
+        }
+        for (Segment segment : pending.values()) {
+            segment.unsynced++;
+        }
+        if (!segments.isEmpty()) {
+            current = segments.lastEntry().getValue();
+            // Anything after the last valid record is a torn write
+            if (current.position + Integer.BYTES <= current.buffer.limit()) {
+                current.buffer.putInt(current.position, 0);
+            }
+        }
+        if (!retain) {
+            truncate();
+        }
+    }
+
+    /**
+     * Drop what is no longer needed: the oldest segments whose batches are
+     * all synced and, if nothing is pending, the whole journal.
+     */
+    private void truncate() {
+        Iterator<Segment> oldest = segments.values().iterator();
+        while (oldest.hasNext()) {
+            Segment segment = oldest.next();
+            if (segment == current || segment.unsynced > 0) {
+                break;
+            }
+            oldest.remove();
+            segment.delete();
+        }
+        if (current != null && pending.isEmpty()) {
+            current.position = HEADER_BYTES;
+            current.buffer.putInt(HEADER_BYTES, 0);
+        }
+    }
+
+    /**
+     * Write a record at the end of the journal.
+     */
+    private void write(byte type, long id, byte[] data) {
+        byte[] record = new byte[1 + Long.BYTES + data.length];
+        record[0] = type;
+        for (int i = 0; i < Long.BYTES; i++) {
+            record[1 + i] = (byte) (id >>> (Long.BYTES - 1 - i) * Byte.SIZE);
+        }
+        System.arraycopy(data, 0, record, 1 + Long.BYTES, data.length);
+        int needed = RECORD_HEADER_BYTES + record.length + Integer.BYTES;
+        if (current == null || current.position + needed > current.buffer.limit()) {
+            roll(needed);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        MappedByteBuffer buffer = current.buffer;
+        int start = current.position;
+        buffer.position(start + RECORD_HEADER_BYTES);
+        buffer.put(record);
+        buffer.putInt(0);
+        buffer.putInt(start + Integer.BYTES, (int) crc.getValue());
+        // The length goes last so a record is never seen half written
+        buffer.putInt(start, record.length);
+        current.position = start + RECORD_HEADER_BYTES + record.length;
+    }
+
+    /**
+     * Start a new segment with room for at least a record of the given size.
+     */
+    private void roll(int needed) {
+        long number = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        Path path = directory.resolve(String.format(Locale.ROOT, "%s%016d%s", PREFIX, number, SUFFIX));
+        try {
+            Segment segment = new Segment(number, path, Math.max(segmentSize, HEADER_BYTES + needed));
+            segment.buffer.putInt(0, MAGIC);
+            segment.buffer.putInt(HEADER_BYTES, 0);
+            segment.position = HEADER_BYTES;
+            segments.put(number, segment);
+            current = segment;
+        } catch (IOException e) {
+            throw new FatalException("Can't create change journal segment " + path, e);
+        }
+        if (!retain) {
+            truncate();
+        }
+    }
+
+    /**
+     * Segment files in a directory by segment number.
+     */
+    private static TreeMap<Long, Path> segmentFiles(Path directory) throws IOException {
+        TreeMap<Long, Path> files = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    files.put(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())), path);
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring unexpected file in the change journal: {}", path);
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Does the buffer start like a segment?
+     */
+    private static boolean hasMagic(MappedByteBuffer buffer) {
+        return buffer.limit() >= HEADER_BYTES + Integer.BYTES && buffer.getInt(0) == MAGIC;
+    }
+
+    /**
+     * Read the record at a position.
+     *
+     * @return the record or null if there is no valid record there
+     */
+    private static byte[] readRecord(MappedByteBuffer buffer, int position) {
+        if (position + RECORD_HEADER_BYTES > buffer.limit()) {
+            return null;
+        }
+        int length = buffer.getInt(position);
+        if (length <= Long.BYTES || length > buffer.limit() - position - RECORD_HEADER_BYTES) {
+            return null;
+        }
+        byte[] record = new byte[length];
+        ByteBuffer body = buffer.duplicate();
+        body.position(position + RECORD_HEADER_BYTES);
+        body.get(record);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        if ((int) crc.getValue() != buffer.getInt(position + Integer.BYTES)) {
+            return null;
+        }
+        return record;
+    }
+
+    /**
+     * Id of the batch a record is about.
+     */
+    private static long recordId(byte[] record) {
+        long id = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            id = id << Byte.SIZE | record[1 + i] & 0xff;
+        }
+        return id;
+    }
+
+    /**
+     * Serialize a batch of changes.
+     */
+    private static byte[] encodeBatch(List<Change> changes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(changes.size());
+            for (Change change : changes) {
+                out.writeUTF(change.entityId());
+                out.writeLong(change.revision());
+                out.writeLong(change.timestamp() == null ? Long.MIN_VALUE : change.timestamp().getTime());
+                out.writeLong(change.rcid());
+                Collection<Statement> statements = change.getStatements();
+                out.writeInt(statements == null ? -1 : statements.size());
+                if (statements != null) {
+                    for (Statement statement : statements) {
+                        writeValue(out, statement.getSubject());
+                        writeValue(out, statement.getPredicate());
+                        writeValue(out, statement.getObject());
+                    }
+                }
+                writeStrings(out, change.getCleanupList());
+                writeString(out, change.getContentHash());
+                writeStrings(out, change.getUsedNodes());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserialize the batch of changes in a record.
+     */
+    private static List<Change> decodeBatch(byte[] record) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record, 1 + Long.BYTES,
+                record.length - 1 - Long.BYTES))) {
+            int count = in.readInt();
+            List<Change> changes = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String entityId = in.readUTF();
+                long revision = in.readLong();
+                long timestamp = in.readLong();
+                long rcid = in.readLong();
+                Change change = new Change(entityId, revision,
+                        timestamp == Long.MIN_VALUE ? null : new Date(timestamp), rcid);
+                int statementCount = in.readInt();
+                if (statementCount >= 0) {
+                    List<Statement> statements = new ArrayList<>(statementCount);
+                    for (int s = 0; s < statementCount; s++) {
+                        statements.add(new StatementImpl((Resource) readValue(in), (URI) readValue(in),
+                                readValue(in)));
+                    }
+                    change.setStatements(statements);
+                }
+                change.setCleanupList(readStrings(in));
+                change.setContentHash(readString(in));
+                List<String> usedNodes = readStrings(in);
+                if (usedNodes != null) {
+                    change.setUsedNodes(new HashSet<>(usedNodes));
+                }
+                changes.add(change);
+            }
+            return changes;
+        } catch (IOException e) {
+            throw new FatalException("Corrupt batch in the change journal", e);
+        }
+    }
+
+    /**
+     * Serialize an RDF value.
+     */
+    private static void writeValue(DataOutputStream out, Value value) throws IOException {
+        if (value instanceof URI) {
+            out.writeByte(KIND_URI);
+            writeString(out, value.stringValue());
+        } else if (value instanceof BNode) {
+            out.writeByte(KIND_BNODE);
+            writeString(out, ((BNode) value).getID());
+        } else {
+            Literal literal = (Literal) value;
+            if (literal.getLanguage() != null) {
+                out.writeByte(KIND_LANGUAGE_LITERAL);
+                writeString(out, literal.getLabel());
+                writeString(out, literal.getLanguage());
+            } else if (literal.getDatatype() != null) {
+                out.writeByte(KIND_TYPED_LITERAL);
+                writeString(out, literal.getLabel());
+                writeString(out, literal.getDatatype().stringValue());
+            } else {
+                out.writeByte(KIND_LITERAL);
+                writeString(out, literal.getLabel());
+            }
+        }
+    }
+
+    /**
+     * Deserialize an RDF value.
+     */
+    private static Value readValue(DataInputStream in) throws IOException {
+        byte kind = in.readByte();
+        switch (kind) {
+        case KIND_URI:
+            return new URIImpl(readString(in));
+        case KIND_BNODE:
+            return new BNodeImpl(readString(in));
+        case KIND_LITERAL:
+            return new LiteralImpl(readString(in));
+        case KIND_LANGUAGE_LITERAL:
+            return new LiteralImpl(readString(in), readString(in));
+        case KIND_TYPED_LITERAL:
+            return new LiteralImpl(readString(in), new URIImpl(readString(in)));
+        default:
+            throw new IOException("Unknown value kind " + kind);
+        }
+    }
+
+    /**
+     * Serialize a possibly null collection of strings.
+     */
+    private static void writeStrings(DataOutputStream out, Collection<String> strings) throws IOException {
+        out.writeInt(strings == null ? -1 : strings.size());
+        if (strings != null) {
+            for (String string : strings) {
+                writeString(out, string);
+            }
+        }
+    }
+
+    /**
+     * Deserialize a possibly null collection of strings.
+     */
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) {
+            return null;
+        }
+        List<String> strings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            strings.add(readString(in));
+        }
+        return strings;
+    }
+
+    /**
+     * Serialize a possibly null string of any length.
+     */
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = string.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Deserialize a possibly null string.
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * A memory mapped segment file.
+     */
+    private static final class Segment {
+        /**
+         * Number of the segment.
+         */
+        private final long number;
+        /**
+         * The segment file.
+         */
+        private final Path path;
+        /**
+         * The mapped contents of the file.
+         */
+        private final MappedByteBuffer buffer;
+        /**
+         * Where the next record goes.
+         */
+        private int position;
+        /**
+         * Number of unsynced batches in the segment.
+         */
+        private int unsynced;
+
+        /**
+         * Map a segment file.
+         *
+         * @param size size to create the file with, 0 to map an existing
+         *            file as it is
+         */
+        Segment(long number, Path path, int size) throws IOException {
+            this.number = number;
+            this.path = path;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size > 0 ? size : channel.size());
+            }
+        }
+
+        /**
+         * Delete the segment file. The mapping lives on until the buffer is
+         * collected.
+         */
+        void delete() {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                log.warn("Can't delete change journal segment {}", number, e);
+            }
+        }
+    }
+}
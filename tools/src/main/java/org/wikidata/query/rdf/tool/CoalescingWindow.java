@@ -0,0 +1,220 @@
+package org.wikidata.query.rdf.tool;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.wikidata.query.rdf.tool.change.Change;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * Holds back changes to entities that are edited over and over so only their
+ * latest revision is synced.
+ *
+ * An entity that was synced less than the window ago is held instead of
+ * synced again. Later changes to a held entity replace the held change. The
+ * held change is released once the entity has been quiet for the window or
+ * has been held for the maximum delay, whichever comes first. Changes are
+ * released with the batches passing through, so the updater asks
+ * {@link #untilDue(long)} when to pass an empty poll through the window on a
+ * quiet wiki.
+ */
+public class CoalescingWindow {
+    /**
+     * How long after syncing an entity its changes are held, in milliseconds.
+     */
+    private final long windowMillis;
+    /**
+     * Longest a change is held, in milliseconds.
+     */
+    private final long maxDelayMillis;
+    /**
+     * When entities were last let through, oldest first.
+     */
+    private final LinkedHashMap<String, Long> recent = new LinkedHashMap<>();
+    /**
+     * Changes being held by entity id.
+     */
+    private final Map<String, Held> held = new LinkedHashMap<>();
+    /**
+     * Changes that were replaced by a later change to the same entity.
+     */
+    private final Meter coalesced = new Meter();
+
+    public CoalescingWindow(long windowMillis, long maxDelayMillis) {
+        this.windowMillis = windowMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Run the changes of a batch through the window.
+     *
+     * @param changes the changes of the batch
+     * @param now current time in milliseconds
+     * @param flush release all held changes, for example on the last batch
+     * @return the changes to sync now: the ones that weren't held followed by
+     *         the held ones that are due
+     */
+    public synchronized List<Change> admit(Collection<Change> changes, long now, boolean flush) {
+        forget(now);
+        List<Change> admitted = new ArrayList<>(changes.size());
+        for (Change change : changes) {
+            String entityId = change.entityId();
+            Held entity = held.get(entityId);
+            if (entity != null) {
+                entity.add(change, now);
+                coalesced.mark();
+                continue;
+            }
+            Long last = recent.get(entityId);
+            if (last != null && now - last < windowMillis) {
+                held.put(entityId, new Held(change, now));
+                continue;
+            }
+            admitted.add(change);
+            passed(entityId, now);
+        }
+        Iterator<Held> itr = held.values().iterator();
+        while (itr.hasNext()) {
+            Held entity = itr.next();
+            if (flush || entity.due(now)) {
+                admitted.add(entity.change);
+                passed(entity.change.entityId(), now);
+                itr.remove();
+            }
+        }
+        return admitted;
+    }
+
+    /**
+     * Timestamp of the oldest edit that is being held back. Progress mustn't
+     * be recorded past it or it would be lost on restart.
+     *
+     * @return the timestamp or null if nothing with a timestamp is held
+     */
+    public synchronized Date oldestHeld() {
+        Date oldest = null;
+        for (Held entity : held.values()) {
+            if (entity.since != null && (oldest == null || entity.since.before(oldest))) {
+                oldest = entity.since;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * How long until a held change is due to be released.
+     *
+     * @param now current time in milliseconds
+     * @return milliseconds until the next held change is due, 0 if one is due
+     *         now and Long.MAX_VALUE if nothing is held
+     */
+    public synchronized long untilDue(long now) {
+        long until = Long.MAX_VALUE;
+        for (Held entity : held.values()) {
+            until = Math.min(until, Math.max(0, entity.dueAt() - now));
+        }
+        return until;
+    }
+
+    /**
+     * Number of entities being held.
+     */
+    public synchronized int size() {
+        return held.size();
+    }
+
+    /**
+     * Publish the window's metrics.
+     */
+    public void registerMetrics(MetricRegistry metrics) {
+        metrics.register("coalesced-changes", coalesced);
+        metrics.register("coalescing-held", (Gauge<Integer>) this::size);
+    }
+
+    /**
+     * Remember that an entity was let through.
+     */
+    private void passed(String entityId, long now) {
+        // Remove first so the entry moves to the end
+        recent.remove(entityId);
+        recent.put(entityId, now);
+    }
+
+    /**
+     * Forget entities let through longer than the window ago.
+     */
+    private void forget(long now) {
+        Iterator<Long> eldest = recent.values().iterator();
+        while (eldest.hasNext()) {
+            if (now - eldest.next() < windowMillis) {
+                return;
+            }
+            eldest.remove();
+        }
+    }
+
+    /**
+     * A change being held.
+     */
+    private final class Held {
+        /**
+         * Latest change to the entity.
+         */
+        private Change change;
+        /**
+         * Timestamp of the oldest edit merged into the held change.
+         */
+        private Date since;
+        /**
+         * When the entity started being held.
+         */
+        private final long firstHeld;
+        /**
+         * When the entity last changed.
+         */
+        private long lastChanged;
+
+        Held(Change change, long now) {
+            this.change = change;
+            since = change.timestamp();
+            firstHeld = now;
+            lastChanged = now;
+        }
+
+        /**
+         * Merge a new change to the entity.
+         */
+        void add(Change newer, long now) {
+            lastChanged = now;
+            if (newer.timestamp() != null && (since == null || newer.timestamp().before(since))) {
+                since = newer.timestamp();
+            }
+            // Changes can arrive out of order, keep the latest revision
+            if (newer.revision() < 0 || change.revision() < 0 || newer.revision() >= change.revision()) {
+                change = newer;
+            }
+        }
+
+        /**
+         * Should the change be released?
+         */
+        boolean due(long now) {
+            return now >= dueAt();
+        }
+
+        /**
+         * When the change should be released, in milliseconds.
+         */
+        long dueAt() {
+            return Math.min(lastChanged + windowMillis, firstHeld + maxDelayMillis);
+        }
+    }
+}
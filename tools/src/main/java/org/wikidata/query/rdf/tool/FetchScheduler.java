@@ -0,0 +1,41 @@
+package org.wikidata.query.rdf.tool;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.wikidata.query.rdf.tool.change.Change;
+
+/**
+ * Decides the order in which the changes of a batch are submitted for
+ * fetching and munging. The fetch threads take work in submission order so
+ * the order decides which changes run together and when the batch finishes.
+ */
+public interface FetchScheduler {
+    /**
+     * Submit changes in the order they come in.
+     */
+    FetchScheduler IN_ORDER = new FetchScheduler() {
+        @Override
+        public List<Change> order(Collection<Change> changes) {
+            return new ArrayList<>(changes);
+        }
+
+        @Override
+        public void prepared(Change change) {
+        }
+    };
+
+    /**
+     * Order the changes of a batch for submission.
+     *
+     * @return the changes in submission order
+     */
+    List<Change> order(Collection<Change> changes);
+
+    /**
+     * Called once a change has been fetched and munged, so the scheduler can
+     * learn from it.
+     */
+    void prepared(Change change);
+}
@@ -0,0 +1,93 @@
+package org.wikidata.query.rdf.tool;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.wikidata.query.rdf.tool.change.Change;
+
+/**
+ * Submits the largest changes of a batch first.
+ *
+ * The size of a change is guessed from the number of statements its entity
+ * had the last time it was prepared. Entities that weren't seen yet are
+ * assumed to be of average size. Starting the longest work first and filling
+ * in with the small changes keeps one huge entity from being picked up last
+ * and holding up the whole batch on a single thread. Among changes of the
+ * same size the least recent edits go first.
+ */
+public class LargestFirstScheduler implements FetchScheduler {
+    /**
+     * Maximum number of entities to remember sizes for.
+     */
+    private final int maxEntities;
+    /**
+     * Statement count of the entities prepared recently, least recently
+     * used first.
+     */
+    private final LinkedHashMap<String, Integer> sizes;
+    /**
+     * Sum of the remembered sizes.
+     */
+    private long totalSize;
+
+    public LargestFirstScheduler(int maxEntities) {
+        this.maxEntities = maxEntities;
+        sizes = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    @Override
+    public synchronized List<Change> order(Collection<Change> changes) {
+        int average = sizes.isEmpty() ? 0 : (int) (totalSize / sizes.size());
+        Map<Change, Integer> hints = new HashMap<>();
+        for (Change change : changes) {
+            Integer size = sizes.get(change.entityId());
+            hints.put(change, size == null ? average : size);
+        }
+        List<Change> ordered = new ArrayList<>(changes);
+        ordered.sort(Comparator.comparing((Change c) -> hints.get(c)).reversed()
+                .thenComparing(LargestFirstScheduler::editTime));
+        return ordered;
+    }
+
+    @Override
+    public synchronized void prepared(Change change) {
+        if (change.getStatements() == null) {
+            return;
+        }
+        Integer old = sizes.put(change.entityId(), change.getStatements().size());
+        if (old != null) {
+            totalSize -= old;
+        }
+        totalSize += change.getStatements().size();
+        Iterator<Integer> eldest = sizes.values().iterator();
+        while (sizes.size() > maxEntities && eldest.hasNext()) {
+            totalSize -= eldest.next();
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Size hint of an entity.
+     *
+     * @return its statement count when last prepared, -1 if unknown
+     */
+    public synchronized int size(String entityId) {
+        Integer size = sizes.get(entityId);
+        return size == null ? -1 : size;
+    }
+
+    /**
+     * Time of the edit behind a change, for ordering.
+     */
+    private static long editTime(Change change) {
+        Date timestamp = change.timestamp();
+        return timestamp == null ? Long.MAX_VALUE : timestamp.getTime();
+    }
+}
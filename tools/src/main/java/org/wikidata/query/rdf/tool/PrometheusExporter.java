@@ -0,0 +1,154 @@
+package org.wikidata.query.rdf.tool;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * Serves the metrics of a registry over http in the Prometheus text
+ * exposition format so they can be scraped without a JMX bridge.
+ *
+ * Counters and meters are exported as counters, histograms as summaries and
+ * timers as summaries in seconds. Gauges are exported if their value is a
+ * number.
+ */
+public class PrometheusExporter extends NanoHTTPD {
+    /**
+     * Content type of the text exposition format.
+     */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    /**
+     * Prefix of the names of all exported metrics.
+     */
+    public static final String PREFIX = "wdqs_updater_";
+    /**
+     * Path the metrics are served on.
+     */
+    public static final String PATH = "/metrics";
+    /**
+     * Nanoseconds in a second, timers record nanoseconds.
+     */
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The exported metrics.
+     */
+    private final MetricRegistry metrics;
+
+    public PrometheusExporter(int port, MetricRegistry metrics) {
+        super(port);
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Response serve(IHTTPSession session) {
+        if (!PATH.equals(session.getUri())) {
+            return new Response(Response.Status.NOT_FOUND, "text/plain", "not found");
+        }
+        return new Response(Response.Status.OK, CONTENT_TYPE, format(metrics));
+    }
+
+    /**
+     * Format all metrics of a registry in the text exposition format.
+     */
+    @SuppressWarnings("rawtypes")
+    public static String format(MetricRegistry metrics) {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, Gauge> gauge : metrics.getGauges().entrySet()) {
+            Object value = gauge.getValue().getValue();
+            if (value instanceof Number) {
+                String name = name(gauge.getKey());
+                type(out, name, "gauge");
+                sample(out, name, "", ((Number) value).doubleValue());
+            }
+        }
+        for (Map.Entry<String, Counter> counter : metrics.getCounters().entrySet()) {
+            String name = name(counter.getKey()) + "_total";
+            type(out, name, "counter");
+            sample(out, name, "", counter.getValue().getCount());
+        }
+        for (Map.Entry<String, Meter> meter : metrics.getMeters().entrySet()) {
+            String name = name(meter.getKey()) + "_total";
+            type(out, name, "counter");
+            sample(out, name, "", meter.getValue().getCount());
+        }
+        for (Map.Entry<String, Histogram> histogram : metrics.getHistograms().entrySet()) {
+            summary(out, name(histogram.getKey()), histogram.getValue().getSnapshot(),
+                    histogram.getValue().getCount(), 1);
+        }
+        for (Map.Entry<String, Timer> timer : metrics.getTimers().entrySet()) {
+            summary(out, name(timer.getKey()) + "_seconds", timer.getValue().getSnapshot(),
+                    timer.getValue().getCount(), NANOS_PER_SECOND);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Exported name of a metric.
+     */
+    static String name(String metric) {
+        return PREFIX + metric.replaceAll("[^a-zA-Z0-9_]", "_");
+    }
+
+    /**
+     * Write the quantiles and the count of a snapshot as a summary.
+     *
+     * @param divisor converts the snapshot values to the exported unit
+     */
+    private static void summary(StringBuilder out, String name, Snapshot snapshot, long count, double divisor) {
+        type(out, name, "summary");
+        quantile(out, name, "0.5", snapshot.getMedian() / divisor);
+        quantile(out, name, "0.75", snapshot.get75thPercentile() / divisor);
+        quantile(out, name, "0.95", snapshot.get95thPercentile() / divisor);
+        quantile(out, name, "0.98", snapshot.get98thPercentile() / divisor);
+        quantile(out, name, "0.99", snapshot.get99thPercentile() / divisor);
+        quantile(out, name, "0.999", snapshot.get999thPercentile() / divisor);
+        sample(out, name + "_count", "", count);
+    }
+
+    /**
+     * Write the type line of a metric.
+     */
+    private static void type(StringBuilder out, String name, String type) {
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Write a quantile sample of a summary.
+     */
+    private static void quantile(StringBuilder out, String name, String quantile, double value) {
+        sample(out, name, "{quantile=\"" + quantile + "\"}", value);
+    }
+
+    /**
+     * Write a sample line.
+     */
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name).append(labels).append(' ').append(value(value)).append('\n');
+    }
+
+    /**
+     * Format a sample value.
+     */
+    private static String value(double value) {
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < Long.MAX_VALUE) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
@@ -0,0 +1,274 @@
+package org.wikidata.query.rdf.tool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.query.rdf.tool.exception.FatalException;
+
+/**
+ * On disk index of the last revision synced for each entity.
+ *
+ * Entities with ids made of a single letter and a number (Q42, P31, L1) are
+ * stored in one memory mapped file per letter, with the revision of an entity
+ * at the offset given by its number. The files are sparse so only the pages
+ * actually touched take space. Revisions are stored off by one so that zero,
+ * which is what unwritten parts of the file read as, means unknown. Entities
+ * with other ids are never indexed.
+ *
+ * The index also records which triple store it describes and the last left
+ * off time the updater wrote to it. On startup {@link #checkStore(URI, Date)}
+ * throws the index away if it was built against another store or if the
+ * store is behind the recorded time, for example because it was reloaded
+ * from an older dump. Otherwise the index would skip changes the store
+ * doesn't have.
+ */
+public class RevisionIndex implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(RevisionIndex.class);
+
+    /**
+     * Number of bits of the entity number addressed by a single mapped
+     * segment.
+     */
+    private static final int SEGMENT_BITS = 24;
+    /**
+     * Number of entries in a single mapped segment.
+     */
+    private static final int SEGMENT_ENTRIES = 1 << SEGMENT_BITS;
+    /**
+     * Size of an entry.
+     */
+    private static final int ENTRY_BYTES = Long.BYTES;
+    /**
+     * Name of the file recording the store the index describes.
+     */
+    private static final String STORE_FILE = "store";
+
+    /**
+     * Directory holding the index files.
+     */
+    private final Path directory;
+    /**
+     * Open index files by entity letter.
+     */
+    private final Map<Character, FileChannel> channels = new HashMap<>();
+    /**
+     * Mapped segments by entity letter and segment number.
+     */
+    private final Map<Character, Map<Long, MappedByteBuffer>> segments = new HashMap<>();
+    /**
+     * Uri of the store the index describes, null until checked.
+     */
+    private URI store;
+
+    public RevisionIndex(Path directory) {
+        this.directory = directory;
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new FatalException("Can't create revision index directory " + directory, e);
+        }
+    }
+
+    /**
+     * Check that the index describes this store, emptying it if it doesn't.
+     *
+     * @param storeUri uri of the store being updated
+     * @param leftOffTime left off time the store reports, null if it has none
+     */
+    public synchronized void checkStore(URI storeUri, Date leftOffTime) {
+        Path storeFile = directory.resolve(STORE_FILE);
+        String reason = null;
+        try {
+            if (!Files.exists(storeFile)) {
+                if (hasIndexFiles()) {
+                    reason = "it doesn't record which store it describes";
+                }
+            } else {
+                List<String> lines = Files.readAllLines(storeFile, StandardCharsets.UTF_8);
+                if (lines.size() < 2 || !lines.get(0).equals(storeUri.toString())) {
+                    reason = "it was built against " + (lines.isEmpty() ? "an unknown store" : lines.get(0));
+                } else if (leftOffTime == null
+                        || seconds(leftOffTime.getTime()) < seconds(Long.parseLong(lines.get(1)))) {
+                    reason = "the store is behind the time it was last synced at";
+                }
+            }
+            if (reason != null) {
+                log.warn("Discarding revision index in {} because {}", directory, reason);
+                clear();
+            }
+        } catch (IOException | NumberFormatException e) {
+            throw new FatalException("Can't check revision index in " + directory, e);
+        }
+        store = storeUri;
+        if (leftOffTime != null) {
+            storeSynced(leftOffTime);
+        }
+    }
+
+    /**
+     * Record the left off time written to the store. Everything synced before
+     * it must already be in the index.
+     */
+    public synchronized void storeSynced(Date leftOffTime) {
+        if (store == null) {
+            throw new IllegalStateException("Revision index wasn't checked against a store");
+        }
+        Path storeFile = directory.resolve(STORE_FILE);
+        Path tmp = directory.resolve(STORE_FILE + ".tmp");
+        try {
+            Files.write(tmp, Arrays.asList(store.toString(), Long.toString(leftOffTime.getTime())),
+                    StandardCharsets.UTF_8);
+            Files.move(tmp, storeFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new FatalException("Can't record synced store in " + directory, e);
+        }
+    }
+
+    /**
+     * Can this entity be stored in the index?
+     */
+    public static boolean isIndexable(String entityId) {
+        if (entityId.length() < 2 || entityId.length() > 19) {
+            return false;
+        }
+        if (entityId.charAt(0) < 'A' || entityId.charAt(0) > 'Z') {
+            return false;
+        }
+        for (int i = 1; i < entityId.length(); i++) {
+            if (!Character.isDigit(entityId.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Last revision synced for an entity.
+     *
+     * @return the revision or -1 if it isn't known
+     */
+    public long get(String entityId) {
+        if (!isIndexable(entityId)) {
+            return -1;
+        }
+        long number = Long.parseLong(entityId.substring(1));
+        return segment(entityId.charAt(0), number).getLong(offset(number)) - 1;
+    }
+
+    /**
+     * Record the last revision synced for an entity. Entities that can't be
+     * indexed are ignored.
+     *
+     * @param revision the revision or -1 to forget the entity
+     */
+    public void put(String entityId, long revision) {
+        if (!isIndexable(entityId)) {
+            return;
+        }
+        long number = Long.parseLong(entityId.substring(1));
+        segment(entityId.charAt(0), number).putLong(offset(number), revision + 1);
+    }
+
+    /**
+     * Flush changes to disk.
+     */
+    public synchronized void flush() {
+        for (Map<Long, MappedByteBuffer> letterSegments : segments.values()) {
+            for (MappedByteBuffer segment : letterSegments.values()) {
+                segment.force();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        segments.clear();
+        for (FileChannel channel : channels.values()) {
+            channel.close();
+        }
+        channels.clear();
+    }
+
+    /**
+     * Does the directory hold any index files?
+     */
+    private boolean hasIndexFiles() throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "revisions-*.idx")) {
+            return files.iterator().hasNext();
+        }
+    }
+
+    /**
+     * Unmap and delete all index files.
+     */
+    private void clear() throws IOException {
+        close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "revisions-*.idx")) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.deleteIfExists(directory.resolve(STORE_FILE));
+    }
+
+    /**
+     * Whole seconds of a timestamp, the precision the store keeps the left
+     * off time at.
+     */
+    private static long seconds(long millis) {
+        return TimeUnit.MILLISECONDS.toSeconds(millis);
+    }
+
+    /**
+     * Offset of an entity in its segment.
+     */
+    private static int offset(long number) {
+        return (int) (number & (SEGMENT_ENTRIES - 1)) * ENTRY_BYTES;
+    }
+
+    /**
+     * Find or map the segment holding an entity.
+     */
+    private synchronized MappedByteBuffer segment(char letter, long number) {
+        long segmentNumber = number >>> SEGMENT_BITS;
+        Map<Long, MappedByteBuffer> letterSegments = segments.computeIfAbsent(letter, l -> new HashMap<>());
+        MappedByteBuffer segment = letterSegments.get(segmentNumber);
+        if (segment != null) {
+            return segment;
+        }
+        try {
+            FileChannel channel = channels.get(letter);
+            if (channel == null) {
+                channel = FileChannel.open(directory.resolve("revisions-" + letter + ".idx"),
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.SPARSE);
+                channels.put(letter, channel);
+            }
+            log.debug("Mapping revision index segment {} for {}", segmentNumber, letter);
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentNumber * SEGMENT_ENTRIES * ENTRY_BYTES,
+                    (long) SEGMENT_ENTRIES * ENTRY_BYTES);
+        } catch (IOException e) {
+            throw new FatalException("Can't map revision index for " + letter, e);
+        }
+        letterSegments.put(segmentNumber, segment);
+        return segment;
+    }
+}
@@ -5,8 +5,10 @@ import static org.wikidata.query.rdf.tool.options.OptionsUtils.mungerFromOptions
 import static org.wikidata.query.rdf.tool.wikibase.WikibaseRepository.inputDateFormat;
 import static org.wikidata.query.rdf.tool.wikibase.WikibaseRepository.outputDateFormat;
 
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
@@ -15,6 +17,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,6 +29,8 @@ import org.wikidata.query.rdf.tool.change.RecentChangesPoller;
 import org.wikidata.query.rdf.tool.options.UpdateOptions;
 import org.wikidata.query.rdf.tool.rdf.Munger;
 import org.wikidata.query.rdf.tool.rdf.RdfRepository;
+import org.wikidata.query.rdf.tool.rdf.ReplicatedRdfRepository;
+import org.wikidata.query.rdf.tool.wikibase.RdfResponseCache;
 import org.wikidata.query.rdf.tool.wikibase.WikibaseRepository;
 
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
@@ -54,10 +59,15 @@ public final class Update {
 
         try {
             UpdateOptions options = handleOptions(UpdateOptions.class, args);
-            wikibaseRepository = buildWikibaseRepository(options);
-            URI sparqlUri = sparqlUri(options);
             WikibaseUris uris = new WikibaseUris(options.wikibaseHost());
-            rdfRepository = new RdfRepository(sparqlUri, uris);
+            rdfRepository = buildRdfRepository(options, uris);
+            if (options.replayJournal()) {
+                try (RdfRepository r = rdfRepository) {
+                    replayJournal(options, r);
+                }
+                return;
+            }
+            wikibaseRepository = buildWikibaseRepository(options);
             Change.Source<? extends Change.Batch> changeSource = buildChangeSource(options, rdfRepository,
                     wikibaseRepository);
             updater = createUpdater(options, wikibaseRepository, uris, rdfRepository, changeSource);
@@ -80,6 +90,43 @@ public final class Update {
         }
     }
 
+    /**
+     * Size of journal segment files in bytes.
+     *
+     * @throws IllegalArgumentException if --journalSegmentSize isn't a
+     *             positive size a segment file can have
+     */
+    private static int journalSegmentBytes(UpdateOptions options) {
+        long bytes = options.journalSegmentSize() * 1024L * 1024L;
+        if (bytes <= 0 || bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid value for --journalSegmentSize. Need between 1 and "
+                    + Integer.MAX_VALUE / (1024 * 1024) + " megabytes.");
+        }
+        return (int) bytes;
+    }
+
+    /**
+     * Sync all batches recorded in the journal and report how long it took.
+     *
+     * @throws IOException if the journal can't be read
+     */
+    private static void replayJournal(UpdateOptions options, RdfRepository rdfRepository) throws IOException {
+        if (options.journal() == null) {
+            throw new IllegalArgumentException("--replayJournal needs --journal");
+        }
+        AtomicInteger batches = new AtomicInteger();
+        AtomicInteger changes = new AtomicInteger();
+        long start = System.currentTimeMillis();
+        ChangeJournal.readAll(Paths.get(options.journal()), batch -> {
+            rdfRepository.syncFromChanges(batch, false);
+            batches.incrementAndGet();
+            changes.addAndGet(batch.size());
+        });
+        long took = System.currentTimeMillis() - start;
+        log.info("Replayed {} batches with {} changes in {} ms, {} changes per second", batches, changes, took,
+                took == 0 ? 0 : changes.get() * 1000L / took);
+    }
+
     /**
      * Create an @{link Updater}.
      *
@@ -102,26 +149,112 @@ public final class Update {
                 new LinkedBlockingQueue<>(), threadFactory.build());
 
         Munger munger = mungerFromOptions(options);
-        return new Updater<>(changeSource, wikibaseRepository, rdfRepository, munger, executor,
-                options.pollDelay(), uris, options.verify());
+        Updater<? extends Change.Batch> updater = new Updater<>(changeSource, wikibaseRepository, rdfRepository, munger, executor,
+                options.pollDelay(), uris, options.verify())
+                .setPipelineDepth(options.pipelineDepth())
+                .setSyncFlush(options.flushChanges(), options.flushStatements(),
+                        TimeUnit.SECONDS.toMillis(options.batchDeadline()))
+                .setContentHashes(options.contentHash())
+                .setStreamingMunge(options.streamingMunge());
+        if (options.targetUpdateLatency() > 0) {
+            updater.setBatchSizer(new AdaptiveBatchSizer(options.targetUpdateLatency(), options.targetUpdateStatements(),
+                    options.batchSize(), threads * 2));
+        }
+        if (options.revisionIndex() != null) {
+            if (options.replicaSparqlUrls() != null) {
+                // The index would hold revisions a dropped replica missed so a restart wouldn't resync them
+                throw new IllegalArgumentException("--revisionIndex can't be used with --replicaSparqlUrl");
+            }
+            RevisionIndex revisionIndex = new RevisionIndex(Paths.get(options.revisionIndex()));
+            revisionIndex.checkStore(rdfRepository.getUri(), rdfRepository.fetchLeftOffTime());
+            updater.setRevisionIndex(revisionIndex, options.revisionIndexCheck());
+        }
+        if (options.asyncFetchConnections() > 0) {
+            wikibaseRepository.setAsyncConnections(options.asyncFetchConnections());
+            updater.setAsyncFetch(true);
+        }
+        if (options.bulkFetch() > 1) {
+            updater.setBulkFetch(options.bulkFetch());
+        }
+        if (options.largestFirst() > 0) {
+            updater.setFetchScheduler(new LargestFirstScheduler(options.largestFirst()));
+        }
+        if (options.journal() != null) {
+            updater.setJournal(new ChangeJournal(Paths.get(options.journal()),
+                    journalSegmentBytes(options), options.journalRetain()));
+        }
+        if (options.coalesceWindow() > 0) {
+            updater.setCoalescingWindow(new CoalescingWindow(TimeUnit.SECONDS.toMillis(options.coalesceWindow()),
+                    TimeUnit.SECONDS.toMillis(options.coalesceMaxDelay())));
+        }
+        if (options.rdfCache() != null) {
+            updater.setResponseCache(new RdfResponseCache(Paths.get(options.rdfCache()), options.rdfCacheSize()));
+        }
+        if (options.valueUsageIndex() > 0) {
+            updater.setUsageIndex(new ValueUsageIndex(options.valueUsageIndex()));
+        }
+        if (options.metricsPort() > 0) {
+            updater.setMetricsPort(options.metricsPort());
+        }
+        return updater;
     }
 
     /**
      * Create the sparql URI from the given configuration.
      *
-     * @param options
+     * @param sparqlUrl
      * @return a newly created sparql URI
      */
-    private static URI sparqlUri(UpdateOptions options) {
+    private static URI sparqlUri(String sparqlUrl) {
         URI sparqlUri;
         try {
-            sparqlUri = new URI(options.sparqlUrl());
+            sparqlUri = new URI(sparqlUrl);
         } catch (URISyntaxException e) {
-            throw new IllegalArgumentException("Invalid url:  " + options.sparqlUrl(), e);
+            throw new IllegalArgumentException("Invalid url:  " + sparqlUrl, e);
         }
         return sparqlUri;
     }
 
+    /**
+     * Build the rdf repository to update, replicated if replicas are
+     * configured.
+     */
+    private static RdfRepository buildRdfRepository(UpdateOptions options, WikibaseUris uris) {
+        URI sparqlUri = sparqlUri(options.sparqlUrl());
+        if (options.replicaSparqlUrls() == null) {
+            return configureRdfRepository(new RdfRepository(sparqlUri, uris), options);
+        }
+        List<RdfRepository> replicas = new ArrayList<>();
+        replicas.add(configureRdfRepository(new RdfRepository(sparqlUri, uris), options));
+        for (String replicaUrl : options.replicaSparqlUrls()) {
+            replicas.add(configureRdfRepository(new RdfRepository(sparqlUri(replicaUrl), uris), options));
+        }
+        log.info("Updating {} and {} replicas", sparqlUri, options.replicaSparqlUrls());
+        return new ReplicatedRdfRepository(sparqlUri, uris, replicas);
+    }
+
+    /**
+     * Apply the sync options to an rdf repository.
+     *
+     * @return the repository
+     */
+    private static RdfRepository configureRdfRepository(RdfRepository rdfRepository, UpdateOptions options) {
+        rdfRepository
+                .setChunkLimits(options.syncChunkStatements(), options.syncChunkEntities())
+                .setChunkConcurrency(options.syncChunkConcurrency())
+                .setDiffSync(options.diffSync())
+                .setNativeSync(options.nativeSync())
+                .setConnectionPool(options.httpMaxConnections(), options.httpMaxQueuedRequests(),
+                        options.httpIdleTimeout());
+        if (options.rdfInsert()) {
+            if (options.syncChunkConcurrency() > 1) {
+                throw new IllegalArgumentException("--rdfInsert can't be used with --syncChunkConcurrency above 1");
+            }
+            rdfRepository.setRdfInsert(options.rdfInsertGzip());
+        }
+        return rdfRepository;
+    }
+
     /**
      * Build a change source.
      *
@@ -2,35 +2,63 @@ package org.wikidata.query.rdf.tool;
 
 import static java.lang.Thread.currentThread;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.time.DateUtils;
 import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wikidata.query.rdf.common.uri.WikibaseUris;
 import org.wikidata.query.rdf.tool.change.Change;
 import org.wikidata.query.rdf.tool.exception.ContainedException;
+import org.wikidata.query.rdf.tool.exception.FatalException;
 import org.wikidata.query.rdf.tool.exception.RetryableException;
+import org.wikidata.query.rdf.tool.rdf.ContentHash;
+import org.wikidata.query.rdf.tool.rdf.DelegatingRdfHandler;
 import org.wikidata.query.rdf.tool.rdf.Munger;
 import org.wikidata.query.rdf.tool.rdf.RdfRepository;
+import org.wikidata.query.rdf.tool.wikibase.RdfResponseCache;
 import org.wikidata.query.rdf.tool.wikibase.WikibaseRepository;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.JmxReporter;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Update tool.
@@ -44,6 +72,20 @@ import com.google.common.collect.ImmutableSetMultimap;
 public class Updater<B extends Change.Batch> implements Runnable, AutoCloseable {
     private static final Logger log = LoggerFactory.getLogger(Updater.class);
 
+    /**
+     * Attempts of an asynchronous fetch before giving up on its change.
+     */
+    private static final int MAX_FETCH_ATTEMPTS = 5;
+    /**
+     * Milliseconds before the first retry of an asynchronous fetch. Each
+     * later retry waits twice as long as the one before.
+     */
+    private static final long FETCH_RETRY_DELAY = 1000;
+    /**
+     * Longest wait before a retry of an asynchronous fetch, in milliseconds.
+     */
+    private static final long MAX_FETCH_RETRY_DELAY = 30000;
+
     /**
      * Metric registry.
      */
@@ -57,10 +99,48 @@ public class Updater<B extends Change.Batch> implements Runnable, AutoCloseable
      * milliseconds, for the IdChangeSource its ids.
      */
     private final Meter batchAdvanced = metrics.meter("batch-progress");
+    /**
+     * Meter for the number of updates skipped because their content didn't
+     * change.
+     */
+    private final Meter unchangedMeter = metrics.meter("unchanged");
+    /**
+     * Meter counting entities where the revision index disagreed with the
+     * rdf store.
+     */
+    private final Meter revisionIndexMismatchMeter = metrics.meter("revision-index-mismatch");
+    /**
+     * Time taken to poll the change source for a batch.
+     */
+    private final Timer pollTimer = metrics.timer("poll");
+    /**
+     * Time taken to fetch the RDF of a single entity.
+     */
+    private final Timer fetchTimer = metrics.timer("fetch");
+    /**
+     * Time taken to fetch the RDF of the entities of a bulk request.
+     */
+    private final Timer bulkFetchTimer = metrics.timer("bulk-fetch");
+    /**
+     * Time taken to munge the RDF of an entity.
+     */
+    private final Timer mungeTimer = metrics.timer("munge");
+    /**
+     * Number of munged statements per entity.
+     */
+    private final Histogram entityStatements = metrics.histogram("entity-statements");
+    /**
+     * Time taken to sync a batch of prepared changes to the rdf store.
+     */
+    private final Timer syncTimer = metrics.timer("sync");
     /**
      * JMX interface for metrics counters.
      */
     private final JmxReporter reporter = JmxReporter.forRegistry(metrics).build();
+    /**
+     * Http interface for metrics in the Prometheus format, null if not used.
+     */
+    private PrometheusExporter prometheusExporter;
     /**
      * Source of change batches.
      */
@@ -81,6 +161,11 @@ public class Updater<B extends Change.Batch> implements Runnable, AutoCloseable
      * The executor to use for updates.
      */
     private final ExecutorService executor;
+    /**
+     * Schedules the retries of asynchronous fetches.
+     */
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("fetch retry %s").build());
     /**
      * Seconds to wait after we hit an empty batch. Empty batches signify that
      * there aren't any changes left now but the change stream isn't over. In
@@ -92,17 +177,108 @@ public class Updater<B extends Change.Batch> implements Runnable, AutoCloseable
      */
     private final WikibaseUris uris;
     /**
-     * Map entity->values list from repository.
+     * Should we verify updates?
      */
-    private volatile ImmutableSetMultimap<String, String> repoValues;
+    private final boolean verify;
     /**
-     * Map entity->references list from repository.
+     * How many batches may be polled and prepared ahead of the batch that is
+     * currently being synced to the rdf store. Zero means that polling,
+     * fetching and syncing happen strictly one after another.
      */
-    private volatile ImmutableSetMultimap<String, String> repoRefs;
+    private int pipelineDepth;
     /**
-     * Should we verify updates?
+     * Entities that were prepared in the pipeline but are not yet synced to
+     * the rdf store. Preparing a batch that touches one of these entities must
+     * wait for the sync, otherwise it would see stale values and references.
      */
-    private final boolean verify;
+    private final Set<String> unsyncedEntities = new HashSet<>();
+    /**
+     * Last left off date written to the rdf store. Volatile because the lag
+     * gauge reads it from the metrics reporting threads.
+     */
+    private volatile Date lastLeftOffDate;
+    /**
+     * Sync fetched changes as soon as this many are ready instead of waiting
+     * for the whole batch. Zero disables streaming sync.
+     */
+    private int flushChanges;
+    /**
+     * Sync fetched changes as soon as they hold this many statements. Zero
+     * means no statement limit. Only used with streaming sync.
+     */
+    private int flushStatements;
+    /**
+     * How long to wait for the changes of a batch before deferring the
+     * remaining ones to the next batch, in milliseconds. Zero means wait for
+     * all of them. Only used with streaming sync.
+     */
+    private long batchDeadline;
+    /**
+     * Queue collecting fetched changes in completion order for streaming
+     * sync.
+     */
+    private final BlockingQueue<Future<Change>> completed = new LinkedBlockingQueue<>();
+    /**
+     * Should changes be fetched with the non-blocking wikibase client?
+     */
+    private boolean asyncFetch;
+    /**
+     * Number of entities fetched from wikibase in one request. One or less
+     * fetches every entity on its own.
+     */
+    private int bulkFetch;
+    /**
+     * Should entity RDF be munged as it is parsed instead of being collected
+     * first?
+     */
+    private boolean streamingMunge;
+    /**
+     * Decides the order in which changes are submitted for fetching.
+     */
+    private FetchScheduler scheduler = FetchScheduler.IN_ORDER;
+    /**
+     * Holds back changes to recently synced entities so only their latest
+     * revision is synced. Null if every change is synced right away.
+     */
+    private CoalescingWindow coalescingWindow;
+    /**
+     * Journal of the munged changes waiting to be synced. Null if changes
+     * aren't journaled.
+     */
+    private ChangeJournal journal;
+    /**
+     * Changes that missed the deadline of their batch and are synced with a
+     * later one, keyed by the future fetching them.
+     */
+    private final Map<Future<Change>, Change> stragglers = new HashMap<>();
+    /**
+     * Adapts the sync size and fetch thread count to the observed update
+     * cost. Null if sizes are fixed.
+     */
+    private AdaptiveBatchSizer batchSizer;
+    /**
+     * Should we store content hashes and skip syncing unchanged entities?
+     */
+    private boolean contentHashes;
+    /**
+     * Local index of the revisions synced for each entity, consulted before
+     * asking the rdf store. Null if not used.
+     */
+    private RevisionIndex revisionIndex;
+    /**
+     * Check the revision index against the rdf store every this many
+     * batches. Zero to never check.
+     */
+    private int revisionIndexCheck;
+    /**
+     * Number of batches filtered since the revision index was last checked.
+     */
+    private int uncheckedBatches;
+    /**
+     * Index of the values and references used by entities, consulted instead
+     * of asking the rdf store. Null if not used.
+     */
+    private ValueUsageIndex usageIndex;
 
     public Updater(Change.Source<B> changeSource, WikibaseRepository wikibase, RdfRepository rdfRepository,
                    Munger munger, ExecutorService executor, int pollDelay, WikibaseUris uris, boolean verify) {
@@ -114,42 +290,215 @@ public class Updater<B extends Change.Batch> implements Runnable, AutoCloseable
         this.pollDelay = pollDelay;
         this.uris = uris;
         this.verify = verify;
+        rdfRepository.registerMetrics(metrics);
+        wikibase.registerMetrics(metrics);
+        metrics.register("lag", (Gauge<Long>) this::lag);
         reporter.start();
     }
 
+    /**
+     * Set how many batches may be polled and prepared ahead of the batch being
+     * synced. With a depth greater than zero polling, fetching and munging,
+     * and syncing to the rdf store run as separate stages connected by
+     * bounded queues.
+     * @return this
+     */
+    public Updater<B> setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = pipelineDepth;
+        return this;
+    }
+
+    /**
+     * Sync fetched changes in completion order, in sub-batches of at most
+     * flushChanges changes or flushStatements statements, instead of waiting
+     * for the whole batch. Changes that aren't fetched within deadlineMillis
+     * are synced with the next batch. Only applies to the sequential update
+     * loop.
+     *
+     * @param flushChanges sub-batch size, 0 disables streaming sync
+     * @param flushStatements statement count that triggers a sync, 0 for no limit
+     * @param deadlineMillis per batch deadline, 0 to wait for all changes
+     * @return this
+     */
+    public Updater<B> setSyncFlush(int flushChanges, int flushStatements, long deadlineMillis) {
+        this.flushChanges = flushChanges;
+        this.flushStatements = flushStatements;
+        this.batchDeadline = deadlineMillis;
+        return this;
+    }
+
+    /**
+     * Adapt the number of changes per update and the number of fetch threads
+     * to the observed update cost.
+     * @return this
+     */
+    public Updater<B> setBatchSizer(AdaptiveBatchSizer batchSizer) {
+        this.batchSizer = batchSizer;
+        batchSizer.registerMetrics(metrics);
+        applyFetchThreads();
+        return this;
+    }
+
+    /**
+     * Store a hash of the content of each entity and skip syncing entities
+     * whose content is already in the rdf store, only updating their version.
+     * @return this
+     */
+    public Updater<B> setContentHashes(boolean contentHashes) {
+        this.contentHashes = contentHashes;
+        return this;
+    }
+
+    /**
+     * Filter changes with a local revision index instead of asking the rdf
+     * store about every candidate. Entities missing from the index are looked
+     * up in the store and added to it. Every checkInterval batches all
+     * candidates are looked up in the store and the index is corrected where
+     * it disagrees.
+     *
+     * @param revisionIndex the index, already checked against the store and
+     *            closed with the updater
+     * @param checkInterval batches between consistency checks, 0 to never check
+     * @return this
+     */
+    public Updater<B> setRevisionIndex(RevisionIndex revisionIndex, int checkInterval) {
+        this.revisionIndex = revisionIndex;
+        this.revisionIndexCheck = checkInterval;
+        return this;
+    }
+
+    /**
+     * Track the values and references used by entities locally instead of
+     * asking the rdf store for them before every batch, and only send nodes
+     * no other known entity uses to cleanup.
+     * @return this
+     */
+    public Updater<B> setUsageIndex(ValueUsageIndex usageIndex) {
+        this.usageIndex = usageIndex;
+        metrics.register("value-usage-index-entities", (Gauge<Integer>) usageIndex::size);
+        return this;
+    }
+
+    /**
+     * Fetch entity RDF with the non-blocking wikibase client. The executor
+     * then only parses and munges, so fetches in flight aren't limited by
+     * its thread count.
+     * @return this
+     */
+    public Updater<B> setAsyncFetch(boolean asyncFetch) {
+        this.asyncFetch = asyncFetch;
+        return this;
+    }
+
+    /**
+     * Fetch the RDF of up to idsPerRequest entities in a single request to
+     * wikibase and split the response by entity. Takes precedence over the
+     * asynchronous fetch.
+     * @return this
+     */
+    public Updater<B> setBulkFetch(int idsPerRequest) {
+        this.bulkFetch = idsPerRequest;
+        return this;
+    }
+
+    /**
+     * Munge entity RDF as it is parsed from the wikibase response instead of
+     * collecting all of it first, so only the munged statements of an entity
+     * are held in memory. Doesn't apply to bulk fetches, which need the whole
+     * response to split it.
+     * @return this
+     */
+    public Updater<B> setStreamingMunge(boolean streamingMunge) {
+        this.streamingMunge = streamingMunge;
+        return this;
+    }
+
+    /**
+     * Cache the RDF fetched from wikibase on disk so refetching a revision
+     * doesn't download it again, and publish the cache's hit rate.
+     * @return this
+     */
+    public Updater<B> setResponseCache(RdfResponseCache responseCache) {
+        wikibase.setResponseCache(responseCache);
+        responseCache.registerMetrics(metrics);
+        metrics.register("rdf-cache-entities", (Gauge<Integer>) responseCache::size);
+        return this;
+    }
+
+    /**
+     * Set the strategy deciding the order in which the changes of a batch are
+     * submitted for fetching.
+     * @return this
+     */
+    public Updater<B> setFetchScheduler(FetchScheduler scheduler) {
+        this.scheduler = scheduler;
+        return this;
+    }
+
+    /**
+     * Hold back changes to entities synced recently and sync only their
+     * latest revision once they calm down.
+     * @return this
+     */
+    public Updater<B> setCoalescingWindow(CoalescingWindow coalescingWindow) {
+        this.coalescingWindow = coalescingWindow;
+        coalescingWindow.registerMetrics(metrics);
+        return this;
+    }
+
+    /**
+     * Serve the metrics in the Prometheus text format on a port, next to JMX.
+     * @return this
+     */
+    public Updater<B> setMetricsPort(int port) {
+        PrometheusExporter exporter = new PrometheusExporter(port, metrics);
+        try {
+            exporter.start();
+        } catch (IOException e) {
+            throw new FatalException("Unable to serve metrics on port " + port, e);
+        }
+        log.info("Serving metrics on port {}", port);
+        prometheusExporter = exporter;
+        return this;
+    }
+
+    /**
+     * Journal munged changes before syncing them so the ones left unsynced
+     * by a crash are synced on restart without fetching them again.
+     * @return this
+     */
+    public Updater<B> setJournal(ChangeJournal journal) {
+        this.journal = journal;
+        metrics.register("journal-pending-batches", (Gauge<Integer>) journal::pendingCount);
+        return this;
+    }
+
     @Override
     public void run() {
+        replayJournal();
         B batch = null;
         do {
-            try {
+            try (Timer.Context time = pollTimer.time()) {
                 batch = changeSource.firstBatch();
             } catch (RetryableException e) {
                 log.warn("Retryable error fetching first batch.  Retrying.", e);
             }
         } while (batch == null);
         log.debug("{} changes in batch", batch.changes().size());
-        Date oldDate = null;
+        if (pipelineDepth > 0) {
+            runPipelined(batch);
+            return;
+        }
         while (!currentThread().isInterrupted()) {
             try {
-                handleChanges(batch.changes());
-                Date leftOffDate = batch.leftOffDate();
-                if (leftOffDate != null) {
-                    /*
-                     * Back one second because the resolution on our poll isn't
-                     * super good and because its not big deal to recheck if we
-                     * have some updates.
-                     */
-                    leftOffDate = DateUtils.addSeconds(leftOffDate, -1);
-                    if (oldDate == null || !oldDate.equals(leftOffDate)) {
-                        // Do not update repo with the same date
-                        rdfRepository.updateLeftOffTime(leftOffDate);
-                        oldDate = leftOffDate;
-                    }
+                List<Change> changes = coalesce(batch);
+                Date heldSince = heldSince();
+                if (flushChanges > 0) {
+                    streamChanges(changes, batch.last());
+                } else {
+                    handleChanges(changes);
                 }
-                // TODO wrap all retry-able exceptions in a special exception
-                batchAdvanced.mark(batch.advanced());
-                log.info("Polled up to {} at {} updates per second and {} {} per second", batch.leftOffHuman(),
-                        meterReport(updateMeter), meterReport(batchAdvanced), batch.advancedUnits());
+                batchSynced(batch, heldSince);
                 if (batch.last()) {
                     return;
                 }
@@ -163,9 +512,213 @@ public class Updater<B extends Change.Batch> implements Runnable, AutoCloseable
         }
     }
 
+    /**
+     * Run the update as a pipeline. One stage polls for batches, one fetches
+     * and munges them and the calling thread syncs them to the rdf store. The
+     * left off time is only advanced after the batch has been synced.
+     *
+     * @param firstBatch the first batch to process
+     */
+    private void runPipelined(B firstBatch) {
+        BlockingQueue<B> polled = new ArrayBlockingQueue<>(pipelineDepth);
+        BlockingQueue<PreparedBatch<B>> prepared = new ArrayBlockingQueue<>(pipelineDepth);
+        ExecutorService stages = Executors.newFixedThreadPool(2,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("update pipeline %s").build());
+        try {
+            Future<Void> poller = stages.submit(() -> {
+                pollStage(firstBatch, polled);
+                return null;
+            });
+            Future<Void> preparer = stages.submit(() -> {
+                prepareStage(polled, prepared);
+                return null;
+            });
+            while (!currentThread().isInterrupted()) {
+                PreparedBatch<B> next = prepared.poll(1, TimeUnit.SECONDS);
+                if (next == null) {
+                    checkStage(poller);
+                    checkStage(preparer);
+                    continue;
+                }
+                syncChanges(next.changes, next.journalId);
+                synchronized (unsyncedEntities) {
+                    unsyncedEntities.removeAll(next.entityIds);
+                    unsyncedEntities.notifyAll();
+                }
+                batchSynced(next.batch, next.heldSince);
+                if (next.batch.last()) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("Syncing encountered a fatal exception", e);
+        } finally {
+            stages.shutdownNow();
+        }
+    }
+
+    /**
+     * Polling stage of the pipeline.
+     *
+     * @throws InterruptedException if the process is interrupted
+     */
+    private void pollStage(B batch, BlockingQueue<B> polled) throws InterruptedException {
+        while (true) {
+            polled.put(batch);
+            if (batch.last()) {
+                return;
+            }
+            batch = nextBatch(batch);
+        }
+    }
+
+    /**
+     * Fetch and munge stage of the pipeline.
+     *
+     * @throws InterruptedException if the process is interrupted
+     * @throws ExecutionException if there is an error preparing the changes
+     */
+    private void prepareStage(BlockingQueue<B> polled, BlockingQueue<PreparedBatch<B>> prepared)
+            throws InterruptedException, ExecutionException {
+        while (true) {
+            B batch = polled.take();
+            List<Change> changes = coalesce(batch);
+            Date heldSince = heldSince();
+            Set<String> entityIds = new HashSet<>();
+            for (Change change : changes) {
+                entityIds.add(change.entityId());
+            }
+            synchronized (unsyncedEntities) {
+                while (!Collections.disjoint(unsyncedEntities, entityIds)) {
+                    unsyncedEntities.wait();
+                }
+                unsyncedEntities.addAll(entityIds);
+            }
+            List<Change> ready = prepareChanges(changes);
+            prepared.put(new PreparedBatch<>(batch, ready, entityIds, heldSince, journal(ready)));
+            if (batch.last()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Rethrow the failure of a pipeline stage, if any.
+     *
+     * @throws InterruptedException if the process is interrupted
+     * @throws ExecutionException if the stage failed
+     */
+    private void checkStage(Future<Void> stage) throws InterruptedException, ExecutionException {
+        if (stage.isDone()) {
+            stage.get();
+        }
+    }
+
+    /**
+     * Run the changes of a batch through the coalescing window.
+     *
+     * @return the changes to sync with the batch
+     */
+    private List<Change> coalesce(B batch) {
+        if (coalescingWindow == null) {
+            return batch.changes();
+        }
+        List<Change> changes = coalescingWindow.admit(batch.changes(), System.currentTimeMillis(), batch.last());
+        log.debug("{} changes left after coalescing, {} entities held", changes.size(), coalescingWindow.size());
+        return changes;
+    }
+
+    /**
+     * Timestamp of the oldest change held back by the coalescing window.
+     *
+     * @return the timestamp or null if no changes are held
+     */
+    private Date heldSince() {
+        return coalescingWindow == null ? null : coalescingWindow.oldestHeld();
+    }
+
+    /**
+     * How long until the coalescing window has held changes to release.
+     *
+     * @return milliseconds until a held change is due, 0 if one is due now and
+     *         Long.MAX_VALUE if nothing is held
+     */
+    private long untilHeldDue() {
+        return coalescingWindow == null ? Long.MAX_VALUE : coalescingWindow.untilDue(System.currentTimeMillis());
+    }
+
+    /**
+     * Record that a batch has been synced: advance the left off time in the
+     * rdf store and report progress.
+     *
+     * @param heldSince timestamp of the oldest change held back when the
+     *            batch was coalesced, null if none
+     */
+    private void batchSynced(B batch, Date heldSince) {
+        Date leftOffDate = batch.leftOffDate();
+        if (leftOffDate != null) {
+            // Don't move past changes that are still waiting to be synced
+            for (Change straggler : stragglers.values()) {
+                if (straggler.timestamp() != null && straggler.timestamp().before(leftOffDate)) {
+                    leftOffDate = straggler.timestamp();
+                }
+            }
+            // Nor past changes held back to be synced with a later batch
+            if (heldSince != null && heldSince.before(leftOffDate)) {
+                leftOffDate = heldSince;
+            }
+            /*
+             * Back one second because the resolution on our poll isn't
+             * super good and because its not big deal to recheck if we
+             * have some updates.
+             */
+            leftOffDate = DateUtils.addSeconds(leftOffDate, -1);
+            if (lastLeftOffDate == null || !lastLeftOffDate.equals(leftOffDate)) {
+                // Do not update repo with the same date
+                rdfRepository.updateLeftOffTime(leftOffDate);
+                lastLeftOffDate = leftOffDate;
+                if (revisionIndex != null) {
+                    revisionIndex.storeSynced(leftOffDate);
+                }
+            }
+        }
+        // TODO wrap all retry-able exceptions in a special exception
+        batchAdvanced.mark(batch.advanced());
+        log.info("Polled up to {} at {} updates per second and {} {} per second", batch.leftOffHuman(),
+                meterReport(updateMeter), meterReport(batchAdvanced), batch.advancedUnits());
+    }
+
+    /**
+     * How far the rdf store is behind the present.
+     *
+     * @return the lag in milliseconds or -1 if no left off time was written
+     *         yet
+     */
+    private long lag() {
+        Date leftOff = lastLeftOffDate;
+        return leftOff == null ? -1 : System.currentTimeMillis() - leftOff.getTime();
+    }
+
     @Override
     public void close() {
         executor.shutdown();
+        retryScheduler.shutdownNow();
+        reporter.stop();
+        if (prometheusExporter != null) {
+            prometheusExporter.stop();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        if (revisionIndex != null) {
+            try {
+                revisionIndex.close();
+            } catch (IOException e) {
+                log.warn("Error closing revision index", e);
+            }
+        }
     }
 
     /**
@@ -177,28 +730,25 @@ public class Updater<B extends Change.Batch> implements Runnable, AutoCloseable
      *             changes
      */
     private void handleChanges(Iterable<Change> changes) throws InterruptedException, ExecutionException {
+        syncChanges(prepareChanges(changes));
+    }
+
+    /**
+     * Fetch and munge the changes in a batch.
+     *
+     * @return the changes that are ready to be synced
+     * @throws InterruptedException if the process is interrupted while waiting
+     *             on changes to be fetched
+     * @throws ExecutionException if there is an error preparing any of the
+     *             changes
+     */
+    private List<Change> prepareChanges(Iterable<Change> changes) throws InterruptedException, ExecutionException {
         Set<Change> trueChanges = getRevisionUpdates(changes);
+        BatchContext context = loadContext(trueChanges);
         long start = System.currentTimeMillis();
 
-        List<Future<Change>> futureChanges = new ArrayList<>();
-        for (Change change : trueChanges) {
-            futureChanges.add(executor.submit(() -> {
-                while (true) {
-                    try {
-                        handleChange(change);
-                        return change;
-                    } catch (RetryableException e) {
-                        log.warn("Retryable error syncing.  Retrying.", e);
-                    } catch (ContainedException e) {
-                        log.warn("Contained error syncing.  Giving up on " + change.entityId(), e);
-                        throw e;
-                    }
-                }
-            }));
-        }
-
         List<Change> processedChanges = new ArrayList<>();
-        for (Future<Change> f : futureChanges) {
+        for (Future<Change> f : submitFetches(trueChanges, context, null).keySet()) {
             try {
                 processedChanges.add(f.get());
             } catch (ExecutionException ignore) {
@@ -206,9 +756,452 @@ public class Updater<B extends Change.Batch> implements Runnable, AutoCloseable
             }
         }
 
-        log.debug("Preparing update data took {} ms, have {} changes", System.currentTimeMillis() - start, processedChanges.size());
-        rdfRepository.syncFromChanges(processedChanges, verify);
-        updateMeter.mark(processedChanges.size());
+        long took = System.currentTimeMillis() - start;
+        log.debug("Preparing update data took {} ms, have {} changes", took, processedChanges.size());
+        if (batchSizer != null) {
+            batchSizer.prepareDone(processedChanges.size(), took);
+            applyFetchThreads();
+        }
+        return processedChanges;
+    }
+
+    /**
+     * Handle the changes in a batch, syncing them in sub-batches in the order
+     * in which they finish fetching. Changes still being fetched when the
+     * batch deadline passes are synced together with the next batch.
+     *
+     * @param lastBatch whether this is the last batch, in which case all
+     *            changes are waited for
+     * @throws InterruptedException if the process is interrupted while waiting
+     *             on changes to sync
+     */
+    private void streamChanges(Iterable<Change> changes, boolean lastBatch) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        List<Change> freshChanges = new ArrayList<>();
+        for (Change change : changes) {
+            if (!supersedeStragglers(change)) {
+                freshChanges.add(change);
+            }
+        }
+        Set<Change> trueChanges = getRevisionUpdates(freshChanges);
+        BatchContext context = loadContext(trueChanges);
+
+        Map<Future<Change>, Change> pending = new HashMap<>(stragglers);
+        stragglers.clear();
+        pending.putAll(submitFetches(trueChanges, context, completed));
+
+        long deadline = batchDeadline > 0 && !lastBatch ? start + batchDeadline : Long.MAX_VALUE;
+        List<Change> ready = new ArrayList<>();
+        int readyStatements = 0;
+        while (!pending.isEmpty()) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                break;
+            }
+            Future<Change> f = completed.poll(wait, TimeUnit.MILLISECONDS);
+            if (f == null) {
+                break;
+            }
+            if (pending.remove(f) == null) {
+                // A straggler that was cancelled because a newer change superseded it
+                continue;
+            }
+            try {
+                Change change = f.get();
+                ready.add(change);
+                readyStatements += change.getStatements().size();
+            } catch (ExecutionException ignore) {
+                // failure has already been logged
+            }
+            if (ready.size() >= flushChanges || flushStatements > 0 && readyStatements >= flushStatements) {
+                log.debug("Flushing {} changes with {} statements", ready.size(), readyStatements);
+                syncChanges(ready);
+                ready = new ArrayList<>();
+                readyStatements = 0;
+            }
+        }
+        if (!ready.isEmpty()) {
+            syncChanges(ready);
+        }
+        if (!pending.isEmpty()) {
+            log.info("{} changes missed the batch deadline, syncing them with the next batch", pending.size());
+            stragglers.putAll(pending);
+        }
+        log.debug("Streaming batch took {} ms", System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Reconcile a new change with the stragglers from previous batches.
+     * Stragglers for the same entity with an older revision are cancelled.
+     *
+     * @return true if a straggler already covers this change so it can be
+     *         skipped
+     */
+    private boolean supersedeStragglers(Change change) {
+        boolean covered = false;
+        Iterator<Map.Entry<Future<Change>, Change>> itr = stragglers.entrySet().iterator();
+        while (itr.hasNext()) {
+            Map.Entry<Future<Change>, Change> straggler = itr.next();
+            if (!straggler.getValue().entityId().equals(change.entityId())) {
+                continue;
+            }
+            if (change.revision() >= 0 && change.revision() <= straggler.getValue().revision()) {
+                covered = true;
+            } else {
+                straggler.getKey().cancel(true);
+                itr.remove();
+            }
+        }
+        return covered;
+    }
+
+    /**
+     * Start fetching and munging changes, in groups if bulk fetch is enabled.
+     *
+     * @param context values and references in the repository for the
+     *            entities in the batch
+     * @param completedQueue queue each future is added to once it completes,
+     *            null if not needed
+     * @return the changes by the future preparing them, in submission order
+     */
+    private Map<Future<Change>, Change> submitFetches(Collection<Change> changes, BatchContext context,
+            BlockingQueue<Future<Change>> completedQueue) {
+        Map<Future<Change>, Change> futures = new LinkedHashMap<>();
+        List<Change> ordered = scheduler.order(changes);
+        if (bulkFetch <= 1) {
+            for (Change change : ordered) {
+                futures.put(submitFetch(change, context, completedQueue), change);
+            }
+            return futures;
+        }
+        for (List<Change> group : Iterables.partition(ordered, bulkFetch)) {
+            Map<Change, CompletableFuture<Change>> results = new LinkedHashMap<>();
+            for (Change change : group) {
+                CompletableFuture<Change> result = new CompletableFuture<>();
+                if (completedQueue != null) {
+                    result.whenComplete((c, e) -> completedQueue.add(result));
+                }
+                results.put(change, result);
+                futures.put(result, change);
+            }
+            executor.execute(() -> fetchBulk(results, context));
+        }
+        return futures;
+    }
+
+    /**
+     * Fetch a group of changes in one request and munge each of them,
+     * retrying the request on retryable errors.
+     *
+     * @param results the changes and the futures to complete with them
+     */
+    @SuppressWarnings("checkstyle:illegalcatch")
+    private void fetchBulk(Map<Change, CompletableFuture<Change>> results, BatchContext context) {
+        Set<String> entityIds = new LinkedHashSet<>();
+        for (Change change : results.keySet()) {
+            entityIds.add(change.entityId());
+        }
+        log.debug("Processing data for {}", entityIds);
+        Map<String, Collection<Statement>> rdf;
+        while (true) {
+            try (Timer.Context time = bulkFetchTimer.time()) {
+                rdf = wikibase.fetchRdfForEntities(entityIds, uris);
+                break;
+            } catch (RetryableException e) {
+                log.warn("Retryable error syncing.  Retrying.", e);
+            } catch (RuntimeException e) {
+                log.warn("Contained error syncing.  Giving up on " + entityIds, e);
+                for (CompletableFuture<Change> result : results.values()) {
+                    result.completeExceptionally(e);
+                }
+                return;
+            }
+        }
+        for (Map.Entry<Change, CompletableFuture<Change>> entry : results.entrySet()) {
+            Change change = entry.getKey();
+            if (entry.getValue().isDone()) {
+                // Cancelled because a newer change superseded it
+                continue;
+            }
+            try {
+                Collection<Statement> statements = rdf.get(change.entityId());
+                if (statements == null) {
+                    throw new ContainedException("Wikibase returned nothing about " + change.entityId());
+                }
+                // Copied because the batch may hold more than one change to an entity
+                prepareChange(change, new ArrayList<>(statements), context);
+                entry.getValue().complete(change);
+            } catch (RuntimeException e) {
+                log.warn("Contained error syncing.  Giving up on " + change.entityId(), e);
+                entry.getValue().completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Start fetching and munging a single change.
+     *
+     * @param context values and references in the repository for the
+     *            entities in the batch
+     * @param completedQueue queue the future is added to once it completes,
+     *            null if not needed
+     * @return future of the prepared change
+     */
+    private Future<Change> submitFetch(Change change, BatchContext context,
+            BlockingQueue<Future<Change>> completedQueue) {
+        if (asyncFetch) {
+            CompletableFuture<Change> result = new CompletableFuture<>();
+            fetchAsync(change, context, result, 1);
+            if (completedQueue != null) {
+                result.whenComplete((c, e) -> completedQueue.add(result));
+            }
+            return result;
+        }
+        FutureTask<Change> task = new FutureTask<Change>(fetchTask(change, context)) {
+            @Override
+            protected void done() {
+                if (completedQueue != null) {
+                    completedQueue.add(this);
+                }
+            }
+        };
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * Fetch a change with the non-blocking wikibase client and munge it on
+     * the executor, retrying on retryable errors with an exponential backoff
+     * up to {@link #MAX_FETCH_ATTEMPTS} times.
+     *
+     * @param result completed with the prepared change
+     * @param attempt number of this attempt, starting at 1
+     */
+    @SuppressWarnings("checkstyle:illegalcatch")
+    private void fetchAsync(Change change, BatchContext context, CompletableFuture<Change> result, int attempt) {
+        log.debug("Processing data for {}", change);
+        long start = System.nanoTime();
+        CompletableFuture<?> fetched;
+        Runnable prepare;
+        if (streamingMunge) {
+            StreamingMunge munge = new StreamingMunge(change, context);
+            fetched = wikibase.fetchRdfForEntityAsync(change.entityId(), change.revision(), executor,
+                    munge.handler);
+            prepare = munge::finish;
+        } else {
+            CompletableFuture<Collection<Statement>> statements = wikibase.fetchRdfForEntityAsync(change.entityId(),
+                    change.revision(), executor);
+            fetched = statements;
+            prepare = () -> prepareChange(change, statements.join(), context);
+        }
+        fetched.whenComplete((v, e) -> {
+            if (result.isDone()) {
+                // Cancelled because a newer change superseded it
+                return;
+            }
+            Throwable failure = e instanceof CompletionException ? e.getCause() : e;
+            if (failure == null) {
+                fetchTimer.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                try {
+                    prepare.run();
+                    result.complete(change);
+                    return;
+                } catch (RuntimeException re) {
+                    failure = re;
+                }
+            }
+            if (failure instanceof RetryableException && attempt < MAX_FETCH_ATTEMPTS) {
+                long delay = Math.min(FETCH_RETRY_DELAY << (attempt - 1), MAX_FETCH_RETRY_DELAY);
+                log.warn("Retryable error syncing.  Retrying in {} ms.", delay, failure);
+                try {
+                    retryScheduler.schedule(() -> fetchAsync(change, context, result, attempt + 1), delay,
+                            TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException re) {
+                    result.completeExceptionally(re);
+                }
+            } else if (failure instanceof RetryableException) {
+                log.warn("Retryable error syncing.  Giving up on " + change.entityId() + " after " + attempt
+                        + " attempts", failure);
+                result.completeExceptionally(new ContainedException("Failed to fetch " + change.entityId() + " after "
+                        + attempt + " attempts", failure));
+            } else {
+                log.warn("Contained error syncing.  Giving up on " + change.entityId(), failure);
+                result.completeExceptionally(failure);
+            }
+        });
+    }
+
+    /**
+     * Build the task fetching and munging a single change, retrying on
+     * retryable errors.
+     *
+     * @param context values and references in the repository for the
+     *            entities in the batch
+     */
+    private Callable<Change> fetchTask(Change change, BatchContext context) {
+        return () -> {
+            while (true) {
+                try {
+                    handleChange(change, context);
+                    return change;
+                } catch (RetryableException e) {
+                    log.warn("Retryable error syncing.  Retrying.", e);
+                } catch (ContainedException e) {
+                    log.warn("Contained error syncing.  Giving up on " + change.entityId(), e);
+                    throw e;
+                }
+            }
+        };
+    }
+
+    /**
+     * Sync the batches a previous run journaled but didn't sync.
+     */
+    private void replayJournal() {
+        if (journal == null) {
+            return;
+        }
+        Map<Long, List<Change>> recovered = journal.recovered();
+        if (recovered.isEmpty()) {
+            return;
+        }
+        log.info("Syncing {} batches left unsynced in the journal", recovered.size());
+        for (Map.Entry<Long, List<Change>> batch : recovered.entrySet()) {
+            syncChanges(batch.getValue(), batch.getKey());
+        }
+    }
+
+    /**
+     * Write prepared changes to the journal.
+     *
+     * @return the journal id of the changes or -1 if they weren't journaled
+     */
+    private long journal(List<Change> processedChanges) {
+        if (journal == null || processedChanges.isEmpty()) {
+            return -1;
+        }
+        return journal.append(processedChanges);
+    }
+
+    /**
+     * Journal prepared changes and sync them to the rdf store.
+     */
+    private void syncChanges(List<Change> processedChanges) {
+        syncChanges(processedChanges, journal(processedChanges));
+    }
+
+    /**
+     * Sync prepared changes to the rdf store.
+     *
+     * @param journalId journal id of the changes, -1 if they aren't journaled
+     */
+    private void syncChanges(List<Change> processedChanges, long journalId) {
+        try (Timer.Context time = syncTimer.time()) {
+            syncChangesUntimed(processedChanges, journalId);
+        }
+    }
+
+    /**
+     * Sync prepared changes to the rdf store without timing it.
+     *
+     * @param journalId journal id of the changes, -1 if they aren't journaled
+     */
+    private void syncChangesUntimed(List<Change> processedChanges, long journalId) {
+        int processed = processedChanges.size();
+        List<Change> synced = processedChanges;
+        if (contentHashes) {
+            processedChanges = dropUnchanged(processedChanges);
+        }
+        if (batchSizer == null) {
+            rdfRepository.syncFromChanges(processedChanges, verify);
+        } else {
+            int from = 0;
+            while (from < processedChanges.size()) {
+                int to = from;
+                int statements = 0;
+                while (to < processedChanges.size() && to - from < batchSizer.syncSize()
+                        && (to == from || statements < batchSizer.targetStatements())) {
+                    Collection<Statement> changeStatements = processedChanges.get(to).getStatements();
+                    statements += changeStatements == null ? 0 : changeStatements.size();
+                    to++;
+                }
+                long start = System.currentTimeMillis();
+                rdfRepository.syncFromChanges(processedChanges.subList(from, to), verify);
+                batchSizer.syncDone(to - from, statements, System.currentTimeMillis() - start);
+                from = to;
+            }
+        }
+        if (revisionIndex != null) {
+            for (Change change : synced) {
+                if (change.revision() >= 0) {
+                    revisionIndex.put(change.entityId(), change.revision());
+                }
+            }
+        }
+        if (usageIndex != null) {
+            for (Change change : synced) {
+                if (change.getUsedNodes() != null) {
+                    usageIndex.update(change.entityId(), change.getUsedNodes());
+                }
+            }
+        }
+        updateMeter.mark(processed);
+        if (journalId >= 0) {
+            journal.synced(journalId);
+        }
+    }
+
+    /**
+     * Drop the changes whose content hash matches the one in the rdf store.
+     * Their version and modification date are still updated.
+     *
+     * @return the changes that need a full sync
+     */
+    private List<Change> dropUnchanged(List<Change> changes) {
+        List<Change> hashed = new ArrayList<>();
+        for (Change change : changes) {
+            if (change.getContentHash() != null) {
+                hashed.add(change);
+            }
+        }
+        if (hashed.isEmpty()) {
+            return changes;
+        }
+        Set<String> changed = rdfRepository.changedContent(hashed);
+        List<Change> trueChanges = new ArrayList<>(changes.size());
+        List<Change> unchanged = new ArrayList<>();
+        for (Change change : changes) {
+            if (change.getContentHash() == null || changed.contains(uris.entity() + change.entityId())) {
+                trueChanges.add(change);
+            } else {
+                unchanged.add(change);
+            }
+        }
+        if (!unchanged.isEmpty()) {
+            log.debug("Skipping {} changes with unchanged content", unchanged.size());
+            rdfRepository.updateVersions(unchanged);
+            unchangedMeter.mark(unchanged.size());
+        }
+        return trueChanges;
+    }
+
+    /**
+     * Resize the executor to the fetch thread count chosen by the batch
+     * sizer. Only thread pool executors can be resized.
+     */
+    private void applyFetchThreads() {
+        if (!(executor instanceof ThreadPoolExecutor)) {
+            return;
+        }
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+        int threads = batchSizer.fetchThreads();
+        if (threads > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(threads);
+            pool.setCorePoolSize(threads);
+        } else if (threads < pool.getMaximumPoolSize()) {
+            pool.setCorePoolSize(threads);
+            pool.setMaximumPoolSize(threads);
+        }
     }
 
     /**
@@ -220,8 +1213,6 @@ public class Updater<B extends Change.Batch> implements Runnable, AutoCloseable
     private Set<Change> getRevisionUpdates(Iterable<Change> changes) {
         // List of changes that indeed need update
         Set<Change> trueChanges = new HashSet<>();
-        // List of entity URIs that were changed
-        Set<String> changeIds = new HashSet<>();
         Map<String, Change> candidateChanges = new HashMap<>();
         for (final Change change : changes) {
             if (change.revision() >= 0) {
@@ -231,29 +1222,126 @@ public class Updater<B extends Change.Batch> implements Runnable, AutoCloseable
                 }
             } else {
                 trueChanges.add(change);
-                changeIds.add(uris.entity() + change.entityId());
             }
         }
-        if (candidateChanges.size() > 0) {
+        if (candidateChanges.size() > 0 && revisionIndex != null) {
+            filterByIndex(candidateChanges, trueChanges);
+        } else if (candidateChanges.size() > 0) {
             for (String entityId: rdfRepository.hasRevisions(candidateChanges.values())) {
                 // Cut off the entity prefix from the resulting URI
-                changeIds.add(entityId);
                 trueChanges.add(candidateChanges.get(entityId.substring(uris.entity().length())));
             }
         }
         log.debug("Filtered batch contains {} changes", trueChanges.size());
+        return trueChanges;
+    }
 
-        if (trueChanges.size() > 0) {
-            repoValues = rdfRepository.getValues(changeIds);
-            log.debug("Fetched {} values", repoValues.size());
-            repoRefs = rdfRepository.getRefs(changeIds);
-            log.debug("Fetched {} refs", repoRefs.size());
-        } else {
-            repoValues = null;
-            repoRefs = null;
+    /**
+     * Load the values and references the rdf store has for the entities about
+     * to be updated.
+     */
+    private BatchContext loadContext(Set<Change> trueChanges) {
+        if (trueChanges.isEmpty()) {
+            return BatchContext.empty(uris);
+        }
+        // List of entity URIs that were changed
+        Set<String> changeIds = new HashSet<>();
+        for (Change change : trueChanges) {
+            changeIds.add(uris.entity() + change.entityId());
         }
+        if (usageIndex != null) {
+            return loadUsage(changeIds);
+        }
+        ImmutableSetMultimap<String, String> values = rdfRepository.getValues(changeIds);
+        log.debug("Fetched {} values", values.size());
+        ImmutableSetMultimap<String, String> refs = rdfRepository.getRefs(changeIds);
+        log.debug("Fetched {} refs", refs.size());
+        return new BatchContext.Builder(uris).addStored(values, refs).build();
+    }
 
-        return trueChanges;
+    /**
+     * Load the values and references of entities from the usage index.
+     * Entities the index doesn't know yet are looked up in the rdf store and
+     * added to it.
+     *
+     * @param changeIds uris of the entities that need an update
+     */
+    private BatchContext loadUsage(Set<String> changeIds) {
+        List<String> unknown = new ArrayList<>();
+        for (String entityUri : changeIds) {
+            if (!usageIndex.knows(entityUri.substring(uris.entity().length()))) {
+                unknown.add(entityUri);
+            }
+        }
+        if (!unknown.isEmpty()) {
+            ImmutableSetMultimap<String, String> values = rdfRepository.getValues(unknown);
+            ImmutableSetMultimap<String, String> refs = rdfRepository.getRefs(unknown);
+            for (String entityUri : unknown) {
+                Set<String> nodes = new HashSet<>(values.get(entityUri));
+                nodes.addAll(refs.get(entityUri));
+                usageIndex.update(entityUri.substring(uris.entity().length()), nodes);
+            }
+        }
+        log.debug("Usage index knew {} of {} entities", changeIds.size() - unknown.size(), changeIds.size());
+        BatchContext.Builder context = new BatchContext.Builder(uris);
+        for (String entityUri : changeIds) {
+            String entityId = entityUri.substring(uris.entity().length());
+            context.add(entityId, usageIndex.nodes(entityId));
+        }
+        return context.build();
+    }
+
+    /**
+     * Filter candidate changes by the revision index. Candidates the index
+     * doesn't know about are looked up in the rdf store and added to the
+     * index. When a consistency check is due all candidates are looked up.
+     *
+     * @param candidateChanges changes with a revision by entity id
+     * @param trueChanges changes that need an update are added here
+     */
+    private void filterByIndex(Map<String, Change> candidateChanges, Set<Change> trueChanges) {
+        boolean check = revisionIndexCheck > 0 && ++uncheckedBatches >= revisionIndexCheck;
+        if (check) {
+            uncheckedBatches = 0;
+        }
+        Map<String, Long> indexed = new HashMap<>();
+        List<String> unknown = new ArrayList<>();
+        for (Change change : candidateChanges.values()) {
+            long revision = revisionIndex.get(change.entityId());
+            if (revision >= 0) {
+                indexed.put(change.entityId(), revision);
+            }
+            if (revision < 0 || check) {
+                unknown.add(change.entityId());
+            }
+        }
+        if (!unknown.isEmpty()) {
+            Map<String, Long> stored = rdfRepository.fetchRevisions(unknown);
+            for (String entityId : unknown) {
+                Long storedRevision = stored.get(entityId);
+                long revision = storedRevision == null ? -1 : storedRevision;
+                Long indexedRevision = indexed.get(entityId);
+                if (check && indexedRevision != null && indexedRevision != revision) {
+                    log.warn("Revision index has {} for {} but the rdf store has {}, correcting",
+                            indexedRevision, entityId, revision);
+                    revisionIndexMismatchMeter.mark();
+                }
+                revisionIndex.put(entityId, revision);
+                if (revision >= 0) {
+                    indexed.put(entityId, revision);
+                } else {
+                    indexed.remove(entityId);
+                }
+            }
+        }
+        log.debug("Revision index knew {} of {} candidates", candidateChanges.size() - unknown.size(),
+                candidateChanges.size());
+        for (Change change : candidateChanges.values()) {
+            Long revision = indexed.get(change.entityId());
+            if (revision == null || revision < change.revision()) {
+                trueChanges.add(change);
+            }
+        }
     }
 
     /**
@@ -265,18 +1353,25 @@ public class Updater<B extends Change.Batch> implements Runnable, AutoCloseable
     private B nextBatch(B prevBatch) throws InterruptedException {
         B batch;
         while (true) {
-            try {
+            try (Timer.Context time = pollTimer.time()) {
                 batch = changeSource.nextBatch(prevBatch);
             } catch (RetryableException e) {
                 log.warn("Retryable error fetching next batch.  Retrying.", e);
                 continue;
             }
-            if (!batch.hasAnyChanges()) {
-                log.info("Sleeping for {} secs", pollDelay);
-                Thread.sleep(pollDelay * 1000);
-                continue;
-            }
             if (batch.changes().isEmpty()) {
+                long untilDue = untilHeldDue();
+                if (untilDue == 0) {
+                    // Pass the empty batch through so it releases the held changes
+                    log.debug("Releasing held changes");
+                    return batch;
+                }
+                if (!batch.hasAnyChanges()) {
+                    long sleep = Math.min(pollDelay * 1000L, untilDue);
+                    log.info("Sleeping for {} ms", sleep);
+                    Thread.sleep(sleep);
+                    continue;
+                }
                 prevBatch = batch;
                 continue;
             }
@@ -294,20 +1389,140 @@ public class Updater<B extends Change.Batch> implements Runnable, AutoCloseable
      * <li>Sync data to the triple store.
      * </ul>
      *
+     * @param context values and references in the repository for the
+     *            entities in the batch
      * @throws RetryableException if there is a retryable error updating the rdf
      *             store
      */
-    private void handleChange(Change change) throws RetryableException {
+    private void handleChange(Change change, BatchContext context) throws RetryableException {
         log.debug("Processing data for {}", change);
-        Collection<Statement> statements = wikibase.fetchRdfForEntity(change.entityId());
-        Set<String> values = new HashSet<>(repoValues.get(change.entityId()));
-        Set<String> refs = new HashSet<>(repoRefs.get(change.entityId()));
-        munger.munge(change.entityId(), statements, values, refs, change);
+        if (streamingMunge) {
+            StreamingMunge munge = new StreamingMunge(change, context);
+            // Munging happens while parsing so it is part of the fetch time
+            try (Timer.Context time = fetchTimer.time()) {
+                wikibase.fetchRdfForEntity(change.entityId(), change.revision(), munge.handler);
+            }
+            munge.finish();
+        } else {
+            Collection<Statement> statements;
+            try (Timer.Context time = fetchTimer.time()) {
+                statements = wikibase.fetchRdfForEntity(change.entityId(), change.revision());
+            }
+            prepareChange(change, statements, context);
+        }
+    }
+
+    /**
+     * Munge the fetched RDF of a change and attach the statements and cleanup
+     * list to it.
+     *
+     * @param statements RDF fetched for the entity, munged in place
+     * @param context values and references in the repository for the
+     *            entities in the batch
+     */
+    private void prepareChange(Change change, Collection<Statement> statements, BatchContext context) {
+        Collection<String> values = context.values(change.entityId());
+        Collection<String> refs = context.refs(change.entityId());
+        Set<String> usedNodes = usageIndex == null ? null : ValueUsageIndex.nodesOf(statements, uris);
+        try (Timer.Context time = mungeTimer.time()) {
+            munger.munge(change.entityId(), statements, values, refs, change);
+        }
+        finishChange(change, statements, values, refs, usedNodes);
+    }
+
+    /**
+     * Attach munged statements and the cleanup list to a change.
+     *
+     * @param statements munged statements of the entity
+     * @param values values in the repository the entity no longer uses
+     * @param refs references in the repository the entity no longer uses
+     * @param usedNodes values and references the entity uses, null if not
+     *            tracked
+     */
+    private void finishChange(Change change, Collection<Statement> statements, Collection<String> values,
+            Collection<String> refs, Set<String> usedNodes) {
+        if (contentHashes && !statements.isEmpty()) {
+            String entityUri = uris.entity() + change.entityId();
+            String hash = ContentHash.hash(entityUri, statements, uris);
+            statements.add(ContentHash.statement(entityUri, hash));
+            change.setContentHash(hash);
+        }
         List<String> cleanupList = new ArrayList<>();
-        cleanupList.addAll(values);
-        cleanupList.addAll(refs);
+        if (usedNodes == null) {
+            cleanupList.addAll(values);
+            cleanupList.addAll(refs);
+        } else {
+            // Only clean up nodes no other entity we know of still uses
+            for (String node : Iterables.concat(values, refs)) {
+                if (!usedNodes.contains(node) && !usageIndex.usedByOthers(node, change.entityId())) {
+                    cleanupList.add(node);
+                }
+            }
+            change.setUsedNodes(usedNodes);
+        }
         change.setStatements(statements);
         change.setCleanupList(cleanupList);
+        entityStatements.update(statements.size());
+        scheduler.prepared(change);
+    }
+
+    /**
+     * Munges a change as its RDF is parsed.
+     */
+    private final class StreamingMunge {
+        /**
+         * The change being munged.
+         */
+        private final Change change;
+        /**
+         * Statements that survived munging.
+         */
+        private final List<Statement> statements = new ArrayList<>();
+        /**
+         * Values in the repository for the entity.
+         */
+        private final Collection<String> values;
+        /**
+         * References in the repository for the entity.
+         */
+        private final Collection<String> refs;
+        /**
+         * Values and references the entity uses, null if not tracked.
+         */
+        private final Set<String> usedNodes;
+        /**
+         * Handler the parsed statements are sent to.
+         */
+        private final RDFHandler handler;
+
+        StreamingMunge(Change change, BatchContext context) {
+            this.change = change;
+            values = context.values(change.entityId());
+            refs = context.refs(change.entityId());
+            RDFHandler munging = munger.mungingHandler(change.entityId(), statements, values, refs, change);
+            if (usageIndex == null) {
+                usedNodes = null;
+                handler = munging;
+            } else {
+                Set<String> nodes = new HashSet<>();
+                usedNodes = nodes;
+                handler = new DelegatingRdfHandler(munging) {
+                    @Override
+                    public void handleStatement(Statement statement) throws RDFHandlerException {
+                        ValueUsageIndex.addNode(statement, uris, nodes);
+                        super.handleStatement(statement);
+                    }
+                };
+            }
+        }
+
+        /**
+         * Attach the munged statements to the change once all of them were
+         * parsed.
+         */
+        void finish() {
+            finishChange(change, statements, values, refs, usedNodes);
+        }
     }
 
     /**
@@ -317,4 +1532,42 @@ public class Updater<B extends Change.Batch> implements Runnable, AutoCloseable
         return String.format(Locale.ROOT, "(%.1f, %.1f, %.1f)", meter.getOneMinuteRate(), meter.getFiveMinuteRate(),
                 meter.getFifteenMinuteRate());
     }
+
+    /**
+     * A batch whose changes have been fetched and munged and are waiting to be
+     * synced.
+     *
+     * @param <B> type of update batch
+     */
+    private static final class PreparedBatch<B extends Change.Batch> {
+        /**
+         * The batch the changes came from.
+         */
+        private final B batch;
+        /**
+         * The changes ready to be synced.
+         */
+        private final List<Change> changes;
+        /**
+         * Ids of all entities touched by the batch.
+         */
+        private final Set<String> entityIds;
+        /**
+         * Timestamp of the oldest change held back when the batch was
+         * coalesced, null if none.
+         */
+        private final Date heldSince;
+        /**
+         * Journal id of the changes, -1 if they aren't journaled.
+         */
+        private final long journalId;
+
+        PreparedBatch(B batch, List<Change> changes, Set<String> entityIds, Date heldSince, long journalId) {
+            this.batch = batch;
+            this.changes = changes;
+            this.entityIds = entityIds;
+            this.heldSince = heldSince;
+            this.journalId = journalId;
+        }
+    }
 }
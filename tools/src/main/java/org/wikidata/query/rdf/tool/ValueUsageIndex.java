@@ -0,0 +1,160 @@
+package org.wikidata.query.rdf.tool;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+
+/**
+ * In memory index of the value and reference nodes used by entities.
+ *
+ * Tracks the value and reference nodes each entity links to and, for each
+ * node, how many of the indexed entities use it. The updater uses it to find
+ * the nodes an entity used before a change without asking the rdf store, and
+ * to only send nodes no other entity uses to cleanup. Only the entities the
+ * updater has seen are indexed, up to a maximum, so a node's count is the
+ * number of known users. A count of zero doesn't prove nobody else uses the
+ * node, which is why the cleanup query keeps its own check.
+ */
+public class ValueUsageIndex {
+    /**
+     * Maximum number of entities to index.
+     */
+    private final int maxEntities;
+    /**
+     * Nodes used by each entity, least recently used first.
+     */
+    private final LinkedHashMap<String, Set<String>> entityNodes;
+    /**
+     * Number of indexed entities using each node.
+     */
+    private final Map<String, Integer> users = new HashMap<>();
+
+    public ValueUsageIndex(int maxEntities) {
+        this.maxEntities = maxEntities;
+        entityNodes = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Collect the value and reference nodes linked from statements and
+     * references in an entity's rdf.
+     *
+     * @param statements unmunged statements of the entity
+     * @param uris wikibase uris
+     * @return the nodes
+     */
+    public static Set<String> nodesOf(Collection<Statement> statements, WikibaseUris uris) {
+        Set<String> nodes = new HashSet<>();
+        for (Statement statement : statements) {
+            addNode(statement, uris, nodes);
+        }
+        return nodes;
+    }
+
+    /**
+     * Add the value or reference node a statement links to, if any.
+     *
+     * @param statement unmunged statement of the entity
+     * @param uris wikibase uris
+     * @param nodes the nodes collected so far
+     */
+    public static void addNode(Statement statement, WikibaseUris uris, Set<String> nodes) {
+        if (!(statement.getObject() instanceof URI)) {
+            return;
+        }
+        String subject = statement.getSubject().stringValue();
+        if (!subject.startsWith(uris.statement()) && !subject.startsWith(uris.reference())) {
+            return;
+        }
+        String object = statement.getObject().stringValue();
+        if (object.startsWith(uris.value()) || object.startsWith(uris.reference())) {
+            nodes.add(object);
+        }
+    }
+
+    /**
+     * Is this entity indexed?
+     */
+    public synchronized boolean knows(String entityId) {
+        return entityNodes.containsKey(entityId);
+    }
+
+    /**
+     * Nodes used by an entity.
+     *
+     * @return the nodes, empty if the entity isn't indexed
+     */
+    public synchronized Set<String> nodes(String entityId) {
+        Set<String> nodes = entityNodes.get(entityId);
+        return nodes == null ? Collections.<String>emptySet() : new HashSet<>(nodes);
+    }
+
+    /**
+     * Is a node used by any indexed entity other than this one?
+     */
+    public synchronized boolean usedByOthers(String node, String entityId) {
+        Integer count = users.get(node);
+        if (count == null) {
+            return false;
+        }
+        Set<String> own = entityNodes.get(entityId);
+        if (own != null && own.contains(node)) {
+            count--;
+        }
+        return count > 0;
+    }
+
+    /**
+     * Replace the nodes used by an entity.
+     *
+     * @param entityId the entity
+     * @param nodes the nodes it now uses
+     */
+    public synchronized void update(String entityId, Set<String> nodes) {
+        Set<String> old = entityNodes.remove(entityId);
+        if (old != null) {
+            release(old);
+        }
+        Set<String> copy = new HashSet<>(nodes);
+        for (String node : copy) {
+            users.merge(node, 1, Integer::sum);
+        }
+        entityNodes.put(entityId, copy);
+        evict();
+    }
+
+    /**
+     * Number of indexed entities.
+     */
+    public synchronized int size() {
+        return entityNodes.size();
+    }
+
+    /**
+     * Drop least recently used entities beyond the maximum.
+     */
+    private void evict() {
+        Iterator<Set<String>> eldest = entityNodes.values().iterator();
+        while (entityNodes.size() > maxEntities && eldest.hasNext()) {
+            release(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Decrement the user count of nodes.
+     */
+    private void release(Set<String> nodes) {
+        for (String node : nodes) {
+            users.computeIfPresent(node, (n, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+}
@@ -5,6 +5,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 
 import org.openrdf.model.Statement;
 import org.wikidata.query.rdf.tool.exception.RetryableException;
@@ -42,6 +43,17 @@ public class Change implements Comparable<Change> {
      */
     private Collection<String> cleanupList;
 
+    /**
+     * Hash of the munged content of the change, or null if not computed.
+     */
+    private String contentHash;
+
+    /**
+     * Value and reference nodes the new content of the entity links to, or
+     * null if not tracked.
+     */
+    private Set<String> usedNodes;
+
     /**
      * rcid of the change.
      */
@@ -272,4 +284,50 @@ public class Change implements Comparable<Change> {
     public void setCleanupList(Collection<String> cleanupList) {
         this.cleanupList = cleanupList;
     }
+
+    /**
+     * Copy of the change with another cleanup list.
+     * @param cleanupList the cleanup list of the copy
+     * @return the copy
+     */
+    public Change withCleanupList(Collection<String> cleanupList) {
+        Change copy = new Change(entityId, revision, timestamp, rcid);
+        copy.statements = statements;
+        copy.cleanupList = cleanupList;
+        copy.contentHash = contentHash;
+        copy.usedNodes = usedNodes;
+        return copy;
+    }
+
+    /**
+     * Return content hash.
+     * @return the hash or null if it wasn't computed
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * Set content hash.
+     * @param contentHash
+     */
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * Return the value and reference nodes used by the change.
+     * @return the nodes or null if they weren't tracked
+     */
+    public Set<String> getUsedNodes() {
+        return usedNodes;
+    }
+
+    /**
+     * Set the value and reference nodes used by the change.
+     * @param usedNodes
+     */
+    public void setUsedNodes(Set<String> usedNodes) {
+        this.usedNodes = usedNodes;
+    }
 }
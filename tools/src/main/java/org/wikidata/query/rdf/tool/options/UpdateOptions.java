@@ -25,6 +25,10 @@ public interface UpdateOptions extends OptionsUtils.BasicOptions, OptionsUtils.M
     @Option(shortName = "u", description = "URL to post updates and queries.")
     String sparqlUrl();
 
+    @Option(longName = "replicaSparqlUrl", defaultToNull = true, description = "URL of another rdf store to apply "
+            + "the same updates to, fetching and munging changes once for all of them. Can be repeated.")
+    List<String> replicaSparqlUrls();
+
     @Option(shortName = "d", defaultValue = "10", description = "Poll delay when no updates found")
     int pollDelay();
 
@@ -34,6 +38,132 @@ public interface UpdateOptions extends OptionsUtils.BasicOptions, OptionsUtils.M
     @Option(shortName = "b", defaultValue = "100", description = "Number of recent changes fetched at a time.")
     int batchSize();
 
+    @Option(defaultValue = "0", description = "Number of batches to poll and fetch ahead of the batch being synced. "
+            + "0 processes batches strictly one after another.")
+    int pipelineDepth();
+
+    @Option(defaultValue = "0", description = "Sync fetched changes in sub-batches of this size as soon as they are ready, "
+            + "in completion order. 0 syncs each batch as a whole.")
+    int flushChanges();
+
+    @Option(defaultValue = "0", description = "Also sync a sub-batch once it holds this many statements. 0 for no limit.")
+    int flushStatements();
+
+    @Option(defaultValue = "0", description = "Seconds to wait for the changes of a batch before deferring the remaining ones "
+            + "to the next batch. 0 waits for all changes.")
+    int batchDeadline();
+
+    @Option(defaultValue = "0", description = "Target SPARQL update latency in milliseconds. If set, the number of changes "
+            + "per update and the number of fetch threads adapt to it. 0 keeps them fixed.")
+    int targetUpdateLatency();
+
+    @Option(defaultValue = "200000", description = "Target number of statements per SPARQL update when --targetUpdateLatency is set.")
+    int targetUpdateStatements();
+
+    @Option(defaultValue = "0", description = "Split syncs into SPARQL updates of at most this many inserted statements. "
+            + "0 for no limit.")
+    int syncChunkStatements();
+
+    @Option(defaultValue = "0", description = "Split syncs into SPARQL updates of at most this many entities. 0 for no limit.")
+    int syncChunkEntities();
+
+    @Option(defaultValue = "1", description = "Number of sync chunks sent to the triple store concurrently.")
+    int syncChunkConcurrency();
+
+    @Option(defaultValue = "64", description = "Maximum number of connections open to each triple store. Should be at "
+            + "least --syncChunkConcurrency.")
+    int httpMaxConnections();
+
+    @Option(defaultValue = "1024", description = "Maximum number of requests waiting for a connection to a triple store.")
+    int httpMaxQueuedRequests();
+
+    @Option(defaultValue = "0", description = "Milliseconds an idle connection to a triple store is kept alive. 0 to keep "
+            + "it until the triple store closes it.")
+    long httpIdleTimeout();
+
+    @Option(description = "Sync by diffing against the stored triples and sending only INSERT DATA / DELETE DATA.")
+    boolean diffSync();
+
+    @Option(description = "Sync by posting the inserted statements as RDF to the REST API of the triple store instead "
+            + "of in the SPARQL update. Deletes and the cleanup of values still use SPARQL. These are separate "
+            + "requests rather than one transaction, so queries can briefly see an entity with its old statements "
+            + "deleted and its new ones not yet inserted. Can't be used with --syncChunkConcurrency above 1.")
+    boolean rdfInsert();
+
+    @Option(description = "Gzip the RDF posted with --rdfInsert. The triple store must decode gzipped requests, "
+            + "see the gzip-request-filter in its web.xml.")
+    boolean rdfInsertGzip();
+
+    @Option(description = "Sync by posting the changed entities to the entity sync servlet of the triple store, which "
+            + "replaces them directly in its indexes. The triple store must have the servlet deployed.")
+    boolean nativeSync();
+
+    @Option(description = "Store a hash of each entity's content and skip syncing entities whose content didn't change.")
+    boolean contentHash();
+
+    @Option(defaultToNull = true, description = "Directory of a local index of synced revisions, used to skip asking the "
+            + "triple store for revisions. It is discarded on startup if it was built against another triple store "
+            + "or the triple store is behind it, for example after a reload. Can't be used with --replicaSparqlUrl.")
+    String revisionIndex();
+
+    @Option(defaultValue = "0", description = "Check the revision index against the triple store every this many batches. "
+            + "0 to never check.")
+    int revisionIndexCheck();
+
+    @Option(defaultValue = "0", description = "Track the values and references used by up to this many entities in memory "
+            + "instead of querying the triple store for them before each batch. 0 to always query.")
+    int valueUsageIndex();
+
+    @Option(defaultValue = "0", description = "Fetch entity RDF with a non-blocking client keeping up to this many "
+            + "connections to wikibase. 0 to fetch with blocking requests from the fetch threads.")
+    int asyncFetchConnections();
+
+    @Option(defaultValue = "0", description = "Fetch the RDF of up to this many entities in one request to wikibase. "
+            + "The first such request probes whether wikibase supports it and falls back to one request per entity "
+            + "if it doesn't. 0 to fetch one entity per request.")
+    int bulkFetch();
+
+    @Option(description = "Munge entity RDF as it is parsed instead of collecting it first, to use less memory per entity.")
+    boolean streamingMunge();
+
+    @Option(defaultToNull = true, description = "Directory of an on-disk cache of the RDF fetched from wikibase, so "
+            + "refetching the same revision doesn't download it again.")
+    String rdfCache();
+
+    @Option(defaultValue = "100000", description = "Maximum number of entities in the RDF cache.")
+    int rdfCacheSize();
+
+    @Option(defaultValue = "0", description = "Fetch the largest changes of a batch first, guessing sizes from the "
+            + "statement counts of up to this many recently updated entities. 0 to fetch in arrival order.")
+    int largestFirst();
+
+    @Option(defaultValue = "0", description = "Hold back changes to entities synced less than this many seconds ago "
+            + "and sync only their latest revision once they have been quiet that long. 0 to sync every change.")
+    int coalesceWindow();
+
+    @Option(defaultValue = "300", description = "Longest time in seconds a change is held back by the coalescing "
+            + "window.")
+    int coalesceMaxDelay();
+
+    @Option(defaultToNull = true, description = "Directory of a journal of munged changes. Changes are written to it "
+            + "before they are synced, and changes left unsynced by a crash are synced on restart.")
+    String journal();
+
+    @Option(defaultValue = "64", description = "Size of journal segment files in megabytes, at most 2047.")
+    int journalSegmentSize();
+
+    @Option(description = "Keep synced changes in the journal so they can be replayed with --replayJournal. The "
+            + "journal then grows without bounds.")
+    boolean journalRetain();
+
+    @Option(description = "Sync every batch recorded in the journal to the rdf store, report the time taken and "
+            + "exit, for example to compare the performance of rdf stores.")
+    boolean replayJournal();
+
+    @Option(defaultValue = "0", description = "Serve the updater metrics in the Prometheus text format on this port "
+            + "at /metrics. 0 to only export them over JMX.")
+    int metricsPort();
+
     @Option(shortName = "V", longName = "verify", description = "Verify updates (may have performance impact)")
     boolean verify();
 
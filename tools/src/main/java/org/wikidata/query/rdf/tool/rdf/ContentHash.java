@@ -0,0 +1,79 @@
+package org.wikidata.query.rdf.tool.rdf;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.openrdf.model.Statement;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.StatementImpl;
+import org.openrdf.model.impl.URIImpl;
+import org.wikidata.query.rdf.common.uri.Ontology;
+import org.wikidata.query.rdf.common.uri.SchemaDotOrg;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Computes a stable hash of the munged content of an entity.
+ *
+ * The hash doesn't depend on statement order and ignores the revision and
+ * modification date of the entity, so a null edit or a revert hashes the same
+ * as the content already in the store. Values and references are ignored too:
+ * their uris are derived from their content and the munger drops the ones
+ * already in the store, so including them would make the hash depend on the
+ * state of the store.
+ */
+public final class ContentHash {
+    /**
+     * Hash the content of an entity.
+     *
+     * @param entityUri uri of the entity
+     * @param statements munged statements of the entity
+     * @param uris wikibase uris
+     * @return hex encoded hash
+     */
+    public static String hash(String entityUri, Collection<Statement> statements, WikibaseUris uris) {
+        List<String> lines = new ArrayList<>(statements.size());
+        for (Statement statement : statements) {
+            String subject = statement.getSubject().stringValue();
+            if (subject.startsWith(uris.value()) || subject.startsWith(uris.reference())) {
+                continue;
+            }
+            if (subject.equals(entityUri) && isVolatile(statement.getPredicate().stringValue())) {
+                continue;
+            }
+            lines.add(subject + ' ' + statement.getPredicate().stringValue() + ' ' + statement.getObject());
+        }
+        Collections.sort(lines);
+        Hasher hasher = Hashing.sha256().newHasher();
+        for (String line : lines) {
+            hasher.putString(line, Charsets.UTF_8).putChar('\n');
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Build the statement storing the hash of an entity.
+     */
+    public static Statement statement(String entityUri, String hash) {
+        return new StatementImpl(new URIImpl(entityUri), new URIImpl(Ontology.CONTENT_HASH), new LiteralImpl(hash));
+    }
+
+    /**
+     * Is this a predicate of the entity that changes with every edit
+     * regardless of content?
+     */
+    private static boolean isVolatile(String predicate) {
+        return predicate.equals(SchemaDotOrg.VERSION)
+                || predicate.equals(SchemaDotOrg.DATE_MODIFIED)
+                || predicate.equals(Ontology.CONTENT_HASH);
+    }
+
+    private ContentHash() {
+        // Uncallable utility constructor
+    }
+}
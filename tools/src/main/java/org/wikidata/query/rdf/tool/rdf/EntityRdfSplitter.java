@@ -0,0 +1,135 @@
+package org.wikidata.query.rdf.tool.rdf;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Statement;
+import org.openrdf.model.Value;
+import org.wikidata.query.rdf.common.uri.SchemaDotOrg;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+import org.wikidata.query.rdf.common.uri.WikibaseUris.PropertyType;
+
+/**
+ * Splits the RDF of several entities fetched in one request into the RDF of
+ * each entity, as if they had been fetched one at a time.
+ *
+ * A subject belongs to an entity if it is the entity itself, its entity data
+ * node, one of its site links, or if it can be reached from one of those
+ * through statement, reference, value, novalue or blank nodes. Value and
+ * reference nodes can belong to several entities and are copied to each of
+ * them. Triples about subjects that belong to no entity, like ontology
+ * declarations, are copied to every entity that has some RDF of its own.
+ */
+public final class EntityRdfSplitter {
+    /**
+     * Split RDF by entity.
+     *
+     * @param statements RDF of all the entities
+     * @param entityIds ids of the entities
+     * @param uris wikibase uris
+     * @return the RDF of each entity by id, empty for entities without any
+     */
+    public static Map<String, Collection<Statement>> split(Collection<Statement> statements,
+            Collection<String> entityIds, WikibaseUris uris) {
+        Map<String, Set<String>> owners = new HashMap<>();
+        for (String entityId : entityIds) {
+            owners.put(uris.entity() + entityId, Collections.singleton(entityId));
+            owners.put(uris.entityData() + entityId, Collections.singleton(entityId));
+            owners.put(uris.entityDataHttps() + entityId, Collections.singleton(entityId));
+        }
+        // Site links point at their entity so they have to be found backwards
+        for (Statement statement : statements) {
+            if (statement.getPredicate().stringValue().equals(SchemaDotOrg.ABOUT)) {
+                Set<String> entity = owners.get(statement.getObject().stringValue());
+                if (entity != null) {
+                    addOwners(owners, statement.getSubject().stringValue(), entity);
+                }
+            }
+        }
+        // Spread ownership along links until nothing changes
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Statement statement : statements) {
+                Set<String> subjectOwners = owners.get(statement.getSubject().stringValue());
+                if (subjectOwners == null || !isOwnable(statement, uris)) {
+                    continue;
+                }
+                changed |= addOwners(owners, statement.getObject().stringValue(), subjectOwners);
+            }
+        }
+
+        Map<String, List<Statement>> split = new LinkedHashMap<>();
+        for (String entityId : entityIds) {
+            split.put(entityId, new ArrayList<Statement>());
+        }
+        List<Statement> shared = new ArrayList<>();
+        for (Statement statement : statements) {
+            Set<String> subjectOwners = owners.get(statement.getSubject().stringValue());
+            if (subjectOwners == null) {
+                shared.add(statement);
+                continue;
+            }
+            for (String owner : subjectOwners) {
+                split.get(owner).add(statement);
+            }
+        }
+        Map<String, Collection<Statement>> result = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Statement>> entity : split.entrySet()) {
+            if (!entity.getValue().isEmpty()) {
+                entity.getValue().addAll(shared);
+            }
+            result.put(entity.getKey(), entity.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Does the object of this statement belong to whoever owns its subject?
+     */
+    private static boolean isOwnable(Statement statement, WikibaseUris uris) {
+        Value object = statement.getObject();
+        if (object instanceof BNode) {
+            return true;
+        }
+        if (statement.getPredicate().stringValue().equals(SchemaDotOrg.IS_PART_OF)) {
+            // The site of a site link
+            return true;
+        }
+        String uri = object.stringValue();
+        return uri.startsWith(uris.statement()) || uri.startsWith(uris.reference()) || uri.startsWith(uris.value())
+                || uri.startsWith(uris.property(PropertyType.NOVALUE));
+    }
+
+    /**
+     * Add owners to a subject.
+     *
+     * @return true if the subject got a new owner
+     */
+    private static boolean addOwners(Map<String, Set<String>> owners, String subject, Set<String> newOwners) {
+        Set<String> current = owners.get(subject);
+        if (current == null) {
+            owners.put(subject, newOwners);
+            return true;
+        }
+        if (current.containsAll(newOwners)) {
+            return false;
+        }
+        Set<String> merged = new HashSet<>(current);
+        merged.addAll(newOwners);
+        owners.put(subject, merged);
+        return true;
+    }
+
+    private EntityRdfSplitter() {
+        // Uncallable utility constructor
+    }
+}
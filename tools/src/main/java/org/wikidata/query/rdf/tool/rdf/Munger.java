@@ -29,6 +29,8 @@ import org.openrdf.model.impl.NumericLiteralImpl;
 import org.openrdf.model.impl.StatementImpl;
 import org.openrdf.model.impl.URIImpl;
 import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.helpers.RDFHandlerBase;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wikidata.query.rdf.common.WikibasePoint;
@@ -250,6 +252,67 @@ public class Munger {
         munge(entityId, statements, Collections.EMPTY_SET, Collections.EMPTY_SET, null);
     }
 
+    /**
+     * Build a handler that munges statements as they are parsed, instead of
+     * parsing them all into a collection and munging that. Only the statements
+     * that survive munging are kept, so large entities aren't held in memory
+     * twice. If the handler doesn't see any statement the entity is deleted
+     * and the munged statements stay empty.
+     *
+     * @param munged collection receiving the munged statements
+     * @param existingValues Existing value statements
+     * @param existingRefs Existing reference statements
+     * @param sourceChange Change that originated the operation, may be null
+     * @return the handler
+     */
+    public RDFHandler mungingHandler(String entityId, Collection<Statement> munged,
+            Collection<String> existingValues, Collection<String> existingRefs, Change sourceChange) {
+        MungeOperation op = new MungeOperation(entityId, munged, existingValues, existingRefs);
+        if (sourceChange != null) {
+            op.importFromChange(sourceChange);
+        }
+        return new MungingRdfHandler(op);
+    }
+
+    /**
+     * Handler feeding statements to a munge operation as they are parsed.
+     */
+    private static final class MungingRdfHandler extends RDFHandlerBase {
+        /**
+         * The munge operation.
+         */
+        private final MungeOperation op;
+        /**
+         * Have we seen any statement?
+         */
+        private boolean seenStatement;
+
+        MungingRdfHandler(MungeOperation op) {
+            this.op = op;
+        }
+
+        @Override
+        public void handleStatement(Statement statement) {
+            seenStatement = true;
+            Statement munged = op.munge(statement);
+            if (munged != null) {
+                op.statements.add(munged);
+            }
+        }
+
+        @Override
+        public void endRDF() {
+            if (!seenStatement) {
+                // No statements is a delete.
+                return;
+            }
+            op.finish();
+            // remove all values that we have seen as they are used by statements
+            op.existingValues.removeAll(op.extraValidSubjects);
+            op.existingRefs.removeAll(op.extraValidSubjects);
+        }
+    }
+
     /**
      * Holds state during a single munge operation.
      */
@@ -394,37 +457,49 @@ public class Munger {
         public void munge() {
             Iterator<Statement> itr = statements.iterator();
             while (itr.hasNext()) {
-                statement = itr.next();
-                if (formatHandler != null) {
-                    Statement handled = formatHandler.handle(statement);
-                    if (handled == null) {
-                        // drop it
-                        itr.remove();
-                        continue;
-                    } else {
-                        if (!handled.equals(statement)) {
-                            // modified
-                            itr.remove();
-                            statement = handled;
-                            if (statement()) {
-                                // if we accept it in modified form, add back
-                                restoredStatements.add(statement);
-                                continue;
-                            }
-                        }
+                Statement original = itr.next();
+                Statement munged = munge(original);
+                if (munged != original) {
+                    itr.remove();
+                    if (munged != null) {
+                        // if we accept it in modified form, add back
+                        restoredStatements.add(munged);
                     }
                 }
-                if (!statement()) {
-                    itr.remove();
+            }
+            finish();
+        }
+
+        /**
+         * Munge a single statement.
+         *
+         * @return the statement to keep, which may be a modified copy of the
+         *         original, or null to remove it
+         */
+        private Statement munge(Statement original) {
+            statement = original;
+            if (formatHandler != null) {
+                statement = formatHandler.handle(original);
+                if (statement == null) {
+                    // drop it
+                    return null;
                 }
-                // Check object length, cut if needed.
-                final Statement shortStatement = checkObjectLength();
-                if (shortStatement != null) {
-                    itr.remove();
-                    restoredStatements.add(shortStatement);
+                if (statement.equals(original)) {
+                    statement = original;
                 }
             }
+            if (!statement()) {
+                return null;
+            }
+            // Check object length, cut if needed.
+            final Statement shortStatement = checkObjectLength();
+            return shortStatement == null ? statement : shortStatement;
+        }
 
+        /**
+         * Finish munging once all statements have been seen.
+         */
+        private void finish() {
             statement = null;
             finishSingleLabelMode();
             finishCommon();
@@ -2,25 +2,43 @@ package org.wikidata.query.rdf.tool.rdf;
 
 import static com.google.common.collect.Sets.newHashSetWithExpectedSize;
 import static com.google.common.io.Resources.getResource;
+import static org.wikidata.query.rdf.common.EntitySyncFormat.writeString;
 
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URI;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 import javax.xml.datatype.DatatypeConfigurationException;
 import javax.xml.datatype.DatatypeFactory;
@@ -31,23 +49,42 @@ import org.eclipse.jetty.client.HttpProxy;
 import org.eclipse.jetty.client.ProxyConfiguration;
 import org.eclipse.jetty.client.api.ContentResponse;
 import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.util.BytesContentProvider;
 import org.eclipse.jetty.client.util.FormContentProvider;
+import org.eclipse.jetty.client.util.FutureResponseListener;
+import org.eclipse.jetty.client.util.InputStreamResponseListener;
+import org.eclipse.jetty.client.util.OutputStreamContentProvider;
 import org.eclipse.jetty.http.HttpMethod;
 import org.eclipse.jetty.http.HttpStatus;
 import org.eclipse.jetty.util.Fields;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.openrdf.model.BNode;
 import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
 import org.openrdf.model.Statement;
+import org.openrdf.model.Value;
+import org.openrdf.model.datatypes.XMLDatatypeUtil;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.StatementImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.query.AbstractTupleQueryResultHandler;
 import org.openrdf.query.Binding;
 import org.openrdf.query.BindingSet;
 import org.openrdf.query.QueryEvaluationException;
 import org.openrdf.query.QueryResultHandlerException;
 import org.openrdf.query.TupleQueryResult;
+import org.openrdf.query.TupleQueryResultHandler;
 import org.openrdf.query.impl.TupleQueryResultBuilder;
 import org.openrdf.query.resultio.QueryResultParseException;
 import org.openrdf.query.resultio.binary.BinaryQueryResultParser;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFWriter;
+import org.openrdf.rio.Rio;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.wikidata.query.rdf.common.EntitySyncFormat;
 import org.wikidata.query.rdf.common.uri.Ontology;
 import org.wikidata.query.rdf.common.uri.Provenance;
 import org.wikidata.query.rdf.common.uri.SchemaDotOrg;
@@ -56,6 +93,10 @@ import org.wikidata.query.rdf.tool.change.Change;
 import org.wikidata.query.rdf.tool.exception.ContainedException;
 import org.wikidata.query.rdf.tool.exception.FatalException;
 
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.core.JsonParseException;
@@ -70,8 +111,13 @@ import com.github.rholder.retry.RetryerBuilder;
 import com.github.rholder.retry.StopStrategies;
 import com.github.rholder.retry.WaitStrategies;
 import com.google.common.base.Charsets;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.SetMultimap;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
@@ -105,35 +151,55 @@ public class RdfRepository implements AutoCloseable {
     /**
      * SPARQL for a portion of the update.
      */
-    private final String syncBody;
+    private final UpdateTemplate syncBody;
     /**
      * SPARQL for a portion of the update, batched sync.
      */
-    private final String msyncBody;
+    private final UpdateTemplate msyncBody;
     /**
      * SPARQL for a portion of the update.
      */
-    private final String getValues;
+    private final UpdateTemplate getValues;
     /**
      * SPARQL for a portion of the update.
      */
-    private final String getRefs;
+    private final UpdateTemplate getRefs;
     /**
      * SPARQL for a portion of the update.
      */
-    private final String cleanUnused;
+    private final UpdateTemplate cleanUnused;
     /**
      * SPARQL to sync the left off time.
      */
-    private final String updateLeftOffTimeBody;
+    private final UpdateTemplate updateLeftOffTimeBody;
     /**
      * SPARQL to filter entities for newer revisions.
      */
-    private final String getRevisions;
+    private final UpdateTemplate getRevisions;
     /**
      * SPARQL to verify update worked.
      */
-    private final String verify;
+    private final UpdateTemplate verify;
+    /**
+     * SPARQL to fetch all triples owned by a set of entities.
+     */
+    private final UpdateTemplate getEntityTriples;
+    /**
+     * SPARQL for a sync sending only the differences.
+     */
+    private final UpdateTemplate diffSyncBody;
+    /**
+     * SPARQL to update the version of entities without touching their content.
+     */
+    private final UpdateTemplate updateVersions;
+    /**
+     * SPARQL to fetch the revisions of a set of entities.
+     */
+    private final UpdateTemplate getEntityRevisions;
+    /**
+     * SPARQL for the deletes of a multiSync, for syncs inserting RDF.
+     */
+    private final UpdateTemplate multiDeleteBody;
 
     /**
      * How many times we retry a failed HTTP call.
@@ -146,6 +212,41 @@ public class RdfRepository implements AutoCloseable {
      */
     private int delay = 1000;
 
+    /**
+     * Maximum number of inserted statements in a single sync update. Zero
+     * means no limit.
+     */
+    private int maxChunkStatements;
+    /**
+     * Maximum number of entities in a single sync update. Zero means no
+     * limit.
+     */
+    private int maxChunkEntities;
+    /**
+     * Executor for sending sync chunks concurrently. Null if chunks are sent
+     * one after another.
+     */
+    private ExecutorService chunkExecutor;
+    /**
+     * Should syncs compute the difference with the stored triples and only
+     * send that?
+     */
+    private boolean diffSync;
+    /**
+     * Should syncs post the inserted statements as RDF instead of in the
+     * SPARQL update?
+     */
+    private boolean rdfInsert;
+    /**
+     * Should the RDF posted by syncs be gzipped?
+     */
+    private boolean rdfInsertGzip;
+    /**
+     * Uri of the entity sync servlet syncs are posted to, null if syncs go
+     * through SPARQL.
+     */
+    private URI entitySyncUri;
+
     /**
      * Configuration name for proxy host.
      */
@@ -169,6 +270,31 @@ public class RdfRepository implements AutoCloseable {
      * Retryer for fetching data from RDF store.
      */
     private final Retryer<ContentResponse> retryer;
+    /**
+     * Retryer for sending queries whose results are streamed.
+     */
+    private final Retryer<InputStreamResponseListener> streamRetryer;
+
+    /**
+     * Parses update responses and records the timings Blazegraph reports.
+     */
+    private final UpdateCountResponse updateCountResponse = new UpdateCountResponse();
+    /**
+     * Time taken by SPARQL updates, as seen by the client.
+     */
+    private final Timer updateTimer = new Timer();
+    /**
+     * Time taken by SPARQL queries, as seen by the client.
+     */
+    private final Timer queryTimer = new Timer();
+    /**
+     * Size of SPARQL updates in characters.
+     */
+    private final Histogram updateSize = new Histogram(new ExponentiallyDecayingReservoir());
+    /**
+     * Time taken verifying syncs.
+     */
+    private final Timer verifyTimer = new Timer();
 
     public RdfRepository(URI uri, WikibaseUris uris) {
         this.uri = uri;
@@ -181,17 +307,30 @@ public class RdfRepository implements AutoCloseable {
         cleanUnused = loadBody("CleanUnused");
         getRevisions = loadBody("GetRevisions");
         verify = loadBody("verify");
+        getEntityTriples = loadBody("GetEntityTriples");
+        diffSyncBody = loadBody("diffSync");
+        multiDeleteBody = loadBody("multiDelete");
+        updateVersions = loadBody("updateVersions");
+        getEntityRevisions = loadBody("GetEntityRevisions");
 
         timeout = Integer.parseInt(System.getProperty(TIMEOUT_PROPERTY, "-1"));
         httpClient = new HttpClient(new SslContextFactory(true/* trustAll */));
         setupHttpClient();
 
-        retryer = RetryerBuilder.<ContentResponse>newBuilder()
+        retryer = newRetryer();
+        streamRetryer = newRetryer();
+    }
+
+    /**
+     * Build a retryer for requests to the RDF store.
+     */
+    private <R> Retryer<R> newRetryer() {
+        return RetryerBuilder.<R>newBuilder()
                 .retryIfExceptionOfType(TimeoutException.class)
                 .retryIfExceptionOfType(ExecutionException.class)
                 .retryIfExceptionOfType(IOException.class)
                 .retryIfRuntimeException()
-                .withWaitStrategy(WaitStrategies.exponentialWait(delay, 10, TimeUnit.SECONDS))
+                .withWaitStrategy(WaitStrategies.exponentialWait(delay, MAX_RETRY_DELAY, TimeUnit.MILLISECONDS))
                 .withStopStrategy(StopStrategies.stopAfterAttempt(maxRetries))
                 .withRetryListener(new RetryListener() {
                     @Override
@@ -236,9 +375,30 @@ public class RdfRepository implements AutoCloseable {
      */
     @Override
     public void close() throws Exception {
+        if (chunkExecutor != null) {
+            chunkExecutor.shutdown();
+        }
         httpClient.stop();
     }
 
+    /**
+     * URI of the SPARQL endpoint of the repository.
+     */
+    public URI getUri() {
+        return uri;
+    }
+
+    /**
+     * Publish metrics about the requests sent to the repository.
+     */
+    public void registerMetrics(MetricRegistry metrics) {
+        metrics.register("rdf-update", updateTimer);
+        metrics.register("rdf-query", queryTimer);
+        metrics.register("rdf-update-size", updateSize);
+        metrics.register("rdf-verify", verifyTimer);
+        updateCountResponse.registerMetrics(metrics);
+    }
+
     /**
      * Get max retries count.
      * @return How many times we retry a failed HTTP call.
@@ -275,18 +435,109 @@ public class RdfRepository implements AutoCloseable {
         return this;
     }
 
+    /**
+     * Limit the size of a single sync update. Larger batches are split into
+     * several updates, each of which is retried on its own.
+     * @param maxStatements maximum number of inserted statements per update,
+     *            zero for no limit
+     * @param maxEntities maximum number of entities per update, zero for no
+     *            limit
+     * @return this
+     */
+    public RdfRepository setChunkLimits(int maxStatements, int maxEntities) {
+        this.maxChunkStatements = maxStatements;
+        this.maxChunkEntities = maxEntities;
+        return this;
+    }
+
+    /**
+     * Send the chunks of a sync concurrently, using up to this many
+     * connections.
+     * @return this
+     */
+    public RdfRepository setChunkConcurrency(int concurrency) {
+        if (chunkExecutor != null) {
+            chunkExecutor.shutdown();
+            chunkExecutor = null;
+        }
+        if (concurrency > 1) {
+            chunkExecutor = Executors.newFixedThreadPool(concurrency,
+                    new ThreadFactoryBuilder().setDaemon(true).setNameFormat("rdf sync %s").build());
+        }
+        return this;
+    }
+
+    /**
+     * Sync by fetching the triples currently stored for the entities and
+     * sending only the statements to delete and to insert, instead of having
+     * the triple store work out the difference.
+     * @return this
+     */
+    public RdfRepository setDiffSync(boolean diffSync) {
+        this.diffSync = diffSync;
+        return this;
+    }
+
+    /**
+     * Sync by deleting the out of date triples with SPARQL, posting the new
+     * statements as RDF to the REST API and then cleaning up unused values
+     * and references with SPARQL. This saves escaping, encoding and parsing
+     * the inserted statements as SPARQL on both sides. Chunks must be synced
+     * one at a time: the cleanup of one chunk would remove values another
+     * chunk reuses between its delete and its insert.
+     * @param gzip gzip the posted RDF, the store must decode gzipped
+     *            requests
+     * @return this
+     */
+    public RdfRepository setRdfInsert(boolean gzip) {
+        this.rdfInsert = true;
+        this.rdfInsertGzip = gzip;
+        return this;
+    }
+
+    /**
+     * Sync by posting the changes to the entity sync servlet of the store,
+     * which replaces the entities directly in its indexes in one transaction
+     * instead of evaluating SPARQL updates. The store must have the servlet
+     * deployed next to the SPARQL endpoint.
+     * @return this
+     */
+    public RdfRepository setNativeSync(boolean nativeSync) {
+        this.entitySyncUri = nativeSync ? entitySyncUri(uri) : null;
+        return this;
+    }
+
+    /**
+     * Tune the pool of connections to the rdf store. Connections are kept
+     * alive between requests until they've been idle for idleTimeout. Must be
+     * called before sending any request because the pool is created with the
+     * first one.
+     * @param maxConnections maximum number of connections open at once
+     * @param maxQueuedRequests maximum number of requests waiting for a
+     *            connection, further requests fail right away
+     * @param idleTimeout milliseconds an unused connection is kept open, zero
+     *            to keep it open until the store closes it
+     * @return this
+     */
+    public RdfRepository setConnectionPool(int maxConnections, int maxQueuedRequests, long idleTimeout) {
+        httpClient.setMaxConnectionsPerDestination(maxConnections);
+        httpClient.setMaxRequestsQueuedPerDestination(maxQueuedRequests);
+        httpClient.setIdleTimeout(idleTimeout);
+        return this;
+    }
+
     /**
      * Loads some sparql.
      *
      * @param name name of the sparql file to load - the actual file loaded is
      *            RdfRepository.%name%.sparql.
-     * @return contents of the sparql file
+     * @return contents of the sparql file, parsed as a template
      * @throws FatalException if there is an error loading the file
      */
-    private static String loadBody(String name) {
+    private static UpdateTemplate loadBody(String name) {
         URL url = getResource(RdfRepository.class, "RdfRepository." + name + ".sparql");
         try {
-            return Resources.toString(url, Charsets.UTF_8);
+            return new UpdateTemplate(Resources.toString(url, Charsets.UTF_8));
         } catch (IOException e) {
             throw new FatalException("Can't load " + url, e);
         }
@@ -295,49 +546,38 @@ public class RdfRepository implements AutoCloseable {
     /**
      * Collect results of the query into string set.
      *
-     * @param result Result object
+     * @param query Query to run
      * @param binding Binding name to collect
      * @return Collection of strings resulting from the query.
      */
-    private Set<String> resultToSet(TupleQueryResult result, String binding) {
+    private Set<String> resultToSet(String query, String binding) {
         HashSet<String> values = new HashSet<String>();
-        try {
-            while (result.hasNext()) {
-                Binding value = result.next().getBinding(binding);
-                if (value == null) {
-                    continue;
-                }
+        forEachResult(query, bindings -> {
+            Binding value = bindings.getBinding(binding);
+            if (value != null) {
                 values.add(value.getValue().stringValue());
             }
-        } catch (QueryEvaluationException e) {
-            throw new FatalException("Can't load results: " + e, e);
-        }
+        });
         return values;
     }
 
     /**
      * Collect results of the query into a multimap by first parameter.
      *
-     * @param result Result object
+     * @param query Query to run
      * @param keyBinding Binding name to serve as key
      * @param valueBinding Binding name to serve as values
      * @return Collection of strings resulting from the query.
      */
-    private ImmutableSetMultimap<String, String> resultToMap(TupleQueryResult result, String keyBinding, String valueBinding) {
+    private ImmutableSetMultimap<String, String> resultToMap(String query, String keyBinding, String valueBinding) {
         ImmutableSetMultimap.Builder<String, String> values = ImmutableSetMultimap.builder();
-        try {
-            while (result.hasNext()) {
-                BindingSet bindings = result.next();
-                Binding value = bindings.getBinding(valueBinding);
-                Binding key = bindings.getBinding(keyBinding);
-                if (value == null || key == null) {
-                    continue;
-                }
+        forEachResult(query, bindings -> {
+            Binding value = bindings.getBinding(valueBinding);
+            Binding key = bindings.getBinding(keyBinding);
+            if (value != null && key != null) {
                 values.put(key.getValue().stringValue(), value.getValue().stringValue());
             }
-        } catch (QueryEvaluationException e) {
-            throw new FatalException("Can't load results: " + e, e);
-        }
+        });
         return values.build();
     }
 
@@ -355,7 +595,7 @@ public class RdfRepository implements AutoCloseable {
         b.bind("uris.statement", uris.statement());
         b.bindUri("prov:wasDerivedFrom", Provenance.WAS_DERIVED_FROM);
 
-        return resultToMap(query(b.toString()), "entity", "s");
+        return resultToMap(b.toString(), "entity", "s");
     }
 
     /**
@@ -370,7 +610,7 @@ public class RdfRepository implements AutoCloseable {
         b.bind("uris.statement", uris.statement());
         b.bindUri("prov:wasDerivedFrom", Provenance.WAS_DERIVED_FROM);
 
-        return resultToMap(query(b.toString()), "entity", "s");
+        return resultToMap(b.toString(), "entity", "s");
     }
 
     /**
@@ -382,6 +622,13 @@ public class RdfRepository implements AutoCloseable {
      * @return the number of statements modified
      */
     public String getSyncQuery(String entityId, Collection<Statement> statements, Collection<String> valueList) {
+        return syncUpdate(entityId, statements, valueList).toString();
+    }
+
+    /**
+     * Build the update synchronizing the data statements for a single entity.
+     */
+    private UpdateBuilder syncUpdate(String entityId, Collection<Statement> statements, Collection<String> valueList) {
         // TODO this is becoming a mess too
         log.debug("Generating update for {}", entityId);
         UpdateBuilder b = new UpdateBuilder(syncBody);
@@ -409,7 +656,7 @@ public class RdfRepository implements AutoCloseable {
             b.bind("cleanupQuery", "");
         }
 
-        return b.toString();
+        return b;
     }
 
     /**
@@ -452,18 +699,266 @@ public class RdfRepository implements AutoCloseable {
             // no changes, we're done
             return 0;
         }
-        UpdateBuilder b = new UpdateBuilder(msyncBody);
+        List<List<Change>> chunks = chunkChanges(changes);
+        if (chunks.size() <= 1) {
+            return syncChunk(changes, verifyResult);
+        }
+        log.debug("Syncing {} changes in {} chunks", changes.size(), chunks.size());
+        int modified = 0;
+        if (chunkExecutor == null) {
+            for (List<Change> chunk : chunks) {
+                modified += syncChunk(chunk, verifyResult);
+            }
+            return modified;
+        }
+        List<Future<Integer>> results = new ArrayList<>(chunks.size());
+        for (List<Change> chunk : chunks) {
+            results.add(chunkExecutor.submit(() -> syncChunk(chunk, verifyResult)));
+        }
+        try {
+            for (Future<Integer> result : results) {
+                modified += result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FatalException("Interrupted while syncing", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new FatalException("Error syncing chunk", e);
+        } finally {
+            for (Future<Integer> result : results) {
+                result.cancel(false);
+            }
+        }
+        return modified;
+    }
+
+    /**
+     * Split changes into chunks that respect the chunk limits. A single change
+     * that is over the limits gets a chunk of its own. Broken changes without
+     * statements are dropped.
+     */
+    private List<List<Change>> chunkChanges(Collection<Change> changes) {
+        List<List<Change>> chunks = new ArrayList<>();
+        List<Change> chunk = new ArrayList<>();
+        int statements = 0;
+        for (Change change : changes) {
+            if (change.getStatements() == null) {
+                continue;
+            }
+            int changeStatements = change.getStatements().size();
+            boolean full = maxChunkEntities > 0 && chunk.size() >= maxChunkEntities
+                    || maxChunkStatements > 0 && statements + changeStatements > maxChunkStatements;
+            if (full && !chunk.isEmpty()) {
+                chunks.add(chunk);
+                chunk = new ArrayList<>();
+                statements = 0;
+            }
+            chunk.add(change);
+            statements += changeStatements;
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+        return chunks;
+    }
+
+    /**
+     * Sync a chunk of changes.
+     * @return Number of triples modified.
+     */
+    private int syncChunk(Collection<Change> changes, boolean verifyResult) {
+        if (entitySyncUri != null) {
+            return nativeSyncChunk(changes, verifyResult);
+        }
+        if (diffSync) {
+            return diffSyncChunk(changes, verifyResult);
+        }
+        if (rdfInsert) {
+            return rdfInsertChunk(changes, verifyResult);
+        }
+        return multiSyncChunk(changes, verifyResult);
+    }
+
+    /**
+     * Sync a chunk of changes by sending only the differences between the
+     * stored triples and the new statements. Entities whose old or new
+     * statements contain blank nodes can't be expressed in DELETE DATA and are
+     * synced with multiSync instead.
+     * @return Number of triples modified.
+     */
+    private int diffSyncChunk(Collection<Change> changes, boolean verifyResult) {
+        Set<String> entityIds = new HashSet<>();
+        for (Change change : changes) {
+            if (change.getStatements() != null) {
+                entityIds.add(change.entityId());
+            }
+        }
+        if (entityIds.isEmpty()) {
+            log.debug("Got no valid changes, we're done");
+            return 0;
+        }
+        SetMultimap<String, Statement> stored = fetchEntityTriples(entityIds);
+
+        Set<String> diffIds = new HashSet<>();
+        List<Change> fallback = new ArrayList<>();
+        List<Statement> deleteStatements = new ArrayList<>();
+        List<Statement> insertStatements = new ArrayList<>();
+        List<Statement> allStatements = new ArrayList<>();
+        Set<String> valueSet = new HashSet<>();
+        for (Change change : changes) {
+            if (change.getStatements() == null) {
+                continue;
+            }
+            Set<Statement> existing = stored.get(uris.entity() + change.entityId());
+            if (hasBNodes(change.getStatements()) || hasBNodes(existing)) {
+                fallback.add(change);
+                continue;
+            }
+            // The store returns literals in canonical form so compare them that way
+            Map<Statement, Statement> wanted = byCanonicalForm(change.getStatements());
+            Map<Statement, Statement> have = byCanonicalForm(existing);
+            for (Map.Entry<Statement, Statement> statement : have.entrySet()) {
+                if (!wanted.containsKey(statement.getKey())) {
+                    deleteStatements.add(statement.getValue());
+                }
+            }
+            for (Map.Entry<Statement, Statement> statement : wanted.entrySet()) {
+                if (!have.containsKey(statement.getKey())) {
+                    insertStatements.add(statement.getValue());
+                }
+            }
+            diffIds.add(change.entityId());
+            allStatements.addAll(change.getStatements());
+            valueSet.addAll(change.getCleanupList());
+        }
+
+        int modified = 0;
+        if (!diffIds.isEmpty()) {
+            UpdateBuilder b = new UpdateBuilder(diffSyncBody);
+            b.bindStatements("deleteStatements", deleteStatements);
+            b.bindStatements("insertStatements", insertStatements);
+            bindCleanup(b, valueSet);
+            long start = System.currentTimeMillis();
+            modified = executeUpdate(updateCountResponse, b);
+            log.debug("Diff update for {} entities deleting {} and inserting {} statements took {} millis and modified {} statements",
+                    diffIds.size(), deleteStatements.size(), insertStatements.size(), System.currentTimeMillis() - start, modified);
+            verifyIfNeeded(verifyResult, diffIds, allStatements);
+        }
+        if (!fallback.isEmpty()) {
+            log.debug("Syncing {} entities with blank nodes using multiSync", fallback.size());
+            modified += multiSyncChunk(fallback, verifyResult);
+        }
+        return modified;
+    }
+
+    /**
+     * Fetch the triples currently stored for some entities: the entity's own
+     * triples, those of its statements and those of its site links.
+     *
+     * @param entityIds ids of the entities
+     * @return triples keyed by entity uri
+     */
+    private SetMultimap<String, Statement> fetchEntityTriples(Collection<String> entityIds) {
+        UpdateBuilder b = new UpdateBuilder(getEntityTriples);
+        b.bindUri("schema:about", SchemaDotOrg.ABOUT);
+        b.bind("uris.statement", uris.statement());
+        b.bindUris("entityList", entityIds, uris.entity());
+        SetMultimap<String, Statement> triples = HashMultimap.create();
+        forEachResult(b.toString(), bindings -> triples.put(bindings.getValue("entity").stringValue(),
+                new StatementImpl(
+                        (Resource) bindings.getValue("s"),
+                        (org.openrdf.model.URI) bindings.getValue("p"),
+                        bindings.getValue("o"))));
+        return triples;
+    }
+
+    /**
+     * Key statements by their canonical form.
+     */
+    private static Map<Statement, Statement> byCanonicalForm(Collection<Statement> statements) {
+        Map<Statement, Statement> canonical = new HashMap<>(statements.size() * 2);
+        for (Statement statement : statements) {
+            canonical.put(canonicalForm(statement), statement);
+        }
+        return canonical;
+    }
+
+    /**
+     * Canonical form of a statement. Blazegraph stores numbers, dates and
+     * other typed literals inline and hands them back in canonical form, so
+     * "+1"^^xsd:decimal comes back as "1", and language tags aren't case
+     * sensitive.
+     */
+    private static Statement canonicalForm(Statement statement) {
+        if (!(statement.getObject() instanceof Literal)) {
+            return statement;
+        }
+        Literal literal = (Literal) statement.getObject();
+        Literal canonical;
+        if (literal.getLanguage() != null) {
+            canonical = new LiteralImpl(literal.getLabel(), literal.getLanguage().toLowerCase(Locale.ROOT));
+        } else if (literal.getDatatype() != null) {
+            String label;
+            try {
+                label = XMLDatatypeUtil.normalize(literal.getLabel(), literal.getDatatype());
+            } catch (IllegalArgumentException e) {
+                // Not a valid value for its type so the store keeps it as is
+                label = literal.getLabel();
+            }
+            canonical = new LiteralImpl(label, literal.getDatatype());
+        } else {
+            return statement;
+        }
+        return new StatementImpl(statement.getSubject(), statement.getPredicate(), canonical);
+    }
+
+    /**
+     * Does any of the statements have a blank node?
+     */
+    private static boolean hasBNodes(Collection<Statement> statements) {
+        for (Statement statement : statements) {
+            if (statement.getSubject() instanceof BNode || statement.getObject() instanceof BNode) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Bind the cleanup of unused values and references, if there are any.
+     */
+    private void bindCleanup(UpdateBuilder b, Collection<String> valueSet) {
+        if (!valueSet.isEmpty()) {
+            UpdateBuilder cleanup = new UpdateBuilder(cleanUnused);
+            cleanup.bindUris("values", valueSet);
+            b.bind("cleanupQuery", cleanup.toString());
+        }  else {
+            b.bind("cleanupQuery", "");
+        }
+    }
+
+    /**
+     * Bind the entities of a chunk of changes and the statements the deletes
+     * of a multiSync must keep.
+     *
+     * @param insertStatements filled with the statements to insert
+     * @param valueSet filled with the values and references to clean up
+     * @return ids of the entities to sync, empty if no change was fetched
+     */
+    private Set<String> bindMultiSync(UpdateBuilder b, Collection<Change> changes, List<Statement> insertStatements,
+            Set<String> valueSet) {
         b.bindUri("schema:about", SchemaDotOrg.ABOUT);
         b.bindUri("prov:wasDerivedFrom", Provenance.WAS_DERIVED_FROM);
         b.bind("uris.value", uris.value());
         b.bind("uris.statement", uris.statement());
         Set<String> entityIds = newHashSetWithExpectedSize(changes.size());
 
-        List<Statement> insertStatements = new ArrayList<>();
         List<Statement> entityStatements = new ArrayList<>();
         List<Statement> statementStatements = new ArrayList<>();
         Set<Statement> aboutStatements = new HashSet<>();
-        Set<String> valueSet = new HashSet<>();
 
         for (final Change change : changes) {
             if (change.getStatements() == null) {
@@ -476,70 +971,269 @@ public class RdfRepository implements AutoCloseable {
             valueSet.addAll(change.getCleanupList());
         }
 
+        b.bindUris("entityList", entityIds, uris.entity());
+        b.bindValues("entityStatements", entityStatements);
+
+        b.bindValues("statementStatements", statementStatements);
+        b.bindValues("aboutStatements", aboutStatements);
+        return entityIds;
+    }
+
+    /**
+     * Sync a chunk of changes in a single multiSync update.
+     * @return Number of triples modified.
+     */
+    private int multiSyncChunk(Collection<Change> changes, boolean verifyResult) {
+        UpdateBuilder b = new UpdateBuilder(msyncBody);
+        List<Statement> insertStatements = new ArrayList<>();
+        Set<String> valueSet = new HashSet<>();
+        Set<String> entityIds = bindMultiSync(b, changes, insertStatements, valueSet);
+
         if (entityIds.isEmpty()) {
             // If we've got no IDs, this means all change retrieval failed
             log.debug("Got no valid changes, we're done");
             return 0;
         }
 
-        b.bindUris("entityList", entityIds, uris.entity());
         b.bindStatements("insertStatements", insertStatements);
-        b.bindValues("entityStatements", entityStatements);
+        bindCleanup(b, valueSet);
 
-        b.bindValues("statementStatements", statementStatements);
-        b.bindValues("aboutStatements", aboutStatements);
+        long start = System.currentTimeMillis();
+        int modified = executeUpdate(updateCountResponse.forOperations(UpdateCountResponse.SYNC_OPERATIONS), b);
+        log.debug("Update query for {} entities and {} statements took {} millis and modified {} statements",
+                entityIds.size(), insertStatements.size(), System.currentTimeMillis() - start, modified);
 
+        verifyIfNeeded(verifyResult, entityIds, insertStatements);
+        return modified;
+    }
+
+    /**
+     * Sync a chunk of changes by running the deletes of a multiSync, posting
+     * the new statements as RDF and then cleaning up. Deletes go first so a
+     * failure in between leaves entities without their version and they are
+     * synced again. The cleanup goes last because the munger drops values
+     * already in the store from the inserted statements, so cleaning up
+     * first could remove values another entity of the chunk starts using.
+     * The three requests aren't atomic: queries running in between see the
+     * entities of the chunk without their statements, and a concurrent chunk's
+     * cleanup would remove values this chunk reuses, which is why rdfInsert
+     * chunks can't be sent concurrently.
+     * @return Number of triples modified.
+     */
+    private int rdfInsertChunk(Collection<Change> changes, boolean verifyResult) {
+        UpdateBuilder b = new UpdateBuilder(multiDeleteBody);
+        List<Statement> insertStatements = new ArrayList<>();
+        Set<String> valueSet = new HashSet<>();
+        Set<String> entityIds = bindMultiSync(b, changes, insertStatements, valueSet);
+
+        if (entityIds.isEmpty()) {
+            log.debug("Got no valid changes, we're done");
+            return 0;
+        }
+
+        long start = System.currentTimeMillis();
+        List<String> operations = UpdateCountResponse.SYNC_OPERATIONS;
+        int modified = executeUpdate(updateCountResponse.forOperations(operations.subList(0, 3)), b);
+        if (!insertStatements.isEmpty()) {
+            modified += insertRdf(insertStatements);
+        }
         if (!valueSet.isEmpty()) {
             UpdateBuilder cleanup = new UpdateBuilder(cleanUnused);
             cleanup.bindUris("values", valueSet);
-            b.bind("cleanupQuery", cleanup.toString());
-        }  else {
-            b.bind("cleanupQuery", "");
+            modified += executeUpdate(updateCountResponse.forOperations(operations.subList(4, 5)), cleanup);
         }
+        log.debug("RDF insert sync for {} entities and {} statements took {} millis and modified {} statements",
+                entityIds.size(), insertStatements.size(), System.currentTimeMillis() - start, modified);
 
-        long start = System.currentTimeMillis();
-        int modified = execute("update", UPDATE_COUNT_RESPONSE, b.toString());
-        log.debug("Update query took {} millis and modified {} statements",
-                System.currentTimeMillis() - start, modified);
+        verifyIfNeeded(verifyResult, entityIds, insertStatements);
+        return modified;
+    }
 
-        if (verifyResult) {
-            try {
-                verifyStatements(entityIds, insertStatements);
-            } catch (QueryEvaluationException e) {
-                throw new FatalException("Can't load verify results: " + e, e);
+    /**
+     * Sync a chunk of changes by posting them to the entity sync servlet.
+     * @return Number of triples modified.
+     */
+    private int nativeSyncChunk(Collection<Change> changes, boolean verifyResult) {
+        List<Change> valid = new ArrayList<>(changes.size());
+        Set<String> entityIds = newHashSetWithExpectedSize(changes.size());
+        List<Statement> insertStatements = new ArrayList<>();
+        for (Change change : changes) {
+            if (change.getStatements() == null) {
+                // broken change, probably failed retrieval
+                continue;
             }
+            valid.add(change);
+            entityIds.add(change.entityId());
+            insertStatements.addAll(change.getStatements());
+        }
+        if (valid.isEmpty()) {
+            log.debug("Got no valid changes, we're done");
+            return 0;
         }
 
+        long start = System.currentTimeMillis();
+        byte[] body = serializeEntitySync(uris.statement(), uris.entity(), valid);
+        int modified = send(true, updateCountResponse, () -> {
+            Request post = newPost(entitySyncUri, null);
+            post.content(new BytesContentProvider(EntitySyncFormat.CONTENT_TYPE, body));
+            return post.send();
+        });
+        log.debug("Native sync for {} entities and {} statements in {} bytes took {} millis and modified {} statements",
+                entityIds.size(), insertStatements.size(), body.length, System.currentTimeMillis() - start, modified);
+
+        verifyIfNeeded(verifyResult, entityIds, insertStatements);
         return modified;
     }
 
+    /**
+     * Serialize changes in the {@link EntitySyncFormat}.
+     *
+     * @param statementPrefix prefix of statement uris
+     * @param entityPrefix prefix of entity uris
+     */
+    static byte[] serializeEntitySync(String statementPrefix, String entityPrefix, Collection<Change> changes) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(EntitySyncFormat.VERSION);
+            writeString(out, statementPrefix);
+            out.writeInt(changes.size());
+            for (Change change : changes) {
+                writeString(out, entityPrefix + change.entityId());
+                out.writeInt(change.getStatements().size());
+                for (Statement statement : change.getStatements()) {
+                    writeTerm(out, statement.getSubject());
+                    writeTerm(out, statement.getPredicate());
+                    writeTerm(out, statement.getObject());
+                }
+                out.writeInt(change.getCleanupList().size());
+                for (String cleanup : change.getCleanupList()) {
+                    writeString(out, cleanup);
+                }
+            }
+        } catch (IOException e) {
+            throw new FatalException("Can't serialize entities to sync", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write a term in the {@link EntitySyncFormat}.
+     */
+    private static void writeTerm(DataOutput out, Value value) throws IOException {
+        if (value instanceof BNode) {
+            out.writeByte(EntitySyncFormat.BNODE);
+            writeString(out, ((BNode) value).getID());
+        } else if (value instanceof Literal) {
+            Literal literal = (Literal) value;
+            if (literal.getLanguage() != null) {
+                out.writeByte(EntitySyncFormat.LANGUAGE_LITERAL);
+                writeString(out, literal.getLabel());
+                writeString(out, literal.getLanguage());
+            } else {
+                out.writeByte(EntitySyncFormat.LITERAL);
+                writeString(out, literal.getLabel());
+                writeString(out, literal.getDatatype() == null
+                        ? XMLSchema.STRING.stringValue() : literal.getDatatype().stringValue());
+            }
+        } else {
+            out.writeByte(EntitySyncFormat.URI);
+            writeString(out, value.stringValue());
+        }
+    }
+
+    /**
+     * Uri of the entity sync servlet of the store with a SPARQL endpoint. The
+     * servlet is mapped next to the endpoint and gets the namespace of
+     * namespaced endpoints as a parameter.
+     */
+    static URI entitySyncUri(URI sparql) {
+        Matcher m = SPARQL_ENDPOINT.matcher(sparql.toString());
+        if (!m.matches()) {
+            throw new IllegalArgumentException("Can't find the entity sync servlet of " + sparql);
+        }
+        String target = m.group(1) + "/entity-sync";
+        if (m.group(2) != null) {
+            target += "?namespace=" + m.group(2);
+        }
+        return URI.create(target);
+    }
+
+    /**
+     * Verify the result of a sync if asked to.
+     */
+    private void verifyIfNeeded(boolean verifyResult, Set<String> entityIds, List<Statement> statements) {
+        if (verifyResult) {
+            verifyStatements(entityIds, statements);
+        }
+    }
+
+    /**
+     * Post statements as RDF to the REST API, which inserts them.
+     *
+     * @return the number of statements added
+     */
+    private int insertRdf(Collection<Statement> statements) {
+        byte[] body = serializeRdf(statements, rdfInsertGzip);
+        log.debug("Posting {} statements in {} bytes", statements.size(), body.length);
+        return send(true, updateCountResponse.forOperations(UpdateCountResponse.SYNC_OPERATIONS.subList(3, 4)),
+                () -> {
+                    Request post = newPost(null);
+                    if (rdfInsertGzip) {
+                        post.header("Content-Encoding", "gzip");
+                    }
+                    post.content(new BytesContentProvider(RDF_INSERT_CONTENT_TYPE, body));
+                    return post.send();
+                });
+    }
+
+    /**
+     * Serialize statements as Turtle.
+     *
+     * @param gzip should the result be gzipped?
+     */
+    static byte[] serializeRdf(Collection<Statement> statements, boolean gzip) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = gzip ? new GZIPOutputStream(bytes) : bytes) {
+            RDFWriter writer = Rio.createWriter(RDFFormat.TURTLE, out);
+            writer.startRDF();
+            for (Statement statement : statements) {
+                writer.handleStatement(statement);
+            }
+            writer.endRDF();
+        } catch (IOException | RDFHandlerException e) {
+            throw new FatalException("Can't serialize statements to insert", e);
+        }
+        return bytes.toByteArray();
+    }
+
     /**
      * Verify that the database matches the statement data for these IDs.
      * @param entityIds List of IDs
      * @param statements List of statements for these IDs
-     * @throws QueryEvaluationException if there is a problem retrieving result.
      */
-    private void verifyStatements(Set<String> entityIds, List<Statement> statements)
-            throws QueryEvaluationException {
+    private void verifyStatements(Set<String> entityIds, List<Statement> statements) {
         log.debug("Verifying the update");
+        Timer.Context time = verifyTimer.time();
         UpdateBuilder bv = new UpdateBuilder(verify);
         bv.bindUri("schema:about", SchemaDotOrg.ABOUT);
         bv.bind("uris.statement", uris.statement());
         bv.bindUris("entityList", entityIds, uris.entity());
         bv.bindValues("allStatements", statements);
-        TupleQueryResult result = query(bv.toString());
-        if (result.hasNext()) {
-            log.error("Update failed, we have extra data!");
-            while (result.hasNext()) {
-                BindingSet bindings = result.next();
-                Binding s = bindings.getBinding("s");
-                Binding p = bindings.getBinding("p");
-                Binding o = bindings.getBinding("o");
-                log.error("{}\t{}\t{}", s.getValue().stringValue(),
-                        p.getValue().stringValue(), o.getValue().stringValue());
+        AtomicInteger extra = new AtomicInteger();
+        forEachResult(bv.toString(), bindings -> {
+            if (extra.getAndIncrement() == 0) {
+                log.error("Update failed, we have extra data!");
             }
+            Binding s = bindings.getBinding("s");
+            Binding p = bindings.getBinding("p");
+            Binding o = bindings.getBinding("o");
+            log.error("{}\t{}\t{}", s.getValue().stringValue(),
+                    p.getValue().stringValue(), o.getValue().stringValue());
+        });
+        if (extra.get() > 0) {
             throw new FatalException("Update failed, bad old data in the store");
         }
+        time.stop();
         log.debug("Verification OK");
     }
 
@@ -559,7 +1253,8 @@ public class RdfRepository implements AutoCloseable {
      */
     public int sync(String entityId, Collection<Statement> statements, Collection<String> valueList) {
         long start = System.currentTimeMillis();
-        int modified = execute("update", UPDATE_COUNT_RESPONSE, getSyncQuery(entityId, statements, valueList));
+        int modified = executeUpdate(updateCountResponse.forOperations(UpdateCountResponse.SYNC_OPERATIONS),
+                syncUpdate(entityId, statements, valueList));
         log.debug("Updating {} took {} millis and modified {} statements", entityId,
                 System.currentTimeMillis() - start, modified);
         return modified;
@@ -574,7 +1269,7 @@ public class RdfRepository implements AutoCloseable {
      */
     public int syncQuery(String query) {
         long start = System.currentTimeMillis();
-        int modified = execute("update", UPDATE_COUNT_RESPONSE, query);
+        int modified = execute("update", updateCountResponse, query);
         log.debug("Update query took {} millis and modified {} statements",
                 System.currentTimeMillis() - start, modified);
         return modified;
@@ -603,11 +1298,78 @@ public class RdfRepository implements AutoCloseable {
         StringBuilder values = new StringBuilder();
         for (Change entry: candidates) {
             values.append("( <").append(uris.entity()).append(entry.entityId()).append("> ")
-                    .append(entry.revision()).append(" )\n");
+                    .append(entry.revision()).append(" UNDEF )\n");
+        }
+        b.bind("values", values.toString());
+        b.bindUri("schema:version", SchemaDotOrg.VERSION);
+        b.bindUri("wikibase:contentHash", Ontology.CONTENT_HASH);
+        return resultToSet(b.toString(), "s");
+    }
+
+    /**
+     * Fetch the revisions stored for a set of entities.
+     * @param entityIds ids of the entities
+     * @return revisions keyed by entity id, entities not in the repository are missing
+     */
+    public Map<String, Long> fetchRevisions(Collection<String> entityIds) {
+        UpdateBuilder b = new UpdateBuilder(getEntityRevisions);
+        b.bindUris("entityList", entityIds, uris.entity());
+        b.bindUri("schema:version", SchemaDotOrg.VERSION);
+        Map<String, Long> revisions = new HashMap<>();
+        forEachResult(b.toString(), bindings -> {
+            Value rev = bindings.getValue("rev");
+            if (rev instanceof Literal) {
+                revisions.put(bindings.getValue("s").stringValue().substring(uris.entity().length()),
+                        ((Literal) rev).longValue());
+            }
+        });
+        return revisions;
+    }
+
+    /**
+     * Filter set of changes by their content hash.
+     * The changes whose content hash matches the one in the repo do not need
+     * to be synced.
+     * @param candidates List of candidate changes, all with a content hash
+     * @return Set of entity URIs whose content changed.
+     */
+    public Set<String> changedContent(Collection<Change> candidates) {
+        UpdateBuilder b = new UpdateBuilder(getRevisions);
+        StringBuilder values = new StringBuilder();
+        for (Change entry: candidates) {
+            values.append("( <").append(uris.entity()).append(entry.entityId()).append("> UNDEF \"")
+                    .append(entry.getContentHash()).append("\" )\n");
         }
         b.bind("values", values.toString());
         b.bindUri("schema:version", SchemaDotOrg.VERSION);
-        return resultToSet(query(b.toString()), "s");
+        b.bindUri("wikibase:contentHash", Ontology.CONTENT_HASH);
+        return resultToSet(b.toString(), "s");
+    }
+
+    /**
+     * Update the version and modification date of entities without touching
+     * the rest of their content.
+     * @param changes Changes whose content is already in the repository
+     * @return the number of statements modified
+     */
+    public int updateVersions(Collection<Change> changes) {
+        List<Statement> versionStatements = new ArrayList<>();
+        for (Change change : changes) {
+            String entityUri = uris.entity() + change.entityId();
+            for (Statement statement : change.getStatements()) {
+                String predicate = statement.getPredicate().stringValue();
+                if (statement.getSubject().stringValue().equals(entityUri)
+                        && (predicate.equals(SchemaDotOrg.VERSION) || predicate.equals(SchemaDotOrg.DATE_MODIFIED))) {
+                    versionStatements.add(statement);
+                }
+            }
+        }
+        if (versionStatements.isEmpty()) {
+            return 0;
+        }
+        UpdateBuilder b = new UpdateBuilder(updateVersions);
+        b.bindValues("versionStatements", versionStatements);
+        return executeUpdate(updateCountResponse, b);
     }
 
     /**
@@ -662,7 +1424,7 @@ public class RdfRepository implements AutoCloseable {
             throw new FatalException("Holy cow datatype configuration exception on default "
                     + "datatype factory.  Seems like something really really strange.", e);
         }
-        execute("update", UPDATE_COUNT_RESPONSE, b.toString());
+        executeUpdate(updateCountResponse, b);
     }
 
     /**
@@ -676,18 +1438,87 @@ public class RdfRepository implements AutoCloseable {
      * Execute some SPARQL which returns a results table.
      */
     public TupleQueryResult query(String sparql) {
-        return execute("query", TUPLE_QUERY_RESPONSE, sparql);
+        TupleQueryResultBuilder collector = new TupleQueryResultBuilder();
+        query(sparql, collector);
+        return collector.getQueryResult();
     }
 
     /**
-     * Create HTTP request.
-     * @param type Request type
-     * @param sparql SPARQL code
+     * Execute a SPARQL query, handing its results to a handler row by row as
+     * they are read from the response rather than reading the whole response
+     * first. Sending the request is retried, but failures once the results
+     * started coming in aren't since the handler already saw some of them.
+     */
+    public void query(String sparql, TupleQueryResultHandler handler) {
+        log.debug("Running SPARQL: {}", sparql);
+        long startQuery = System.currentTimeMillis();
+        try {
+            InputStreamResponseListener listener = streamRetryer.call(() -> {
+                InputStreamResponseListener l = new InputStreamResponseListener();
+                makeRequest("query", sparql, TUPLE_QUERY_ACCEPT).send(l);
+                // Wait for the headers so failing to connect is retried
+                awaitResponse(l);
+                return l;
+            });
+            Response response = awaitResponse(listener);
+            try (InputStream body = listener.getInputStream()) {
+                if (response.getStatus() != HttpStatus.OK_200) {
+                    throw new ContainedException("Non-200 response from triple store:  " + response
+                            + " body=\n" + new String(ByteStreams.toByteArray(body), StandardCharsets.UTF_8));
+                }
+                BinaryQueryResultParser p = new BinaryQueryResultParser();
+                p.setQueryResultHandler(handler);
+                p.parseQueryResult(body);
+            }
+        } catch (QueryResultParseException | QueryResultHandlerException | IllegalStateException e) {
+            throw new FatalException("Error parsing query results", e);
+        } catch (InterruptedException | TimeoutException | ExecutionException | RetryException | IOException e) {
+            throw new FatalException("Error querying triple store", e);
+        }
+        long took = System.currentTimeMillis() - startQuery;
+        log.debug("Completed in {} ms", took);
+        queryTimer.update(took, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Execute a SPARQL query, calling the consumer with every row of its
+     * results as they are read.
+     */
+    private void forEachResult(String sparql, Consumer<BindingSet> consumer) {
+        query(sparql, new AbstractTupleQueryResultHandler() {
+            @Override
+            public void handleSolution(BindingSet bindingSet) {
+                consumer.accept(bindingSet);
+            }
+        });
+    }
+
+    /**
+     * Wait for the response headers of a streamed request. The request's own
+     * timeout bounds the wait.
+     */
+    private static Response awaitResponse(InputStreamResponseListener listener)
+            throws InterruptedException, TimeoutException, ExecutionException {
+        return listener.get(Long.MAX_VALUE, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Create a POST request to the endpoint without content.
      * @param accept Accept header (can be null)
      * @return Request object
      */
-    private Request makeRequest(String type, String sparql, String accept) {
-        Request post = httpClient.newRequest(uri);
+    private Request newPost(String accept) {
+        return newPost(uri, accept);
+    }
+
+    /**
+     * Create a POST request without content.
+     * @param target where to send the request
+     * @param accept Accept header (can be null)
+     * @return Request object
+     */
+    private Request newPost(URI target, String accept) {
+        Request post = httpClient.newRequest(target);
         post.method(HttpMethod.POST);
         if (timeout > 0) {
             post.timeout(timeout, TimeUnit.SECONDS);
@@ -697,7 +1528,18 @@ public class RdfRepository implements AutoCloseable {
         if (accept != null) {
             post.header("Accept", accept);
         }
+        return post;
+    }
 
+    /**
+     * Create HTTP request.
+     * @param type Request type
+     * @param sparql SPARQL code
+     * @param accept Accept header (can be null)
+     * @return Request object
+     */
+    private Request makeRequest(String type, String sparql, String accept) {
+        Request post = newPost(accept);
         final Fields fields = new Fields();
         fields.add(type, sparql);
         final FormContentProvider form = new FormContentProvider(fields, Charsets.UTF_8);
@@ -713,20 +1555,73 @@ public class RdfRepository implements AutoCloseable {
      */
     protected <T> T execute(String type, ResponseHandler<T> responseHandler, String sparql) {
         log.debug("Running SPARQL: {}", sparql);
-        long startQuery = System.currentTimeMillis();
+        boolean update = "update".equals(type);
+        if (update) {
+            updateSize.update(sparql.length());
+        }
         // TODO we might want to look into Blazegraph's incremental update
         // reporting.....
+        return send(update, responseHandler,
+                () -> makeRequest(type, sparql, responseHandler.acceptHeader()).send());
+    }
+
+    /**
+     * Execute a SPARQL update, streaming it to the rdf store as it is rendered
+     * rather than building it as a string and form encoding it first. That
+     * keeps the memory used by an update to about a chunk of the rendered
+     * update however large the batch.
+     *
+     * @return results from the server
+     */
+    private <T> T executeUpdate(ResponseHandler<T> responseHandler, UpdateBuilder update) {
+        log.debug("Running SPARQL: {}", update);
+        return send(true, responseHandler, () -> streamUpdate(update, responseHandler.acceptHeader()));
+    }
+
+    /**
+     * Post an update as an application/sparql-update body, writing it to the
+     * request while the request is sent.
+     *
+     * @param accept Accept header (can be null)
+     * @return the response
+     */
+    private ContentResponse streamUpdate(UpdateBuilder update, String accept) throws Exception {
+        Request post = newPost(accept);
+        OutputStreamContentProvider content = new OutputStreamContentProvider();
+        post.content(content, SPARQL_UPDATE_CONTENT_TYPE);
+        FutureResponseListener listener = new FutureResponseListener(post);
+        post.send(listener);
+        try (Writer writer = new OutputStreamWriter(content.getOutputStream(), StandardCharsets.UTF_8)) {
+            updateSize.update(update.writeTo(writer));
+        } catch (IOException e) {
+            // The request failed while we were writing it, the listener has the reason
+            post.abort(e);
+        }
+        return listener.get();
+    }
+
+    /**
+     * Send a request to the rdf store, retrying on failures, and parse the
+     * response.
+     *
+     * @param update is the request an update? Used for metrics.
+     * @param request sends the request, called again on retries
+     * @return the parsed response
+     */
+    private <T> T send(boolean update, ResponseHandler<T> responseHandler, Callable<ContentResponse> request) {
+        long startQuery = System.currentTimeMillis();
         final ContentResponse response;
         try {
-            response = retryer.call(()
-                -> makeRequest(type, sparql, responseHandler.acceptHeader()).send());
+            response = retryer.call(request);
 
             if (response.getStatus() != HttpStatus.OK_200) {
                 throw new ContainedException("Non-200 response from triple store:  " + response
                                 + " body=\n" + responseBodyAsString(response));
             }
 
-            log.debug("Completed in {} ms", System.currentTimeMillis() - startQuery);
+            long took = System.currentTimeMillis() - startQuery;
+            log.debug("Completed in {} ms", took);
+            (update ? updateTimer : queryTimer).update(took, TimeUnit.MILLISECONDS);
             return responseHandler.parse(response);
         } catch (ExecutionException | RetryException | IOException e) {
             throw new FatalException("Error updating triple store", e);
@@ -797,9 +1692,26 @@ public class RdfRepository implements AutoCloseable {
      */
     protected static final ResponseHandler<Integer> UPDATE_COUNT_RESPONSE = new UpdateCountResponse();
     /**
-     * Parse the response from a regular query into a TupleQueryResult.
+     * Content type of the RDF posted by syncs inserting RDF.
+     */
+    private static final String RDF_INSERT_CONTENT_TYPE = RDFFormat.TURTLE.getDefaultMIMEType() + ";charset=UTF-8";
+    /**
+     * Pattern of SPARQL endpoint uris: the context of the store and the
+     * namespace if there is one.
+     */
+    private static final Pattern SPARQL_ENDPOINT = Pattern.compile("^(.*?)(?:/namespace/([^/]+))?/sparql$");
+    /**
+     * Content type of updates posted as the request body.
+     */
+    private static final String SPARQL_UPDATE_CONTENT_TYPE = "application/sparql-update;charset=UTF-8";
+    /**
+     * Accept header of queries, the results are parsed as they stream in.
      */
-    protected static final ResponseHandler<TupleQueryResult> TUPLE_QUERY_RESPONSE = new TupleQueryResponse();
+    private static final String TUPLE_QUERY_ACCEPT = "application/x-binary-rdf-results-table";
+    /**
+     * Longest wait between retries, in milliseconds.
+     */
+    private static final long MAX_RETRY_DELAY = TimeUnit.SECONDS.toMillis(10);
     /**
      * Parse the response from an ask query into a boolean.
      */
@@ -810,6 +1722,7 @@ public class RdfRepository implements AutoCloseable {
      * for Blazegraph.
      */
     protected static class UpdateCountResponse implements ResponseHandler<Integer> {
+
         /**
          * The pattern for the response for an update.
          */
@@ -835,6 +1748,89 @@ public class RdfRepository implements AutoCloseable {
          */
         private static final Pattern BULK_UPDATE_LINE = Pattern
                 .compile("<\\?xml version=\"1.0\"\\?><data modified=\"(\\d+)\" milliseconds=\"(\\d+)\"/>");
+        /**
+         * Names of the operations of the sync and multiSync updates, in the
+         * order they are run. The cleanup is only there if some values or
+         * references are cleaned up.
+         */
+        static final List<String> SYNC_OPERATIONS = ImmutableList.of(
+                "delete-about", "delete-statements", "delete-entity", "insert", "cleanup");
+
+        /**
+         * Time Blazegraph spent executing the operations of an update, in
+         * milliseconds.
+         */
+        private final Histogram elapsed = new Histogram(new ExponentiallyDecayingReservoir());
+        /**
+         * Time Blazegraph spent committing an update, in milliseconds.
+         */
+        private final Histogram commit = new Histogram(new ExponentiallyDecayingReservoir());
+        /**
+         * Time Blazegraph spent executing each operation of the sync updates,
+         * in milliseconds.
+         */
+        private final Map<String, Histogram> syncOperations = new LinkedHashMap<>();
+
+        UpdateCountResponse() {
+            for (String operation : SYNC_OPERATIONS) {
+                syncOperations.put(operation, new Histogram(new ExponentiallyDecayingReservoir()));
+            }
+        }
+
+        /**
+         * Publish the timings.
+         */
+        void registerMetrics(MetricRegistry metrics) {
+            metrics.register("blazegraph-update-elapsed", elapsed);
+            metrics.register("blazegraph-commit", commit);
+            for (Map.Entry<String, Histogram> operation : syncOperations.entrySet()) {
+                metrics.register("blazegraph-sync-" + operation.getKey(), operation.getValue());
+            }
+        }
+
+        /**
+         * Timing of a single operation.
+         *
+         * @return the histogram or null if the operation isn't tracked
+         */
+        Histogram operation(String name) {
+            return syncOperations.get(name);
+        }
+
+        /**
+         * Handler for updates made of known operations. Blazegraph reports
+         * the time taken by each operation on its own line, in order, so the
+         * lines are matched with the names and the times recorded per
+         * operation on top of the totals.
+         *
+         * @param operations names of the operations of the update, in order
+         */
+        ResponseHandler<Integer> forOperations(List<String> operations) {
+            return new ResponseHandler<Integer>() {
+                @Override
+                public String acceptHeader() {
+                    return UpdateCountResponse.this.acceptHeader();
+                }
+
+                @Override
+                public Integer parse(ContentResponse entity) throws IOException {
+                    return UpdateCountResponse.this.parse(entity.getContentAsString(), operations);
+                }
+            };
+        }
+
+        /**
+         * Parse a duration Blazegraph reported, like 12ms.
+         *
+         * @return the duration in milliseconds or -1 if it can't be parsed
+         */
+        static long millis(String value) {
+            int end = 0;
+            while (end < value.length() && Character.isDigit(value.charAt(end))) {
+                end++;
+            }
+            return end == 0 ? -1 : Long.parseLong(value.substring(0, end));
+        }
 
         @Override
         public String acceptHeader() {
@@ -842,16 +1838,36 @@ public class RdfRepository implements AutoCloseable {
         }
 
         @Override
-        @SuppressFBWarnings(value = "PRMC_POSSIBLY_REDUNDANT_METHOD_CALLS", justification = "more readable with 2 calls")
         public Integer parse(ContentResponse entity) throws IOException {
+            return parse(entity.getContentAsString(), null);
+        }
+
+        /**
+         * Parse the mutation count out of a response and record the timings
+         * in it.
+         *
+         * @param operations names of the operations of the update, in order,
+         *            null if they aren't tracked
+         * @return the mutation count
+         * @throws IOException if there is no mutation count in the response
+         */
+        @SuppressFBWarnings(value = "PRMC_POSSIBLY_REDUNDANT_METHOD_CALLS", justification = "more readable with 2 calls")
+        Integer parse(String content, List<String> operations) throws IOException {
             Integer mutationCount = null;
-            for (String line : entity.getContentAsString().split("\\r?\\n")) {
+            long elapsedMillis = -1;
+            long lastTotal = -1;
+            long commitMillis = -1;
+            List<Long> operationMillis = new ArrayList<>();
+            for (String line : content.split("\\r?\\n")) {
                 Matcher m;
                 m = ELAPSED_LINE_FLUSH.matcher(line);
                 if (m.matches()) {
                     log.debug("total = {} elapsed = {} flush = {} batch = {} where = {} delete = {} insert = {}",
                             m.group(1), m.group(2), m.group(3), m.group(4),
                             m.group(5), m.group(6), m.group(7));
+                    operationMillis.add(millis(m.group(2)));
+                    elapsedMillis = Math.max(elapsedMillis, 0) + Math.max(millis(m.group(2)), 0);
+                    lastTotal = millis(m.group(1));
                     continue;
                 }
                 m = ELAPSED_LINE_CLAUSES.matcher(line);
@@ -859,11 +1875,16 @@ public class RdfRepository implements AutoCloseable {
                     log.debug("total = {} elapsed = {} where = {} delete = {} insert = {}",
                             m.group(1), m.group(2), m.group(3), m.group(4),
                             m.group(5));
+                    operationMillis.add(millis(m.group(2)));
+                    elapsedMillis = Math.max(elapsedMillis, 0) + Math.max(millis(m.group(2)), 0);
+                    lastTotal = millis(m.group(1));
                     continue;
                 }
                 m = ELAPSED_LINE.matcher(line);
                 if (m.matches()) {
                     log.debug("elapsed = {}", m.group(1));
+                    operationMillis.add(millis(m.group(1)));
+                    elapsedMillis = Math.max(elapsedMillis, 0) + Math.max(millis(m.group(1)), 0);
                     continue;
                 }
                 m = COMMIT_LINE.matcher(line);
@@ -871,6 +1892,10 @@ public class RdfRepository implements AutoCloseable {
                     log.debug("total = {} mutation count = {} ", m.group(1),
                             m.group(2));
                     mutationCount = Integer.valueOf(m.group(2));
+                    if (lastTotal >= 0) {
+                        // Total elapsed counts from the start of the request
+                        commitMillis = millis(m.group(1)) - lastTotal;
+                    }
                     continue;
                 }
                 m = BULK_UPDATE_LINE.matcher(line);
@@ -878,36 +1903,44 @@ public class RdfRepository implements AutoCloseable {
                     log.debug("bulk updated {} items in {} millis", m.group(1),
                             m.group(2));
                     mutationCount = Integer.valueOf(m.group(1));
+                    elapsedMillis = Long.parseLong(m.group(2));
+                    operationMillis.add(elapsedMillis);
                     continue;
                 }
             }
             if (mutationCount == null) {
                 throw new IOException("Couldn't find the mutation count!");
             }
+            if (elapsedMillis >= 0) {
+                elapsed.update(elapsedMillis);
+            }
+            if (commitMillis >= 0) {
+                commit.update(commitMillis);
+            }
+            if (operations != null) {
+                recordOperations(operations, operationMillis);
+            }
             return mutationCount;
         }
-    }
-
-    /**
-     * Parses responses to regular queries into TupleQueryResults.
-     */
-    private static class TupleQueryResponse implements ResponseHandler<TupleQueryResult> {
-        @Override
-        public String acceptHeader() {
-            return "application/x-binary-rdf-results-table";
-        }
 
-        @Override
-        public TupleQueryResult parse(ContentResponse entity) throws IOException {
-            BinaryQueryResultParser p = new BinaryQueryResultParser();
-            TupleQueryResultBuilder collector = new TupleQueryResultBuilder();
-            p.setQueryResultHandler(collector);
-            try {
-                p.parseQueryResult(new ByteArrayInputStream(entity.getContent()));
-            } catch (QueryResultParseException | QueryResultHandlerException | IllegalStateException e) {
-                throw new RuntimeException("Error parsing query", e);
+        /**
+         * Record the time taken by each operation of an update.
+         *
+         * @param operations names of the operations, in order
+         * @param operationMillis time reported for each operation, in order
+         */
+        private void recordOperations(List<String> operations, List<Long> operationMillis) {
+            if (operationMillis.size() > operations.size()) {
+                log.debug("Expected at most {} operations but got {}, not recording their timings",
+                        operations.size(), operationMillis.size());
+                return;
+            }
+            for (int i = 0; i < operationMillis.size(); i++) {
+                Histogram histogram = syncOperations.get(operations.get(i));
+                if (histogram != null && operationMillis.get(i) >= 0) {
+                    histogram.update(operationMillis.get(i));
+                }
             }
-            return collector.getQueryResult();
         }
     }
 
@@ -0,0 +1,403 @@
+package org.wikidata.query.rdf.tool.rdf;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+import org.wikidata.query.rdf.tool.ValueUsageIndex;
+import org.wikidata.query.rdf.tool.change.Change;
+import org.wikidata.query.rdf.tool.exception.FatalException;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Rdf repository that applies every update to several replicas of the same
+ * store, so changes are fetched and munged once for all of them.
+ *
+ * Updates are sent to all replicas concurrently. Questions deciding what
+ * needs to be synced are asked to all replicas and the answers are merged
+ * so no replica misses anything: an entity is only skipped if every replica
+ * has it. Values and references are the other way around: the munger only
+ * gets those every replica has, so it doesn't drop a value or reference
+ * from the inserted statements that some replica is missing, and each
+ * replica gets its own cleanup candidates. Each replica records its own left
+ * off time and the updater starts from the earliest one. A replica that fails
+ * is dropped for the rest of the run and its left off time stops advancing,
+ * so a restart catches it up. That relies on the replicas being asked which
+ * revisions they have, so replicas can't be used with a revision index. A
+ * failure of the first replica, the primary, is fatal as it would be with a
+ * single repository. Queries not about syncing only go to the primary.
+ */
+public class ReplicatedRdfRepository extends RdfRepository {
+    private static final Logger log = LoggerFactory.getLogger(ReplicatedRdfRepository.class);
+
+    /**
+     * The replicas, the primary first.
+     */
+    private final List<Replica> replicas = new ArrayList<>();
+    /**
+     * Sends requests to the replicas concurrently.
+     */
+    private final ExecutorService executor;
+    /**
+     * Uris for wikibase.
+     */
+    private final WikibaseUris uris;
+
+    /**
+     * Build a replicated repository.
+     *
+     * @param uri SPARQL endpoint of the primary, for queries not about
+     *            syncing
+     * @param repositories the replicas, the primary first
+     */
+    public ReplicatedRdfRepository(URI uri, WikibaseUris uris, List<RdfRepository> repositories) {
+        super(uri, uris);
+        this.uris = uris;
+        if (repositories.isEmpty()) {
+            throw new IllegalArgumentException("Need at least one replica");
+        }
+        for (RdfRepository repository : repositories) {
+            replicas.add(new Replica(repository));
+        }
+        executor = Executors.newFixedThreadPool(repositories.size(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("rdf replica %s").build());
+    }
+
+    /**
+     * Publish the request metrics of the primary and the sync time and lag
+     * of every replica.
+     */
+    @Override
+    public void registerMetrics(MetricRegistry metrics) {
+        replicas.get(0).repository.registerMetrics(metrics);
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get(i);
+            metrics.register("rdf-replica-" + i + "-sync", replica.syncTimer);
+            metrics.register("rdf-replica-" + i + "-lag", (Gauge<Long>) replica::lag);
+        }
+        metrics.register("rdf-replicas-failed", (Gauge<Integer>) () -> replicas.size() - live().size());
+    }
+
+    @Override
+    public int syncFromChanges(Collection<Change> changes, boolean verifyResult) {
+        return onAll("sync", replica -> {
+            Collection<Change> replicaChanges = replica.withCleanup(changes, uris);
+            try (Timer.Context time = replica.syncTimer.time()) {
+                return replica.repository.syncFromChanges(replicaChanges, verifyResult);
+            }
+        }).get(replicas.get(0));
+    }
+
+    @Override
+    public int updateVersions(Collection<Change> changes) {
+        return onAll("update versions", replica -> replica.repository.updateVersions(changes)).get(replicas.get(0));
+    }
+
+    @Override
+    public void updateLeftOffTime(Date leftOffTime) {
+        onAll("update left off time", replica -> {
+            replica.repository.updateLeftOffTime(leftOffTime);
+            replica.leftOff = leftOffTime;
+            return null;
+        });
+    }
+
+    /**
+     * Fetch the earliest left off time of the replicas.
+     *
+     * @return the date or null if any replica has nowhere to start from
+     */
+    @Override
+    public Date fetchLeftOffTime() {
+        Date earliest = null;
+        for (Map.Entry<Replica, Date> leftOff : onAll("fetch left off time",
+                replica -> replica.repository.fetchLeftOffTime()).entrySet()) {
+            Date date = leftOff.getValue();
+            leftOff.getKey().leftOff = date;
+            if (date == null) {
+                return null;
+            }
+            if (earliest == null || date.before(earliest)) {
+                earliest = date;
+            }
+        }
+        return earliest;
+    }
+
+    /**
+     * Changes that need an update in any of the replicas.
+     */
+    @Override
+    public Set<String> hasRevisions(Collection<Change> candidates) {
+        Set<String> needed = new HashSet<>();
+        for (Set<String> replicaNeeded : onAll("check revisions",
+                replica -> replica.repository.hasRevisions(candidates)).values()) {
+            needed.addAll(replicaNeeded);
+        }
+        return needed;
+    }
+
+    /**
+     * Revisions of the entities in the replica that is the furthest behind.
+     * Entities missing from any replica are missing.
+     */
+    @Override
+    public Map<String, Long> fetchRevisions(Collection<String> entityIds) {
+        Map<String, Long> oldest = null;
+        for (Map<String, Long> revisions : onAll("fetch revisions",
+                replica -> replica.repository.fetchRevisions(entityIds)).values()) {
+            if (oldest == null) {
+                oldest = new HashMap<>(revisions);
+                continue;
+            }
+            oldest.keySet().retainAll(revisions.keySet());
+            for (Map.Entry<String, Long> revision : oldest.entrySet()) {
+                revision.setValue(Math.min(revision.getValue(), revisions.get(revision.getKey())));
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Changes whose content differs in any of the replicas.
+     */
+    @Override
+    public Set<String> changedContent(Collection<Change> candidates) {
+        Set<String> changed = new HashSet<>();
+        for (Set<String> replicaChanged : onAll("check content",
+                replica -> replica.repository.changedContent(candidates)).values()) {
+            changed.addAll(replicaChanged);
+        }
+        return changed;
+    }
+
+    @Override
+    public boolean hasRevision(String entityId, long revision) {
+        return !onAll("check revision", replica -> replica.repository.hasRevision(entityId, revision))
+                .containsValue(false);
+    }
+
+    /**
+     * Values linked to the entities in all of the replicas. The values of
+     * each replica are kept to compute its cleanup candidates when the
+     * entities are synced.
+     */
+    @Override
+    public ImmutableSetMultimap<String, String> getValues(Collection<String> entityIds) {
+        return inAll(entityIds, onAll("fetch values", replica -> {
+            ImmutableSetMultimap<String, String> values = replica.repository.getValues(entityIds);
+            replica.remember(replica.values, entityIds, values);
+            return values;
+        }));
+    }
+
+    /**
+     * References linked to the entities in all of the replicas. The
+     * references of each replica are kept to compute its cleanup candidates
+     * when the entities are synced.
+     */
+    @Override
+    public ImmutableSetMultimap<String, String> getRefs(Collection<String> entityIds) {
+        return inAll(entityIds, onAll("fetch references", replica -> {
+            ImmutableSetMultimap<String, String> refs = replica.repository.getRefs(entityIds);
+            replica.remember(replica.refs, entityIds, refs);
+            return refs;
+        }));
+    }
+
+    /**
+     * Nodes linked to the entities in all of the replicas.
+     *
+     * @param nodes the nodes linked to the entities by replica
+     */
+    private static ImmutableSetMultimap<String, String> inAll(Collection<String> entityIds,
+            Map<Replica, ImmutableSetMultimap<String, String>> nodes) {
+        ImmutableSetMultimap.Builder<String, String> common = ImmutableSetMultimap.builder();
+        for (String entityId : entityIds) {
+            Set<String> entityNodes = null;
+            for (ImmutableSetMultimap<String, String> replicaNodes : nodes.values()) {
+                if (entityNodes == null) {
+                    entityNodes = new HashSet<>(replicaNodes.get(entityId));
+                } else {
+                    entityNodes.retainAll(replicaNodes.get(entityId));
+                }
+            }
+            if (entityNodes != null) {
+                common.putAll(entityId, entityNodes);
+            }
+        }
+        return common.build();
+    }
+
+    @Override
+    public void close() throws Exception {
+        executor.shutdown();
+        for (Replica replica : replicas) {
+            replica.repository.close();
+        }
+        super.close();
+    }
+
+    /**
+     * Replicas that haven't failed.
+     */
+    private synchronized List<Replica> live() {
+        List<Replica> live = new ArrayList<>();
+        for (Replica replica : replicas) {
+            if (!replica.failed) {
+                live.add(replica);
+            }
+        }
+        return live;
+    }
+
+    /**
+     * Run an operation on all live replicas concurrently and wait for it to
+     * finish everywhere. Replicas where it fails are dropped.
+     *
+     * @param what what the operation does, for logging
+     * @return the result of each replica where the operation succeeded, the
+     *         primary first
+     * @throws RuntimeException the failure of the primary
+     */
+    @SuppressWarnings("checkstyle:illegalcatch")
+    private <T> Map<Replica, T> onAll(String what, Function<Replica, T> operation) {
+        Map<Replica, Future<T>> futures = new LinkedHashMap<>();
+        for (Replica replica : live()) {
+            futures.put(replica, executor.submit(() -> operation.apply(replica)));
+        }
+        Map<Replica, T> results = new LinkedHashMap<>();
+        for (Map.Entry<Replica, Future<T>> future : futures.entrySet()) {
+            Replica replica = future.getKey();
+            try {
+                results.put(replica, future.getValue().get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new FatalException("Interrupted while waiting for replicas to " + what, e);
+            } catch (ExecutionException e) {
+                if (replica == replicas.get(0)) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw new FatalException("Primary failed to " + what, e.getCause());
+                }
+                log.error("Replica {} failed to {}, dropping it until restart", replica.repository.getUri(), what,
+                        e.getCause());
+                synchronized (this) {
+                    replica.failed = true;
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * A replica and its state.
+     */
+    private static final class Replica {
+        /**
+         * The replica.
+         */
+        private final RdfRepository repository;
+        /**
+         * Time taken by syncs to the replica.
+         */
+        private final Timer syncTimer = new Timer();
+        /**
+         * Last left off time recorded in the replica, null if unknown.
+         */
+        private volatile Date leftOff;
+        /**
+         * Did the replica fail? It gets nothing until restart then.
+         */
+        private boolean failed;
+        /**
+         * Values the replica had for entities waiting to be synced, by
+         * entity uri.
+         */
+        private final Map<String, Set<String>> values = new ConcurrentHashMap<>();
+        /**
+         * References the replica had for entities waiting to be synced, by
+         * entity uri.
+         */
+        private final Map<String, Set<String>> refs = new ConcurrentHashMap<>();
+
+        Replica(RdfRepository repository) {
+            this.repository = repository;
+        }
+
+        /**
+         * Remember the nodes the replica has for some entities until they
+         * are synced.
+         */
+        void remember(Map<String, Set<String>> known, Collection<String> entityIds,
+                ImmutableSetMultimap<String, String> nodes) {
+            for (String entityId : entityIds) {
+                known.put(entityId, nodes.get(entityId));
+            }
+        }
+
+        /**
+         * The changes to sync to the replica. Changes get the values and
+         * references the replica has but the others don't added to their
+         * cleanup list, unless their new statements use them. The munger
+         * never saw those so it couldn't tell whether they are still used.
+         */
+        Collection<Change> withCleanup(Collection<Change> changes, WikibaseUris uris) {
+            List<Change> replicaChanges = new ArrayList<>(changes.size());
+            boolean copied = false;
+            for (Change change : changes) {
+                String entityUri = uris.entity() + change.entityId();
+                Set<String> nodes = new HashSet<>();
+                nodes.addAll(values.getOrDefault(entityUri, Collections.emptySet()));
+                nodes.addAll(refs.getOrDefault(entityUri, Collections.emptySet()));
+                values.remove(entityUri);
+                refs.remove(entityUri);
+                if (change.getStatements() != null && change.getCleanupList() != null) {
+                    nodes.removeAll(change.getCleanupList());
+                    nodes.removeAll(ValueUsageIndex.nodesOf(change.getStatements(), uris));
+                    if (!nodes.isEmpty()) {
+                        List<String> cleanupList = new ArrayList<>(change.getCleanupList());
+                        cleanupList.addAll(nodes);
+                        change = change.withCleanupList(cleanupList);
+                        copied = true;
+                    }
+                }
+                replicaChanges.add(change);
+            }
+            return copied ? replicaChanges : changes;
+        }
+
+        /**
+         * How far the replica is behind the present.
+         *
+         * @return the lag in milliseconds or -1 if unknown
+         */
+        long lag() {
+            Date date = leftOff;
+            return date == null ? -1 : System.currentTimeMillis() - date.getTime();
+        }
+    }
+}
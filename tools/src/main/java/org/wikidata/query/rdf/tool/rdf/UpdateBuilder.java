@@ -1,6 +1,10 @@
 package org.wikidata.query.rdf.tool.rdf;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.xml.datatype.XMLGregorianCalendar;
 
@@ -12,22 +16,50 @@ import org.openrdf.model.vocabulary.XMLSchema;
 
 /**
  * Quick and dirty update builder.
+ *
+ * Bindings are only recorded and the update is rendered in one pass over the
+ * template when it is needed, with the statements and uris written straight
+ * into the output. That way large bindings, like the inserted statements of a
+ * batch, are only written once. The update can also be written to a writer a
+ * chunk at a time so it is never held in memory as a whole.
  */
 public class UpdateBuilder {
     /**
-     * The actual update text.
+     * Rough guess of the length of a rendered statement, to size the output.
      */
-    private String update;
+    private static final int STATEMENT_LENGTH_ESTIMATE = 120;
+    /**
+     * Size of the chunks written to a writer, in characters.
+     */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The template the update is rendered from.
+     */
+    private final UpdateTemplate template;
+    /**
+     * Bindings of the placeholders, by name.
+     */
+    private final Map<String, Binding> bindings = new HashMap<>();
 
     public UpdateBuilder(String template) {
-        update = template;
+        this(new UpdateTemplate(template));
+    }
+
+    public UpdateBuilder(UpdateTemplate template) {
+        this.template = template;
     }
 
     /**
      * Bind a string to a name.
      */
     public UpdateBuilder bind(String from, String to) {
-        update = update.replace('%' + from + '%', to);
+        bindings.put(from, new Binding(to.length()) {
+            @Override
+            void render(Output out) {
+                out.buffer.append(to);
+            }
+        });
         return this;
     }
 
@@ -35,8 +67,9 @@ public class UpdateBuilder {
      * Bind a value to a name.
      */
     public UpdateBuilder bindValue(String from, Object to) {
-        update = update.replace('%' + from + '%', str(to));
-        return this;
+        StringBuilder b = new StringBuilder();
+        appendTerm(b, to);
+        return bind(from, b.toString());
     }
 
     /**
@@ -51,13 +84,26 @@ public class UpdateBuilder {
      * Bind some statements to a string.
      */
     public UpdateBuilder bindStatements(String from, Collection<Statement> statements) {
-        StringBuilder b = new StringBuilder(statements.size() * 30);
-        for (Statement s : statements) {
-            b.append(str(s.getSubject())).append(' ');
-            b.append(str(s.getPredicate())).append(' ');
-            b.append(str(s.getObject())).append(" .\n");
-        }
-        bind(from, b.toString().trim());
+        bindings.put(from, new Binding(statements.size() * STATEMENT_LENGTH_ESTIMATE) {
+            @Override
+            void render(Output out) throws IOException {
+                StringBuilder b = out.buffer;
+                boolean first = true;
+                for (Statement s : statements) {
+                    out.flushIfFull();
+                    if (!first) {
+                        b.append('\n');
+                    }
+                    first = false;
+                    appendTerm(b, s.getSubject());
+                    b.append(' ');
+                    appendTerm(b, s.getPredicate());
+                    b.append(' ');
+                    appendTerm(b, s.getObject());
+                    b.append(" .");
+                }
+            }
+        });
         return this;
     }
 
@@ -65,17 +111,31 @@ public class UpdateBuilder {
      * Bind some values to a string.
      */
     public UpdateBuilder bindValues(String from, Collection<Statement> statements) {
-        StringBuilder b = new StringBuilder(statements.size() * 30);
-        for (Statement s : statements) {
-            if (s.getObject() instanceof BNode || s.getSubject() instanceof BNode) {
-                // skip bnodes since they can not be matched anyway
-                continue;
+        bindings.put(from, new Binding(statements.size() * STATEMENT_LENGTH_ESTIMATE) {
+            @Override
+            void render(Output out) throws IOException {
+                StringBuilder b = out.buffer;
+                boolean first = true;
+                for (Statement s : statements) {
+                    out.flushIfFull();
+                    if (s.getObject() instanceof BNode || s.getSubject() instanceof BNode) {
+                        // skip bnodes since they can not be matched anyway
+                        continue;
+                    }
+                    if (!first) {
+                        b.append('\n');
+                    }
+                    first = false;
+                    b.append("( ");
+                    appendTerm(b, s.getSubject());
+                    b.append(' ');
+                    appendTerm(b, s.getPredicate());
+                    b.append(' ');
+                    appendTerm(b, s.getObject());
+                    b.append(" )");
+                }
             }
-            b.append("( ").append(str(s.getSubject())).append(' ');
-            b.append(str(s.getPredicate())).append(' ');
-            b.append(str(s.getObject())).append(" )\n");
-        }
-        bind(from, b.toString().trim());
+        });
         return this;
     }
 
@@ -90,64 +150,215 @@ public class UpdateBuilder {
      * Bind some uris to a string.
      */
     public UpdateBuilder bindUris(String from, Collection<String> uris, String prefix) {
-        StringBuilder b = new StringBuilder(uris.size() * 80);
-
-        for (String s : uris) {
-            b.append('<').append(prefix).append(s).append("> ");
-        }
-        bind(from, b.toString().trim());
+        bindings.put(from, new Binding(uris.size() * 80) {
+            @Override
+            void render(Output out) throws IOException {
+                StringBuilder b = out.buffer;
+                boolean first = true;
+                for (String s : uris) {
+                    out.flushIfFull();
+                    if (!first) {
+                        b.append(' ');
+                    }
+                    first = false;
+                    b.append('<').append(prefix).append(s).append('>');
+                }
+            }
+        });
         return this;
     }
 
     @Override
     public String toString() {
-        return update;
+        int length = template.textLength();
+        for (int i = 0; i < template.placeholders(); i++) {
+            Binding binding = bindings.get(template.name(i));
+            length += binding == null ? template.name(i).length() + 2 : binding.lengthEstimate;
+        }
+        Output out = new Output(new StringBuilder(length), null);
+        try {
+            render(out);
+        } catch (IOException e) {
+            throw new IllegalStateException("Rendering to a string can't fail", e);
+        }
+        return out.buffer.toString();
+    }
+
+    /**
+     * Write the update to a writer a chunk at a time.
+     *
+     * @return the number of characters written
+     * @throws IOException if the writer fails
+     */
+    public long writeTo(Writer writer) throws IOException {
+        Output out = new Output(new StringBuilder(CHUNK_SIZE + STATEMENT_LENGTH_ESTIMATE * 4), writer);
+        render(out);
+        out.flush();
+        return out.written;
+    }
+
+    /**
+     * Render the template with the bindings.
+     */
+    private void render(Output out) throws IOException {
+        for (int i = 0; i < template.placeholders(); i++) {
+            out.buffer.append(template.text(i));
+            Binding binding = bindings.get(template.name(i));
+            if (binding == null) {
+                // Unbound placeholders are left as they are
+                out.buffer.append('%').append(template.name(i)).append('%');
+            } else {
+                binding.render(out);
+            }
+        }
+        out.buffer.append(template.text(template.placeholders()));
     }
 
     /**
      * Properly stringify a subject, predicate, or object so it fits in the
      * update query.
      */
-    private String str(Object o) {
+    static void appendTerm(StringBuilder b, Object o) {
         if (o instanceof String) {
             // Got to escape those quotes
-            return o.toString().replace("\"", "\\\"");
+            appendEscaped(b, o.toString(), false);
+            return;
         }
         if (o instanceof URI) {
-            return '<' + o.toString() + '>';
+            b.append('<').append(o.toString()).append('>');
+            return;
         }
         if (o instanceof XMLGregorianCalendar) {
             XMLGregorianCalendar c = (XMLGregorianCalendar) o;
-            StringBuilder sb = new StringBuilder();
-            sb.append('"');
-            sb.append(c.toXMLFormat());
-            sb.append("\"^^<xsd:dateTime>");
-            return sb.toString();
+            b.append('"');
+            b.append(c.toXMLFormat());
+            b.append("\"^^<xsd:dateTime>");
+            return;
         }
         if (o instanceof Literal) {
             Literal l = (Literal) o;
             // This is very similar to LiteralImpl's toString but with label
             // escaping.
-            StringBuilder sb = new StringBuilder(l.getLabel().length() * 2);
-
-            sb.append('"');
-            sb.append(l.getLabel().replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"));
-            sb.append('"');
+            b.append('"');
+            appendEscaped(b, l.getLabel(), true);
+            b.append('"');
 
             if (l.getLanguage() != null) {
-                sb.append('@');
-                sb.append(l.getLanguage());
+                b.append('@');
+                b.append(l.getLanguage());
             } else if (!l.getDatatype().equals(XMLSchema.STRING)) {
-                sb.append("^^<");
-                sb.append(l.getDatatype());
-                sb.append('>');
+                b.append("^^<");
+                b.append(l.getDatatype());
+                b.append('>');
             }
-
-            return sb.toString();
+            return;
         }
         if (o instanceof BNode) {
-            return "_:" + ((BNode) o).getID();
+            b.append("_:").append(((BNode) o).getID());
+            return;
         }
         throw new RuntimeException("I have no idea what do to with a " + o.getClass());
     }
+
+    /**
+     * Append a string escaping its quotes and, for literal labels, its
+     * backslashes and newlines.
+     */
+    private static void appendEscaped(StringBuilder b, String s, boolean label) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                b.append("\\\"");
+                break;
+            case '\\':
+                if (label) {
+                    b.append("\\\\");
+                } else {
+                    b.append(c);
+                }
+                break;
+            case '\n':
+                if (label) {
+                    b.append("\\n");
+                } else {
+                    b.append(c);
+                }
+                break;
+            default:
+                b.append(c);
+            }
+        }
+    }
+
+    /**
+     * Renders the value bound to a placeholder.
+     */
+    private abstract static class Binding {
+        /**
+         * Rough length of the rendered value.
+         */
+        private final int lengthEstimate;
+
+        Binding(int lengthEstimate) {
+            this.lengthEstimate = lengthEstimate;
+        }
+
+        /**
+         * Write the value.
+         */
+        abstract void render(Output out) throws IOException;
+    }
+
+    /**
+     * Where the update is rendered: a buffer, and optionally a writer the
+     * buffer is emptied into whenever it holds a chunk.
+     */
+    private static final class Output {
+        /**
+         * Buffer the update is rendered into.
+         */
+        private final StringBuilder buffer;
+        /**
+         * Writer the buffer is emptied into, null if the update is rendered
+         * to the buffer as a whole.
+         */
+        private final Writer writer;
+        /**
+         * Reused to copy the buffer to the writer.
+         */
+        private char[] chars;
+        /**
+         * Number of characters written to the writer so far.
+         */
+        private long written;
+
+        Output(StringBuilder buffer, Writer writer) {
+            this.buffer = buffer;
+            this.writer = writer;
+        }
+
+        /**
+         * Empty the buffer into the writer if it holds a whole chunk.
+         */
+        void flushIfFull() throws IOException {
+            if (writer != null && buffer.length() >= CHUNK_SIZE) {
+                flush();
+            }
+        }
+
+        /**
+         * Empty the buffer into the writer.
+         */
+        void flush() throws IOException {
+            int length = buffer.length();
+            if (chars == null || chars.length < length) {
+                chars = new char[Math.max(length, CHUNK_SIZE)];
+            }
+            buffer.getChars(0, length, chars, 0);
+            writer.write(chars, 0, length);
+            written += length;
+            buffer.setLength(0);
+        }
+    }
 }
@@ -0,0 +1,81 @@
+package org.wikidata.query.rdf.tool.rdf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * SPARQL template split into its text and its %placeholder%s once, so
+ * rendering it doesn't have to search and copy the whole text for every
+ * placeholder.
+ */
+public class UpdateTemplate {
+    /**
+     * Pattern of the placeholders.
+     */
+    private static final Pattern PLACEHOLDER = Pattern.compile("%([\\w.:]+)%");
+
+    /**
+     * The text around the placeholders. The text at i comes right before the
+     * placeholder at i, the last text comes after the last placeholder.
+     */
+    private final String[] text;
+    /**
+     * Names of the placeholders, in order. A name appears once for every time
+     * its placeholder is in the template.
+     */
+    private final String[] names;
+    /**
+     * Length of the text without the placeholders.
+     */
+    private final int textLength;
+
+    public UpdateTemplate(String template) {
+        List<String> textList = new ArrayList<>();
+        List<String> nameList = new ArrayList<>();
+        Matcher m = PLACEHOLDER.matcher(template);
+        int last = 0;
+        int length = 0;
+        while (m.find()) {
+            textList.add(template.substring(last, m.start()));
+            nameList.add(m.group(1));
+            length += m.start() - last;
+            last = m.end();
+        }
+        textList.add(template.substring(last));
+        length += template.length() - last;
+        text = textList.toArray(new String[textList.size()]);
+        names = nameList.toArray(new String[nameList.size()]);
+        textLength = length;
+    }
+
+    /**
+     * Number of placeholders in the template.
+     */
+    int placeholders() {
+        return names.length;
+    }
+
+    /**
+     * Name of a placeholder.
+     */
+    String name(int placeholder) {
+        return names[placeholder];
+    }
+
+    /**
+     * Text right before a placeholder, or after the last one if placeholder
+     * is the number of placeholders.
+     */
+    String text(int placeholder) {
+        return text[placeholder];
+    }
+
+    /**
+     * Length of the text without the placeholders.
+     */
+    int textLength() {
+        return textLength;
+    }
+}
@@ -0,0 +1,395 @@
+package org.wikidata.query.rdf.tool.wikibase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikidata.query.rdf.tool.exception.FatalException;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.google.common.io.ByteStreams;
+
+/**
+ * On disk cache of the RDF wikibase returned for entities.
+ *
+ * Only the last response for each entity is kept, together with the revision
+ * of the entity it contains and its ETag. Responses are written before that
+ * revision is known and committed once their RDF was read, so a stale
+ * response is never recorded as the revision that was asked for. A fetch
+ * for the same revision is served
+ * from the cache without asking wikibase, and a fetch for another revision
+ * sends the ETag so wikibase can answer that nothing changed. The cache holds
+ * at most a fixed number of entities and forgets the least recently used
+ * ones. Entries are written to a temporary file and moved in place so a crash
+ * never leaves a partial entry behind.
+ */
+public class RdfResponseCache {
+    private static final Logger log = LoggerFactory.getLogger(RdfResponseCache.class);
+
+    /**
+     * Entity ids that can be used as file names.
+     */
+    private static final Pattern CACHEABLE_ID = Pattern.compile("[A-Za-z0-9-]{1,64}");
+    /**
+     * Suffix of cache entry files.
+     */
+    private static final String SUFFIX = ".rdf";
+
+    /**
+     * Directory holding the cache entries.
+     */
+    private final Path directory;
+    /**
+     * Maximum number of cached entities.
+     */
+    private final int maxEntries;
+    /**
+     * Cached entities with the revision of their response, least recently
+     * used first.
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Fetches served from the cache without asking wikibase.
+     */
+    private final Meter hits = new Meter();
+    /**
+     * Fetches wikibase answered with not modified.
+     */
+    private final Meter notModified = new Meter();
+    /**
+     * Fetches that had to download the RDF.
+     */
+    private final Meter misses = new Meter();
+
+    public RdfResponseCache(Path directory, int maxEntries) {
+        this.directory = directory;
+        this.maxEntries = maxEntries;
+        try {
+            Files.createDirectories(directory);
+            load();
+        } catch (IOException e) {
+            throw new FatalException("Can't open RDF cache in " + directory, e);
+        }
+    }
+
+    /**
+     * Can the RDF of this entity be cached?
+     */
+    public static boolean isCacheable(String entityId) {
+        return CACHEABLE_ID.matcher(entityId).matches();
+    }
+
+    /**
+     * Find the cached response for an entity.
+     *
+     * @return the entry or null if the entity isn't cached
+     */
+    public synchronized Entry get(String entityId) {
+        Long revision = entries.get(entityId);
+        if (revision == null) {
+            return null;
+        }
+        return new Entry(entityId, revision);
+    }
+
+    /**
+     * Cache a response whose revision is known.
+     *
+     * @param revision revision of the entity in the response, -1 if unknown
+     * @param etag ETag of the response, null if it had none
+     * @param body the response body, read until its end
+     * @return the new entry
+     * @throws IOException if the response can't be read or written
+     */
+    public Entry put(String entityId, long revision, String etag, InputStream body) throws IOException {
+        try (Pending pending = write(entityId, etag, body)) {
+            return pending.commit(revision);
+        }
+    }
+
+    /**
+     * Start caching a response. The response isn't visible until it is
+     * committed with the revision it contains, so it can be read first to
+     * find that revision. Closing the pending response without committing it
+     * drops it.
+     *
+     * @param etag ETag of the response, null if it had none
+     * @param body the response body, read until its end
+     * @return the pending response
+     * @throws IOException if the response can't be read or written
+     */
+    public Pending write(String entityId, String etag, InputStream body) throws IOException {
+        Path tmp = Files.createTempFile(directory, entityId, ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeLong(-1);
+            out.writeUTF(etag == null ? "" : etag);
+            ByteStreams.copy(body, out);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        return new Pending(entityId, tmp);
+    }
+
+    /**
+     * Forget the cached response of an entity, for example because it was
+     * deleted.
+     */
+    public synchronized void remove(String entityId) {
+        if (entries.remove(entityId) == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file(entityId));
+        } catch (IOException e) {
+            log.warn("Can't delete RDF cache entry for {}", entityId, e);
+        }
+    }
+
+    /**
+     * Record a fetch served from the cache.
+     */
+    public void hit() {
+        hits.mark();
+    }
+
+    /**
+     * Record a fetch wikibase answered with not modified.
+     */
+    public void notModified() {
+        notModified.mark();
+    }
+
+    /**
+     * Record a fetch that downloaded the RDF.
+     */
+    public void miss() {
+        misses.mark();
+    }
+
+    /**
+     * Number of cached entities.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Publish the cache's metrics.
+     */
+    public void registerMetrics(MetricRegistry metrics) {
+        metrics.register("rdf-cache-hits", hits);
+        metrics.register("rdf-cache-not-modified", notModified);
+        metrics.register("rdf-cache-misses", misses);
+        metrics.register("rdf-cache-hit-ratio", new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                long served = hits.getCount() + notModified.getCount();
+                return Ratio.of(served, served + misses.getCount());
+            }
+        });
+    }
+
+    /**
+     * File holding the entry of an entity.
+     */
+    private Path file(String entityId) {
+        return directory.resolve(entityId + SUFFIX);
+    }
+
+    /**
+     * Load the entries left by a previous run, oldest first, dropping
+     * leftover temporary files.
+     */
+    private void load() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                if (path.getFileName().toString().endsWith(SUFFIX)) {
+                    files.add(path);
+                } else if (path.getFileName().toString().endsWith(".tmp")) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+        Map<Path, FileTime> modified = new LinkedHashMap<>();
+        for (Path path : files) {
+            modified.put(path, Files.getLastModifiedTime(path));
+        }
+        files.sort(Comparator.comparing(modified::get));
+        for (Path path : files) {
+            String name = path.getFileName().toString();
+            String entityId = name.substring(0, name.length() - SUFFIX.length());
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(path))) {
+                entries.put(entityId, in.readLong());
+            } catch (IOException e) {
+                log.warn("Dropping unreadable RDF cache entry {}", path, e);
+                Files.deleteIfExists(path);
+            }
+        }
+        evict();
+        log.info("Loaded {} entries from the RDF cache in {}", entries.size(), directory);
+    }
+
+    /**
+     * Forget the least recently used entities beyond the maximum.
+     */
+    private void evict() {
+        Iterator<String> eldest = entries.keySet().iterator();
+        while (entries.size() > maxEntries && eldest.hasNext()) {
+            String entityId = eldest.next();
+            eldest.remove();
+            try {
+                Files.deleteIfExists(file(entityId));
+            } catch (IOException e) {
+                log.warn("Can't delete RDF cache entry for {}", entityId, e);
+            }
+        }
+    }
+
+    /**
+     * A response written but not committed yet.
+     */
+    public final class Pending implements Closeable {
+        /**
+         * Id of the entity.
+         */
+        private final String entityId;
+        /**
+         * Temporary file holding the response.
+         */
+        private final Path tmp;
+
+        private Pending(String entityId, Path tmp) {
+            this.entityId = entityId;
+            this.tmp = tmp;
+        }
+
+        /**
+         * Open the response body.
+         *
+         * @throws IOException if the response can't be read
+         */
+        public InputStream open() throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(tmp)));
+            try {
+                in.readLong();
+                in.readUTF();
+                return in;
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Make the response the cached response of the entity.
+         *
+         * @param revision revision of the entity in the response, -1 if
+         *            unknown
+         * @return the new entry
+         * @throws IOException if the response can't be moved in place
+         */
+        public Entry commit(long revision) throws IOException {
+            try (RandomAccessFile file = new RandomAccessFile(tmp.toFile(), "rw")) {
+                file.writeLong(revision);
+            }
+            synchronized (RdfResponseCache.this) {
+                Files.move(tmp, file(entityId), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                entries.put(entityId, revision);
+                evict();
+            }
+            return new Entry(entityId, revision);
+        }
+
+        /**
+         * Drop the response if it wasn't committed.
+         */
+        @Override
+        public void close() throws IOException {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * A cached response.
+     */
+    public final class Entry {
+        /**
+         * Id of the entity.
+         */
+        private final String entityId;
+        /**
+         * Revision of the entity in the response, -1 if unknown.
+         */
+        private final long revision;
+
+        private Entry(String entityId, long revision) {
+            this.entityId = entityId;
+            this.revision = revision;
+        }
+
+        /**
+         * Revision of the entity in the response, -1 if unknown.
+         */
+        public long revision() {
+            return revision;
+        }
+
+        /**
+         * Read the ETag of the response.
+         *
+         * @return the ETag or null if the response had none
+         * @throws IOException if the entry was evicted or can't be read
+         */
+        public String etag() throws IOException {
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(file(entityId)))) {
+                in.readLong();
+                String etag = in.readUTF();
+                return etag.isEmpty() ? null : etag;
+            }
+        }
+
+        /**
+         * Open the response body.
+         *
+         * @throws IOException if the entry was evicted or can't be read
+         */
+        public InputStream open() throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file(entityId))));
+            try {
+                if (in.readLong() != revision) {
+                    throw new IOException(String.format(Locale.ROOT,
+                            "RDF cache entry for %s was replaced", entityId));
+                }
+                in.readUTF();
+                return in;
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package org.wikidata.query.rdf.tool.wikibase;
 
 import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.InterruptedIOException;
 import java.net.SocketException;
@@ -12,17 +14,24 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLHandshakeException;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.http.Consts;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
@@ -43,8 +52,19 @@ import org.apache.http.impl.client.DefaultServiceUnavailableRetryStrategy;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.protocol.HttpContext;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.InputStreamResponseListener;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.util.HttpCookieStore;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.openrdf.model.Literal;
 import org.openrdf.model.Statement;
 import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandler;
 import org.openrdf.rio.RDFHandlerException;
 import org.openrdf.rio.RDFParseException;
 import org.openrdf.rio.RDFParser;
@@ -52,20 +72,28 @@ import org.openrdf.rio.Rio;
 import org.openrdf.rio.helpers.StatementCollector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.wikidata.query.rdf.common.uri.SchemaDotOrg;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
 import org.wikidata.query.rdf.tool.change.Change;
 import org.wikidata.query.rdf.tool.exception.ContainedException;
 import org.wikidata.query.rdf.tool.exception.FatalException;
 import org.wikidata.query.rdf.tool.exception.RetryableException;
+import org.wikidata.query.rdf.tool.rdf.DelegatingRdfHandler;
+import org.wikidata.query.rdf.tool.rdf.EntityRdfSplitter;
 import org.wikidata.query.rdf.tool.rdf.NormalizingRdfHandler;
 import org.wikidata.query.rdf.tool.wikibase.EditRequest.Label;
 import org.wikidata.query.rdf.tool.wikibase.SearchResponse.SearchResult;
 
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.CountingInputStream;
 import com.google.common.primitives.Longs;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
@@ -93,6 +121,34 @@ public class WikibaseRepository implements Closeable {
      */
     public static final String INPUT_DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss'Z'";
 
+    /**
+     * User agent sent to wikibase.
+     */
+    private static final String USER_AGENT = "Wikidata Query Service Updater";
+
+    /**
+     * Default largest RDF response the asynchronous fetch accepts, in bytes.
+     */
+    private static final long MAX_RDF_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Bytes of a response the asynchronous fetch buffers ahead of the parser
+     * before the client stops reading from the connection.
+     */
+    private static final int STREAM_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * How many requests the asynchronous fetch queues while waiting for a
+     * connection.
+     */
+    private static final int MAX_QUEUED_REQUESTS = 64 * 1024;
+
+    /**
+     * How long idle connections of the asynchronous fetch are kept alive, in
+     * ms.
+     */
+    private static final long KEEP_ALIVE_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
     /**
      * HTTP client for wikibase.
      */
@@ -101,9 +157,41 @@ public class WikibaseRepository implements Closeable {
             .setRetryHandler(getRetryHandler(RETRIES))
             .setServiceUnavailableRetryStrategy(getRetryStrategy(RETRIES, RETRY_INTERVAL))
             .disableCookieManagement()
-            .setUserAgent("Wikidata Query Service Updater")
+            .setUserAgent(USER_AGENT)
             .build();
 
+    /**
+     * Non-blocking HTTP client for asynchronous RDF fetches. Null until the
+     * first asynchronous fetch.
+     */
+    private HttpClient asyncClient;
+
+    /**
+     * Number of connections the asynchronous fetch keeps to wikibase.
+     */
+    private int asyncConnections = 100;
+
+    /**
+     * Largest RDF response the asynchronous fetch accepts, in bytes.
+     */
+    private long maxRdfSize = MAX_RDF_SIZE;
+
+    /**
+     * Cache of RDF responses, null if not used.
+     */
+    private RdfResponseCache responseCache;
+
+    /**
+     * Does wikibase serve several entities in one request? Null until the
+     * first bulk fetch found out.
+     */
+    private volatile Boolean bulkSupported;
+
+    /**
+     * Size in bytes of the RDF responses parsed.
+     */
+    private final Histogram fetchBytes = new Histogram(new ExponentiallyDecayingReservoir());
+
     /**
      * Builds uris to get stuff from wikibase.
      */
@@ -256,36 +344,706 @@ public class WikibaseRepository implements Closeable {
      *             wikibase
      */
     public Collection<Statement> fetchRdfForEntity(String entityId) throws RetryableException {
+        return fetchRdfForEntity(entityId, -1);
+    }
+
+    /**
+     * Fetch the RDF for some revision of an entity. The revision is only
+     * used to serve the fetch from the response cache, when the cached
+     * response contains that revision, and the latest RDF of the entity is
+     * returned.
+     *
+     * @param revision revision the fetch is for, -1 if unknown
+     * @throws RetryableException thrown if there is an error communicating with
+     *             wikibase
+     */
+    public Collection<Statement> fetchRdfForEntity(String entityId, long revision) throws RetryableException {
+        StatementCollector collector = new StatementCollector();
+        fetchRdfForEntity(entityId, revision, collector);
+        return collector.getStatements();
+    }
+
+    /**
+     * Fetch the RDF for some entity, handing the statements to a handler as
+     * they are read from the response instead of collecting them first. The
+     * handler doesn't see anything if the entity doesn't exist. Retries must
+     * use a fresh handler because a failed fetch may have fed it some
+     * statements.
+     *
+     * @param revision revision the fetch is for, -1 if unknown
+     * @param handler handler receiving the normalized statements
+     * @throws RetryableException thrown if there is an error communicating with
+     *             wikibase
+     */
+    public void fetchRdfForEntity(String entityId, long revision, RDFHandler handler) throws RetryableException {
         // TODO handle ?flavor=dump or whatever parameters we need
         URI uri = uris.rdf(entityId);
+        RdfResponseCache.Entry cached = cachedEntry(entityId);
+        if (cached != null && revision > 0 && cached.revision() == revision) {
+            if (parseCached(cached, uri, handler)) {
+                responseCache.hit();
+                return;
+            }
+            cached = null;
+        }
+        String etag = etag(cached);
         long start = System.currentTimeMillis();
         log.debug("Fetching rdf from {}", uri);
-        RDFParser parser = Rio.createParser(RDFFormat.TURTLE);
-        StatementCollector collector = new StatementCollector();
-        parser.setRDFHandler(new NormalizingRdfHandler(collector));
         HttpGet request = new HttpGet(uri);
+        if (etag != null) {
+            request.setHeader(HttpHeaders.IF_NONE_MATCH, etag);
+        }
         try {
             try (CloseableHttpResponse response = client.execute(request)) {
-                if (response.getStatusLine().getStatusCode() == 404) {
+                int status = response.getStatusLine().getStatusCode();
+                if (status == HttpStatus.SC_NOT_MODIFIED && etag != null) {
+                    if (!parseCached(cached, uri, handler)) {
+                        throw new RetryableException("Cached RDF for " + entityId + " was evicted while fetching it");
+                    }
+                    responseCache.notModified();
+                    return;
+                }
+                if (status == 404) {
                     // A delete/nonexistent page
-                    return Collections.emptyList();
+                    if (cached != null) {
+                        responseCache.remove(entityId);
+                    }
+                    return;
+                }
+                if (status >= 300) {
+                    throw new ContainedException("Unexpected status code fetching RDF for " + uri + ":  " + status);
+                }
+                if (!cacheable(entityId)) {
+                    parseRdf(response.getEntity().getContent(), uri, handler);
+                } else {
+                    Header newEtag = response.getFirstHeader(HttpHeaders.ETAG);
+                    responseCache.miss();
+                    parseAndCache(entityId, newEtag == null ? null : newEtag.getValue(),
+                            response.getEntity().getContent(), uri, handler);
+                }
+            }
+        } catch (UnknownHostException | SocketException | SSLHandshakeException e) {
+            // We want to bail on this, since it happens to be sticky for some reason
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RetryableException("Error fetching RDF for " + uri, e);
+        }
+        log.debug("Done in {} ms", System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Fetch the RDF for several entities in one request.
+     *
+     * The entities are fetched together from Special:EntityData and the
+     * response is split back into the RDF of each entity. Fetching several
+     * entities at once isn't a documented interface of wikibase so the first
+     * bulk fetch is a probe: unless it is answered with the RDF of at least
+     * two of the entities, entities are fetched one at a time for the rest of
+     * the process. Entities missing from a bulk response, and all of them if
+     * the bulk request fails, are fetched one at a time too, so only their
+     * own fetch can tell they are deleted.
+     *
+     * @param entityIds ids of the entities to fetch
+     * @param wikibaseUris uris used to split the response by entity
+     * @return statements of each entity by id, empty for deleted entities
+     * @throws RetryableException thrown if there is an error communicating with
+     *             wikibase
+     */
+    public Map<String, Collection<Statement>> fetchRdfForEntities(Collection<String> entityIds,
+            WikibaseUris wikibaseUris) throws RetryableException {
+        Map<String, Collection<Statement>> result = new LinkedHashMap<>();
+        if (entityIds.size() > 1 && !Boolean.FALSE.equals(bulkSupported)) {
+            Collection<Statement> statements = fetchBulkRdf(entityIds);
+            if (statements != null) {
+                for (Map.Entry<String, Collection<Statement>> entity
+                        : EntityRdfSplitter.split(statements, entityIds, wikibaseUris).entrySet()) {
+                    if (!entity.getValue().isEmpty()) {
+                        result.put(entity.getKey(), entity.getValue());
+                    }
+                }
+            }
+            if (bulkSupported == null && !probed(result.size() > 1)) {
+                result.clear();
+            }
+        }
+        for (String entityId : entityIds) {
+            if (!result.containsKey(entityId)) {
+                result.put(entityId, fetchRdfForEntity(entityId));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Record the outcome of the first bulk fetch, unless a concurrent one
+     * recorded it first.
+     *
+     * @param supported did the fetch return several entities?
+     * @return is bulk fetching supported
+     */
+    private synchronized boolean probed(boolean supported) {
+        if (bulkSupported == null) {
+            bulkSupported = supported;
+            if (supported) {
+                log.info("Wikibase serves several entities in one request, fetching them in bulk");
+            } else {
+                log.warn("Wikibase doesn't serve several entities in one request, fetching them one at a time");
+            }
+        }
+        return bulkSupported;
+    }
+
+    /**
+     * Fetch the RDF for several entities in one request.
+     *
+     * @return the statements or null if wikibase refused the request
+     */
+    private Collection<Statement> fetchBulkRdf(Collection<String> entityIds) throws RetryableException {
+        URI uri = uris.rdf(entityIds);
+        long start = System.currentTimeMillis();
+        log.debug("Fetching rdf from {}", uri);
+        HttpGet request = new HttpGet(uri);
+        Collection<Statement> statements;
+        try {
+            try (CloseableHttpResponse response = client.execute(request)) {
+                int status = response.getStatusLine().getStatusCode();
+                if (status >= 400 && status < 500) {
+                    // Even a 404 doesn't say which entities are deleted, if any
+                    log.info("Wikibase refused to fetch {} at once ({}), fetching them one at a time", entityIds,
+                            status);
+                    return null;
                 }
-                if (response.getStatusLine().getStatusCode() >= 300) {
-                    throw new ContainedException("Unexpected status code fetching RDF for " + uri + ":  "
-                            + response.getStatusLine().getStatusCode());
+                if (status >= 300) {
+                    throw new ContainedException("Unexpected status code fetching RDF for " + uri + ":  " + status);
                 }
-                parser.parse(new InputStreamReader(response.getEntity().getContent(), Charsets.UTF_8), uri.toString());
+                StatementCollector collector = new StatementCollector();
+                parseRdf(response.getEntity().getContent(), uri, collector);
+                statements = collector.getStatements();
             }
         } catch (UnknownHostException | SocketException | SSLHandshakeException e) {
             // We want to bail on this, since it happens to be sticky for some reason
             throw new RuntimeException(e);
         } catch (IOException e) {
             throw new RetryableException("Error fetching RDF for " + uri, e);
+        }
+        log.debug("Done in {} ms", System.currentTimeMillis() - start);
+        return statements;
+    }
+
+    /**
+     * Fetch the RDF for some entity without blocking the calling thread.
+     *
+     * The request is sent with a non-blocking client that keeps connections
+     * to wikibase alive and pooled, so many fetches can be in flight without
+     * a thread waiting on each of them. Busy responses (503 and 429) are
+     * retried like the blocking fetch does.
+     *
+     * @param entityId id of the entity to fetch
+     * @param parseExecutor executor parsing the responses
+     * @return future statements of the entity, failing with a
+     *         RetryableException if there is an error communicating with
+     *         wikibase and a ContainedException if the response is unusable
+     */
+    public CompletableFuture<Collection<Statement>> fetchRdfForEntityAsync(String entityId, Executor parseExecutor) {
+        return fetchRdfForEntityAsync(entityId, -1, parseExecutor);
+    }
+
+    /**
+     * Fetch the RDF for some revision of an entity without blocking the
+     * calling thread. The revision is only used to serve the fetch from the
+     * response cache.
+     *
+     * @param entityId id of the entity to fetch
+     * @param revision revision the fetch is for, -1 if unknown
+     * @param parseExecutor executor parsing the responses
+     * @return future statements of the entity, failing like
+     *         {@link #fetchRdfForEntityAsync(String, Executor)}
+     */
+    public CompletableFuture<Collection<Statement>> fetchRdfForEntityAsync(String entityId, long revision,
+            Executor parseExecutor) {
+        StatementCollector collector = new StatementCollector();
+        return fetchRdfForEntityAsync(entityId, revision, parseExecutor, collector)
+                .thenApply(v -> collector.getStatements());
+    }
+
+    /**
+     * Fetch the RDF for some entity without blocking the calling thread,
+     * handing the statements to a handler as they are parsed. The handler
+     * doesn't see anything if the entity doesn't exist.
+     *
+     * @param entityId id of the entity to fetch
+     * @param revision revision the fetch is for, -1 if unknown
+     * @param parseExecutor executor parsing the responses
+     * @param handler handler receiving the normalized statements
+     * @return future completing once the handler has seen all statements,
+     *         failing like {@link #fetchRdfForEntityAsync(String, Executor)}
+     */
+    public CompletableFuture<Void> fetchRdfForEntityAsync(String entityId, long revision, Executor parseExecutor,
+            RDFHandler handler) {
+        AsyncRdfFetch fetch = new AsyncRdfFetch(entityId, uris.rdf(entityId), handler);
+        RdfResponseCache.Entry cached = cachedEntry(entityId);
+        if (cached != null && revision > 0 && cached.revision() == revision) {
+            try {
+                parseExecutor.execute(() -> {
+                    try {
+                        if (parseCached(cached, fetch.uri, handler)) {
+                            responseCache.hit();
+                            fetch.result.complete(null);
+                        } else {
+                            sendRdfRequest(fetch, parseExecutor, 1);
+                        }
+                    } catch (RetryableException | ContainedException e) {
+                        fetch.result.completeExceptionally(e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                fetch.result.completeExceptionally(e);
+            }
+        } else {
+            fetch.cached = cached;
+            fetch.etag = etag(cached);
+            sendRdfRequest(fetch, parseExecutor, 1);
+        }
+        return fetch.result;
+    }
+
+    /**
+     * Send one attempt of an asynchronous RDF fetch. The response body is
+     * parsed on the parse executor as it arrives rather than buffered first.
+     *
+     * @param attempt number of this attempt, starting at 1
+     */
+    private void sendRdfRequest(AsyncRdfFetch fetch, Executor parseExecutor, int attempt) {
+        URI uri = fetch.uri;
+        CompletableFuture<Void> result = fetch.result;
+        log.debug("Fetching rdf from {} asynchronously", uri);
+        HttpClient http = asyncClient();
+        Request request = http.newRequest(uri);
+        if (fetch.etag != null) {
+            request.header(HttpHeader.IF_NONE_MATCH, fetch.etag);
+        }
+        request.send(new InputStreamResponseListener(STREAM_BUFFER_SIZE) {
+            /**
+             * Were the headers handled? Failures after that show up while
+             * reading the body.
+             */
+            private volatile boolean headersHandled;
+
+            @Override
+            public void onHeaders(Response response) {
+                super.onHeaders(response);
+                headersHandled = true;
+                int status = response.getStatus();
+                if ((status == HttpStatus.SC_SERVICE_UNAVAILABLE || status == 429) && attempt <= RETRIES) {
+                    discardBody();
+                    http.getScheduler().schedule(() -> sendRdfRequest(fetch, parseExecutor, attempt + 1),
+                            RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                if (status == HttpStatus.SC_NOT_MODIFIED && fetch.etag != null) {
+                    discardBody();
+                    parseLater(() -> {
+                        if (!parseCached(fetch.cached, uri, fetch.handler)) {
+                            throw new RetryableException("Cached RDF for " + fetch.entityId
+                                    + " was evicted while fetching it");
+                        }
+                        responseCache.notModified();
+                    });
+                    return;
+                }
+                if (status == 404) {
+                    // A delete/nonexistent page
+                    discardBody();
+                    if (fetch.cached != null) {
+                        responseCache.remove(fetch.entityId);
+                    }
+                    result.complete(null);
+                    return;
+                }
+                if (status >= 300) {
+                    discardBody();
+                    result.completeExceptionally(new ContainedException("Unexpected status code fetching RDF for "
+                            + uri + ":  " + status));
+                    return;
+                }
+                if (response.getHeaders().getLongField(HttpHeader.CONTENT_LENGTH.asString()) > maxRdfSize) {
+                    response.abort(new IOException("RDF for " + uri + " is too large"));
+                    result.completeExceptionally(new ContainedException("RDF for " + uri + " is larger than "
+                            + maxRdfSize + " bytes"));
+                    return;
+                }
+                String etag = response.getHeaders().get(HttpHeader.ETAG);
+                // The body arrives on this thread so it must be read on another one
+                hop(() -> parseLater(() -> {
+                    try (InputStream in = new SizeLimitedInputStream(getInputStream(), maxRdfSize)) {
+                        if (cacheable(fetch.entityId)) {
+                            responseCache.miss();
+                            parseAndCache(fetch.entityId, etag, in, uri, fetch.handler);
+                        } else {
+                            parseRdf(in, uri, fetch.handler);
+                        }
+                    } catch (RdfTooLargeException e) {
+                        throw new ContainedException("RDF for " + uri + " is larger than " + maxRdfSize + " bytes", e);
+                    } catch (IOException e) {
+                        throw new RetryableException("Error reading RDF for " + uri, e);
+                    }
+                }));
+            }
+
+            @Override
+            public void onComplete(Result response) {
+                super.onComplete(response);
+                if (!response.isFailed() || headersHandled) {
+                    return;
+                }
+                Throwable failure = response.getFailure();
+                if (failure instanceof UnknownHostException || failure instanceof SocketException
+                        || failure instanceof SSLHandshakeException) {
+                    // We want to bail on this, since it happens to be sticky for some reason
+                    result.completeExceptionally(new RuntimeException(failure));
+                } else {
+                    result.completeExceptionally(new RetryableException("Error fetching RDF for " + uri, failure));
+                }
+            }
+
+            /**
+             * Run a task on the client's executor, off the thread delivering
+             * the response.
+             */
+            private void hop(Runnable task) {
+                try {
+                    http.getExecutor().execute(task);
+                } catch (RejectedExecutionException e) {
+                    discardBody();
+                    result.completeExceptionally(e);
+                }
+            }
+
+            /**
+             * Drop the body of a response that isn't parsed.
+             */
+            private void discardBody() {
+                try {
+                    getInputStream().close();
+                } catch (IOException e) {
+                    log.debug("Error discarding the body of {}", uri, e);
+                }
+            }
+
+            /**
+             * Run a parse on the parse executor and complete the fetch with
+             * its outcome.
+             */
+            private void parseLater(AsyncParse parse) {
+                try {
+                    parseExecutor.execute(() -> {
+                        try {
+                            parse.run();
+                            result.complete(null);
+                        } catch (RetryableException | ContainedException e) {
+                            result.completeExceptionally(e);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Input stream failing with an {@link RdfTooLargeException} once more
+     * than a maximum number of bytes were read from it.
+     */
+    private static final class SizeLimitedInputStream extends FilterInputStream {
+        /**
+         * Bytes that can still be read.
+         */
+        private long remaining;
+
+        SizeLimitedInputStream(InputStream in, long limit) {
+            super(in);
+            remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count(read);
+            }
+            return read;
+        }
+
+        /**
+         * Count bytes read.
+         *
+         * @throws RdfTooLargeException if too many bytes were read
+         */
+        private void count(int read) throws RdfTooLargeException {
+            remaining -= read;
+            if (remaining < 0) {
+                throw new RdfTooLargeException();
+            }
+        }
+    }
+
+    /**
+     * Thrown when RDF is larger than what the fetch accepts. Retrying doesn't
+     * help with that.
+     */
+    private static final class RdfTooLargeException extends IOException {
+        private static final long serialVersionUID = -4071283622373497521L;
+    }
+
+    /**
+     * Delegates statements while recording the revision of an entity, as
+     * stated by its entity data node.
+     */
+    private static final class RevisionRecordingRdfHandler extends DelegatingRdfHandler {
+        /**
+         * Suffix of the entity data node of the entity.
+         */
+        private final String entityDataSuffix;
+        /**
+         * Revision of the entity, -1 until seen.
+         */
+        private long revision = -1;
+
+        RevisionRecordingRdfHandler(RDFHandler next, String entityId) {
+            super(next);
+            entityDataSuffix = "/" + entityId;
+        }
+
+        @Override
+        public void handleStatement(Statement statement) throws RDFHandlerException {
+            if (statement.getPredicate().stringValue().equals(SchemaDotOrg.VERSION)
+                    && statement.getObject() instanceof Literal
+                    && statement.getSubject().stringValue().endsWith(entityDataSuffix)) {
+                try {
+                    revision = ((Literal) statement.getObject()).longValue();
+                } catch (NumberFormatException e) {
+                    log.debug("Ignoring unparseable revision {}", statement.getObject());
+                }
+            }
+            super.handleStatement(statement);
+        }
+    }
+
+    /**
+     * A parse run on the parse executor.
+     */
+    private interface AsyncParse {
+        /**
+         * Parse.
+         *
+         * @throws RetryableException if the fetch should be retried
+         */
+        void run() throws RetryableException;
+    }
+
+    /**
+     * State of an asynchronous RDF fetch shared by its attempts.
+     */
+    private static final class AsyncRdfFetch {
+        /**
+         * Id of the entity.
+         */
+        private final String entityId;
+        /**
+         * Uri of the RDF.
+         */
+        private final URI uri;
+        /**
+         * Handler receiving the statements.
+         */
+        private final RDFHandler handler;
+        /**
+         * Future completed once the handler has seen all statements.
+         */
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+        /**
+         * Cached response of an older revision, null if none.
+         */
+        private RdfResponseCache.Entry cached;
+        /**
+         * ETag of the cached response, null if none.
+         */
+        private String etag;
+
+        AsyncRdfFetch(String entityId, URI uri, RDFHandler handler) {
+            this.entityId = entityId;
+            this.uri = uri;
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * Should responses for this entity be cached?
+     */
+    private boolean cacheable(String entityId) {
+        return responseCache != null && RdfResponseCache.isCacheable(entityId);
+    }
+
+    /**
+     * Cached response for an entity.
+     *
+     * @return the entry or null if there is none
+     */
+    private RdfResponseCache.Entry cachedEntry(String entityId) {
+        return cacheable(entityId) ? responseCache.get(entityId) : null;
+    }
+
+    /**
+     * ETag of a cached response.
+     *
+     * @return the ETag or null if there is none or it can't be read
+     */
+    private String etag(RdfResponseCache.Entry cached) {
+        if (cached == null) {
+            return null;
+        }
+        try {
+            return cached.etag();
+        } catch (IOException e) {
+            log.debug("Can't read the ETag of cached RDF", e);
+            return null;
+        }
+    }
+
+    /**
+     * Parse a cached response into a handler.
+     *
+     * @return false if the response was evicted before it could be opened,
+     *         in which case the handler hasn't seen anything
+     * @throws RetryableException if the response can't be read after it was
+     *             opened
+     */
+    private boolean parseCached(RdfResponseCache.Entry cached, URI uri, RDFHandler handler)
+            throws RetryableException {
+        InputStream content;
+        try {
+            content = cached.open();
+        } catch (IOException e) {
+            log.debug("Cached RDF for {} is gone", uri, e);
+            return false;
+        }
+        try (InputStream in = content) {
+            parseRdf(in, uri, handler);
+        } catch (IOException e) {
+            throw new RetryableException("Error reading cached RDF for " + uri, e);
+        }
+        return true;
+    }
+
+    /**
+     * Cache a response and parse it into a handler. The response is cached
+     * under the revision its RDF contains rather than the one that was asked
+     * for, so a stale response is never served as a newer revision.
+     *
+     * @param etag ETag of the response, null if it had none
+     * @throws IOException if there is an error reading or caching the RDF
+     * @throws ContainedException if the RDF can't be parsed
+     */
+    private void parseAndCache(String entityId, String etag, InputStream body, URI uri, RDFHandler handler)
+            throws IOException {
+        try (RdfResponseCache.Pending pending = responseCache.write(entityId, etag, body)) {
+            RevisionRecordingRdfHandler recorder = new RevisionRecordingRdfHandler(handler, entityId);
+            try (InputStream in = pending.open()) {
+                parseRdf(in, uri, recorder);
+            }
+            pending.commit(recorder.revision);
+        }
+    }
+
+    /**
+     * Parse and normalize the RDF of an entity into a handler.
+     *
+     * @throws IOException if there is an error reading the RDF
+     * @throws ContainedException if the RDF can't be parsed
+     */
+    private void parseRdf(InputStream content, URI uri, RDFHandler handler) throws IOException {
+        RDFParser parser = Rio.createParser(RDFFormat.TURTLE);
+        parser.setRDFHandler(new NormalizingRdfHandler(handler));
+        CountingInputStream counting = new CountingInputStream(content);
+        try {
+            parser.parse(new InputStreamReader(counting, Charsets.UTF_8), uri.toString());
         } catch (RDFParseException | RDFHandlerException e) {
             throw new ContainedException("RDF parsing error for " + uri, e);
+        } finally {
+            fetchBytes.update(counting.getCount());
         }
-        log.debug("Done in {} ms", System.currentTimeMillis() - start);
-        return collector.getStatements();
+    }
+
+    /**
+     * Register the metrics about fetches from wikibase.
+     */
+    public void registerMetrics(MetricRegistry metrics) {
+        metrics.register("fetch-bytes", fetchBytes);
+    }
+
+    /**
+     * Non-blocking client used for asynchronous RDF fetches, started on first
+     * use.
+     */
+    @SuppressWarnings("checkstyle:illegalcatch")
+    private synchronized HttpClient asyncClient() {
+        if (asyncClient == null) {
+            HttpClient http = new HttpClient(new SslContextFactory());
+            http.setMaxConnectionsPerDestination(asyncConnections);
+            http.setMaxRequestsQueuedPerDestination(MAX_QUEUED_REQUESTS);
+            http.setIdleTimeout(KEEP_ALIVE_MILLIS);
+            http.setUserAgentField(new HttpField(HttpHeader.USER_AGENT, USER_AGENT));
+            http.setCookieStore(new HttpCookieStore.Empty());
+            try {
+                http.start();
+            // Who would think declaring it as throws Exception is a good idea?
+            } catch (Exception e) {
+                throw new FatalException("Unable to start async HttpClient", e);
+            }
+            asyncClient = http;
+        }
+        return asyncClient;
+    }
+
+    /**
+     * Set the largest RDF response the asynchronous fetch accepts. Larger
+     * responses fail the fetch with a ContainedException.
+     * @return this
+     */
+    WikibaseRepository setMaxRdfSize(long maxRdfSize) {
+        this.maxRdfSize = maxRdfSize;
+        return this;
+    }
+
+    /**
+     * Set the number of connections the asynchronous fetch keeps to wikibase.
+     * Must be called before the first asynchronous fetch.
+     * @return this
+     */
+    public WikibaseRepository setAsyncConnections(int asyncConnections) {
+        this.asyncConnections = asyncConnections;
+        return this;
+    }
+
+    /**
+     * Cache the RDF fetched for entities on disk and serve repeated fetches of
+     * the same revision from it. Fetches for other revisions are sent as
+     * conditional requests using the cached ETag.
+     * @return this
+     */
+    public WikibaseRepository setResponseCache(RdfResponseCache responseCache) {
+        this.responseCache = responseCache;
+        return this;
     }
 
     /**
@@ -434,8 +1192,19 @@ public class WikibaseRepository implements Closeable {
     }
 
     @Override
+    @SuppressWarnings("checkstyle:illegalcatch")
     public void close() throws IOException {
         client.close();
+        synchronized (this) {
+            if (asyncClient != null) {
+                try {
+                    asyncClient.stop();
+                } catch (Exception e) {
+                    throw new IOException("Unable to stop async HttpClient", e);
+                }
+                asyncClient = null;
+            }
+        }
     }
 
     /**
@@ -522,6 +1291,21 @@ public class WikibaseRepository implements Closeable {
             return build(builder);
         }
 
+        /**
+         * Uri to get the rdf for several entities at once. Not a documented
+         * interface of wikibase, so check what the response contains.
+         */
+        public URI rdf(Collection<String> entityIds) {
+            URIBuilder builder = builder();
+            builder.setPath("/wiki/Special:EntityData");
+            builder.addParameter("id", String.join("|", entityIds));
+            builder.addParameter("format", "ttl");
+            // Cache is not our friend, try to work around it
+            builder.addParameter("nocache", Long.toString(new Date().getTime()));
+            builder.addParameter("flavor", "dump");
+            return build(builder);
+        }
+
         /**
          * Uri to fetch a csrf token.
          */
@@ -8,12 +8,14 @@ import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.wikidata.query.rdf.common.uri.WikibaseUris;
 import org.wikidata.query.rdf.test.CloseableRule;
 import org.wikidata.query.rdf.tool.change.Change;
 import org.wikidata.query.rdf.tool.change.IdRangeChangeSource;
 import org.wikidata.query.rdf.tool.rdf.Munger;
+import org.wikidata.query.rdf.tool.wikibase.RdfResponseCache;
 import org.wikidata.query.rdf.tool.wikibase.WikibaseRepository;
 
 import com.carrotsearch.randomizedtesting.RandomizedRunner;
@@ -39,7 +41,11 @@ public class AbstractUpdaterIntegrationTestBase extends RandomizedTest {
      */
     @Rule
     public RdfRepositoryForTesting rdfRepository = new RdfRepositoryForTesting("wdq");
-
+    /**
+     * Folder for the revision index.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
 
     /**
      * Update all ids from from to to.
@@ -49,6 +55,36 @@ public class AbstractUpdaterIntegrationTestBase extends RandomizedTest {
         ExecutorService executorService = new ThreadPoolExecutor(0, 10, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
         WikibaseUris uris = new WikibaseUris("www.wikidata.org");
         try (Updater<?> updater = new Updater<>(source, wikibaseRepository.get(), rdfRepository, munger, executorService, 0, uris, false)) {
+            // Exercise the sequential, streaming and pipelined update loops
+            updater.setPipelineDepth(randomIntBetween(0, 2));
+            updater.setSyncFlush(randomIntBetween(0, 5), 0, 0);
+            updater.setContentHashes(randomBoolean());
+            updater.setAsyncFetch(randomBoolean());
+            updater.setBulkFetch(randomIntBetween(0, 10));
+            updater.setStreamingMunge(randomBoolean());
+            if (randomBoolean()) {
+                RevisionIndex revisionIndex = new RevisionIndex(folder.getRoot().toPath());
+                revisionIndex.checkStore(rdfRepository.getUri(), rdfRepository.fetchLeftOffTime());
+                updater.setRevisionIndex(revisionIndex, randomIntBetween(0, 2));
+            }
+            if (randomBoolean()) {
+                updater.setFetchScheduler(new LargestFirstScheduler(randomIntBetween(1, 100)));
+            }
+            if (randomBoolean()) {
+                // Held changes are all released with the last batch
+                updater.setCoalescingWindow(new CoalescingWindow(randomIntBetween(1, 1000), randomIntBetween(1, 1000)));
+            }
+            if (randomBoolean()) {
+                updater.setResponseCache(new RdfResponseCache(folder.getRoot().toPath().resolve("rdf-cache"),
+                        randomIntBetween(1, 100)));
+            }
+            if (randomBoolean()) {
+                updater.setJournal(new ChangeJournal(folder.getRoot().toPath().resolve("journal"),
+                        randomIntBetween(1024, 1024 * 1024), randomBoolean()));
+            }
+            if (randomBoolean()) {
+                updater.setUsageIndex(new ValueUsageIndex(randomIntBetween(1, 100)));
+            }
             updater.run();
         }
     }
@@ -0,0 +1,103 @@
+package org.wikidata.query.rdf.tool;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class AdaptiveBatchSizerUnitTest {
+    @Test
+    public void startsAtMaxSyncSize() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(1000, 10000, 100, 10);
+        assertEquals(100, sizer.syncSize());
+        assertEquals(5, sizer.fetchThreads());
+    }
+
+    @Test
+    public void shrinksWhenSlow() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(1000, 10000, 100, 10);
+        sizer.syncDone(100, 5000, 1500);
+        assertThat(sizer.syncSize(), lessThan(100));
+        assertThat(sizer.syncSize(), greaterThan(49));
+    }
+
+    @Test
+    public void shrinksAtMostByHalf() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(1000, 10000, 100, 10);
+        sizer.syncDone(100, 5000, 100000);
+        assertEquals(50, sizer.syncSize());
+    }
+
+    @Test
+    public void shrinksWhenTooManyStatements() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(1000, 10000, 100, 10);
+        sizer.syncDone(100, 20000, 10);
+        assertEquals(50, sizer.syncSize());
+    }
+
+    @Test
+    public void neverBelowMin() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(1000, 10000, 100, 10);
+        for (int i = 0; i < 20; i++) {
+            sizer.syncDone(sizer.syncSize(), 5000, 100000);
+        }
+        assertEquals(1, sizer.syncSize());
+    }
+
+    @Test
+    public void growsWhenFastAndFull() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(1000, 10000, 100, 10);
+        sizer.syncDone(100, 20000, 10);
+        int shrunk = sizer.syncSize();
+        sizer.syncDone(shrunk, 100, 10);
+        assertThat(sizer.syncSize(), greaterThan(shrunk));
+    }
+
+    @Test
+    public void doesntGrowOnPartialUpdate() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(1000, 10000, 100, 10);
+        sizer.syncDone(100, 20000, 10);
+        int shrunk = sizer.syncSize();
+        sizer.syncDone(1, 100, 10);
+        assertEquals(shrunk, sizer.syncSize());
+    }
+
+    @Test
+    public void neverAboveMax() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(1000, 10000, 100, 10);
+        sizer.syncDone(100, 100, 10);
+        assertEquals(100, sizer.syncSize());
+    }
+
+    @Test
+    public void adjustsThreads() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(1000, 10000, 100, 10);
+        sizer.prepareDone(100, 5000);
+        assertEquals(6, sizer.fetchThreads());
+        sizer.prepareDone(100, 10);
+        sizer.prepareDone(100, 10);
+        assertEquals(4, sizer.fetchThreads());
+        for (int i = 0; i < 20; i++) {
+            sizer.prepareDone(100, 10);
+        }
+        assertEquals(1, sizer.fetchThreads());
+        for (int i = 0; i < 20; i++) {
+            sizer.prepareDone(100, 5000);
+        }
+        assertEquals(10, sizer.fetchThreads());
+    }
+
+    @Test
+    public void publishesMetrics() {
+        MetricRegistry metrics = new MetricRegistry();
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(1000, 10000, 100, 10);
+        sizer.registerMetrics(metrics);
+        sizer.syncDone(100, 5000, 100000);
+        assertEquals(50, metrics.getGauges().get("adaptive-sync-size").getValue());
+        assertEquals(5, metrics.getGauges().get("adaptive-fetch-threads").getValue());
+    }
+}
@@ -0,0 +1,103 @@
+package org.wikidata.query.rdf.tool;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Test;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+
+public class BatchContextUnitTest {
+    private final WikibaseUris uris = WikibaseUris.getURISystem();
+
+    private final String value = uris.value() + "0123456789abcdef0123456789abcdef";
+    private final String shortValue = uris.value() + "00ab";
+    private final String ref = uris.reference() + "0123456789abcdef0123456789abcdef01234567";
+    private final String oddValue = uris.value() + "not-a-hash";
+
+    @Test
+    public void splitsValuesAndRefs() {
+        BatchContext context = new BatchContext.Builder(uris)
+                .add("Q1", ImmutableList.of(value, shortValue, ref, oddValue))
+                .build();
+        assertThat(context.values("Q1"), containsInAnyOrder(value, shortValue, oddValue));
+        assertThat(context.refs("Q1"), containsInAnyOrder(ref));
+        assertTrue(context.values("Q1").contains(shortValue));
+        assertTrue(context.values("Q1").contains(oddValue));
+        assertFalse(context.values("Q1").contains(ref));
+        assertFalse(context.values("Q1").contains(uris.value() + "00AB"));
+    }
+
+    @Test
+    public void unknownEntityIsEmpty() {
+        BatchContext context = new BatchContext.Builder(uris).add("Q1", ImmutableList.of(value)).build();
+        assertThat(context.values("Q2"), empty());
+        assertThat(context.refs("Q1"), empty());
+        assertThat(BatchContext.empty(uris).values("Q1"), empty());
+    }
+
+    @Test
+    public void entitiesAreSeparate() {
+        BatchContext context = new BatchContext.Builder(uris)
+                .add("Q1", ImmutableList.of(value))
+                .add("P1", ImmutableList.of(shortValue))
+                .add("L1-F1", ImmutableList.of(ref))
+                .build();
+        assertThat(context.values("Q1"), containsInAnyOrder(value));
+        assertThat(context.values("P1"), containsInAnyOrder(shortValue));
+        assertThat(context.refs("L1-F1"), containsInAnyOrder(ref));
+        assertFalse(context.values("P1").contains(value));
+    }
+
+    @Test
+    public void storedNodesAreFoundByEntityId() {
+        BatchContext context = new BatchContext.Builder(uris)
+                .addStored(ImmutableSetMultimap.of(uris.entity() + "Q1", value, uris.entity() + "Q2", shortValue),
+                        ImmutableSetMultimap.of(uris.entity() + "Q1", ref))
+                .build();
+        assertThat(context.values("Q1"), containsInAnyOrder(value));
+        assertThat(context.refs("Q1"), containsInAnyOrder(ref));
+        assertThat(context.values("Q2"), containsInAnyOrder(shortValue));
+        assertThat(context.values(uris.entity() + "Q1"), empty());
+    }
+
+    @Test
+    public void viewsAreIndependent() {
+        BatchContext context = new BatchContext.Builder(uris)
+                .add("Q1", ImmutableList.of(value, shortValue, oddValue))
+                .build();
+        Collection<String> values = context.values("Q1");
+        assertTrue(values.removeAll(ImmutableSet.of(value, oddValue)));
+        assertThat(values, containsInAnyOrder(shortValue));
+        assertEquals(1, values.size());
+        assertFalse(values.contains(value));
+        assertThat(context.values("Q1"), containsInAnyOrder(value, shortValue, oddValue));
+    }
+
+    @Test
+    public void manyEntities() {
+        BatchContext.Builder builder = new BatchContext.Builder(uris);
+        for (int i = 0; i < 1000; i++) {
+            List<String> nodes = new ArrayList<>();
+            nodes.add(uris.value() + Integer.toHexString(i));
+            nodes.add(uris.reference() + Integer.toHexString(i * 7));
+            builder.add("Q" + i, nodes);
+        }
+        BatchContext context = builder.build();
+        for (int i = 0; i < 1000; i++) {
+            assertThat(context.values("Q" + i), containsInAnyOrder(uris.value() + Integer.toHexString(i)));
+            assertThat(context.refs("Q" + i), containsInAnyOrder(uris.reference() + Integer.toHexString(i * 7)));
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package org.wikidata.query.rdf.tool;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openrdf.model.Statement;
+import org.openrdf.model.impl.BNodeImpl;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.StatementImpl;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.wikidata.query.rdf.tool.change.Change;
+
+public class ChangeJournalUnitTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void unsyncedBatchesAreRecovered() {
+        Path dir = folder.getRoot().toPath();
+        try (ChangeJournal journal = new ChangeJournal(dir, 4096, false)) {
+            long first = journal.append(Collections.singletonList(change("Q1")));
+            journal.append(Collections.singletonList(change("Q2")));
+            journal.synced(first);
+        }
+        try (ChangeJournal journal = new ChangeJournal(dir, 4096, false)) {
+            Map<Long, List<Change>> recovered = journal.recovered();
+            assertEquals(1, recovered.size());
+            Change change = recovered.values().iterator().next().get(0);
+            assertEquals("Q2", change.entityId());
+            assertEquals(1, journal.pendingCount());
+        }
+    }
+
+    @Test
+    public void changesSurviveTheRoundTrip() {
+        Path dir = folder.getRoot().toPath();
+        Change original = change("Q1");
+        try (ChangeJournal journal = new ChangeJournal(dir, 4096, false)) {
+            journal.append(Collections.singletonList(original));
+        }
+        try (ChangeJournal journal = new ChangeJournal(dir, 4096, false)) {
+            Change change = journal.recovered().values().iterator().next().get(0);
+            assertEquals(original.entityId(), change.entityId());
+            assertEquals(original.revision(), change.revision());
+            assertEquals(original.timestamp(), change.timestamp());
+            assertEquals(original.rcid(), change.rcid());
+            assertEquals(new HashSet<>(original.getStatements()), new HashSet<>(change.getStatements()));
+            assertThat(change.getCleanupList(), containsInAnyOrder("wds:Q1-abc"));
+            assertEquals("hash", change.getContentHash());
+            assertThat(change.getUsedNodes(), containsInAnyOrder("wdv:123"));
+        }
+    }
+
+    @Test
+    public void missingFieldsSurviveTheRoundTrip() {
+        Path dir = folder.getRoot().toPath();
+        try (ChangeJournal journal = new ChangeJournal(dir, 4096, false)) {
+            journal.append(Collections.singletonList(new Change("Q1", -1, null, 0)));
+        }
+        try (ChangeJournal journal = new ChangeJournal(dir, 4096, false)) {
+            Change change = journal.recovered().values().iterator().next().get(0);
+            assertNull(change.timestamp());
+            assertNull(change.getStatements());
+            assertNull(change.getCleanupList());
+            assertNull(change.getContentHash());
+            assertNull(change.getUsedNodes());
+        }
+    }
+
+    @Test
+    public void tornWriteIsIgnored() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (ChangeJournal journal = new ChangeJournal(dir, 4096, false)) {
+            journal.append(Collections.singletonList(change("Q1")));
+            journal.append(Collections.singletonList(change("Q2")));
+        }
+        // Scribble over the end of the second record
+        Path segment = segments(dir).get(0);
+        long end = findLastRecordEnd(segment);
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(end - 2);
+            file.writeShort(0xdead);
+        }
+        try (ChangeJournal journal = new ChangeJournal(dir, 4096, false)) {
+            Map<Long, List<Change>> recovered = journal.recovered();
+            assertEquals(1, recovered.size());
+            assertEquals("Q1", recovered.values().iterator().next().get(0).entityId());
+            // And appending after the torn write works
+            journal.append(Collections.singletonList(change("Q3")));
+        }
+        try (ChangeJournal journal = new ChangeJournal(dir, 4096, false)) {
+            assertEquals(2, journal.recovered().size());
+        }
+    }
+
+    @Test
+    public void syncedSegmentsAreDeleted() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (ChangeJournal journal = new ChangeJournal(dir, 1024, false)) {
+            List<Long> ids = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                ids.add(journal.append(Collections.singletonList(change("Q" + i))));
+            }
+            int written = segments(dir).size();
+            assertTrue(written > 2);
+            for (long id : ids.subList(0, 19)) {
+                journal.synced(id);
+            }
+            assertThat(segments(dir).size(), lessThan(written));
+            journal.synced(ids.get(19));
+            assertThat(segments(dir), hasSize(1));
+        }
+        try (ChangeJournal journal = new ChangeJournal(dir, 1024, false)) {
+            assertTrue(journal.recovered().isEmpty());
+        }
+    }
+
+    @Test
+    public void retainedBatchesCanBeReplayed() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (ChangeJournal journal = new ChangeJournal(dir, 1024, true)) {
+            for (int i = 0; i < 20; i++) {
+                journal.synced(journal.append(Collections.singletonList(change("Q" + i))));
+            }
+        }
+        List<String> replayed = new ArrayList<>();
+        ChangeJournal.readAll(dir, batch -> replayed.add(batch.get(0).entityId()));
+        assertThat(replayed, hasSize(20));
+        assertEquals("Q0", replayed.get(0));
+        assertEquals("Q19", replayed.get(19));
+    }
+
+    private Change change(String entityId) {
+        Change change = new Change(entityId, 12, new Date(1000), 34);
+        List<Statement> statements = new ArrayList<>();
+        URIImpl subject = new URIImpl("http://www.wikidata.org/entity/" + entityId);
+        statements.add(new StatementImpl(subject, new URIImpl("http://schema.org/name"),
+                new LiteralImpl("name", "en")));
+        statements.add(new StatementImpl(subject, new URIImpl("http://schema.org/version"),
+                new LiteralImpl("12", XMLSchema.INTEGER)));
+        statements.add(new StatementImpl(subject, new URIImpl("http://schema.org/description"),
+                new LiteralImpl("plain")));
+        statements.add(new StatementImpl(subject, new URIImpl("http://www.wikidata.org/prop/direct/P1"),
+                new BNodeImpl("b1")));
+        change.setStatements(statements);
+        change.setCleanupList(Arrays.asList("wds:" + entityId + "-abc"));
+        change.setContentHash("hash");
+        change.setUsedNodes(new HashSet<>(Arrays.asList("wdv:123")));
+        return change;
+    }
+
+    private List<Path> segments(Path dir) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.seg")) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Walk the records of a segment to find where the last one ends.
+     */
+    private long findLastRecordEnd(Path segment) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "r")) {
+            long position = Integer.BYTES;
+            while (true) {
+                file.seek(position);
+                int length = file.readInt();
+                if (length == 0) {
+                    return position;
+                }
+                position += 2 * Integer.BYTES + length;
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.wikidata.query.rdf.tool;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+import org.wikidata.query.rdf.tool.change.Change;
+
+public class CoalescingWindowUnitTest {
+    private final CoalescingWindow window = new CoalescingWindow(10, 30);
+
+    @Test
+    public void firstChangePassesThrough() {
+        Change q1 = change("Q1", 1);
+        assertThat(window.admit(listOf(q1), 0, false), contains(q1));
+        assertEquals(0, window.size());
+    }
+
+    @Test
+    public void recentlySyncedEntityIsHeld() {
+        window.admit(listOf(change("Q1", 1)), 0, false);
+        Change q2 = change("Q2", 1);
+        assertThat(window.admit(listOf(change("Q1", 2), q2), 5, false), contains(q2));
+        assertEquals(1, window.size());
+    }
+
+    @Test
+    public void entitySyncedLongAgoPassesThrough() {
+        window.admit(listOf(change("Q1", 1)), 0, false);
+        Change q1 = change("Q1", 2);
+        assertThat(window.admit(listOf(q1), 10, false), contains(q1));
+    }
+
+    @Test
+    public void quietEntityIsReleasedWithLatestRevision() {
+        window.admit(listOf(change("Q1", 1)), 0, false);
+        window.admit(listOf(change("Q1", 2)), 5, false);
+        Change latest = change("Q1", 3);
+        assertThat(window.admit(listOf(latest), 8, false), empty());
+        assertThat(window.admit(listOf(), 15, false), empty());
+        assertThat(window.admit(listOf(), 18, false), contains(latest));
+        assertEquals(0, window.size());
+    }
+
+    @Test
+    public void outOfOrderChangeDoesNotReplaceLaterRevision() {
+        window.admit(listOf(change("Q1", 1)), 0, false);
+        Change latest = change("Q1", 3);
+        window.admit(listOf(latest), 5, false);
+        window.admit(listOf(change("Q1", 2)), 6, false);
+        assertThat(window.admit(listOf(), 16, false), contains(latest));
+    }
+
+    @Test
+    public void busyEntityIsReleasedAfterMaxDelay() {
+        window.admit(listOf(change("Q1", 1)), 0, false);
+        Change latest = null;
+        for (int now = 5; now < 35; now += 5) {
+            latest = change("Q1", now);
+            assertThat(window.admit(listOf(latest), now, false), empty());
+        }
+        assertThat(window.admit(listOf(), 35, false), contains(latest));
+    }
+
+    @Test
+    public void untilDueTracksEarliestHeldChange() {
+        assertEquals(Long.MAX_VALUE, window.untilDue(0));
+        window.admit(listOf(change("Q1", 1), change("Q2", 1)), 0, false);
+        window.admit(listOf(change("Q1", 2)), 4, false);
+        window.admit(listOf(change("Q2", 2)), 6, false);
+        assertEquals(8, window.untilDue(6));
+        window.admit(listOf(change("Q1", 3)), 10, false);
+        assertEquals(6, window.untilDue(10));
+        window.admit(listOf(), 16, false);
+        assertEquals(4, window.untilDue(16));
+        // Q1 keeps changing so only the max delay releases it
+        for (int now = 18; now <= 30; now += 6) {
+            window.admit(listOf(change("Q1", now)), now, false);
+        }
+        assertEquals(4, window.untilDue(30));
+        assertEquals(0, window.untilDue(40));
+    }
+
+    @Test
+    public void flushReleasesEverything() {
+        window.admit(listOf(change("Q1", 1)), 0, false);
+        Change q1 = change("Q1", 2);
+        Change q2 = change("Q2", 1);
+        assertThat(window.admit(listOf(q1, q2), 5, true), contains(q2, q1));
+        assertEquals(0, window.size());
+    }
+
+    @Test
+    public void oldestHeldIsFirstMergedEdit() {
+        assertNull(window.oldestHeld());
+        window.admit(listOf(change("Q1", 1, 100)), 0, false);
+        window.admit(listOf(change("Q1", 2, 200)), 5, false);
+        window.admit(listOf(change("Q1", 3, 300)), 6, false);
+        assertEquals(new Date(200), window.oldestHeld());
+        window.admit(listOf(), 20, false);
+        assertNull(window.oldestHeld());
+    }
+
+    private List<Change> listOf(Change... changes) {
+        List<Change> list = new ArrayList<>();
+        Collections.addAll(list, changes);
+        return list;
+    }
+
+    private Change change(String entityId, long revision) {
+        return change(entityId, revision, revision);
+    }
+
+    private Change change(String entityId, long revision, long time) {
+        return new Change(entityId, revision, new Date(time), 1);
+    }
+}
@@ -0,0 +1,133 @@
+package org.wikidata.query.rdf.tool;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.wikidata.query.rdf.tool.change.Change;
+
+public class LargestFirstSchedulerUnitTest {
+    @Test
+    public void largestFirst() {
+        LargestFirstScheduler scheduler = new LargestFirstScheduler(10);
+        scheduler.prepared(prepared("Q1", 10));
+        scheduler.prepared(prepared("Q2", 1000));
+        scheduler.prepared(prepared("Q3", 100));
+        Change q1 = change("Q1", 0);
+        Change q2 = change("Q2", 0);
+        Change q3 = change("Q3", 0);
+        assertThat(scheduler.order(listOf(q1, q2, q3)), contains(q2, q3, q1));
+    }
+
+    @Test
+    public void unknownEntitiesAreAverage() {
+        LargestFirstScheduler scheduler = new LargestFirstScheduler(10);
+        scheduler.prepared(prepared("Q1", 10));
+        scheduler.prepared(prepared("Q2", 1000));
+        Change q1 = change("Q1", 0);
+        Change q2 = change("Q2", 0);
+        Change unknown = change("Q3", 0);
+        assertThat(scheduler.order(listOf(q1, unknown, q2)), contains(q2, unknown, q1));
+    }
+
+    @Test
+    public void olderEditsFirstOnTies() {
+        LargestFirstScheduler scheduler = new LargestFirstScheduler(10);
+        Change newer = change("Q1", 2000);
+        Change older = change("Q2", 1000);
+        assertThat(scheduler.order(listOf(newer, older)), contains(older, newer));
+    }
+
+    @Test
+    public void forgetsLeastRecentlyPrepared() {
+        LargestFirstScheduler scheduler = new LargestFirstScheduler(2);
+        scheduler.prepared(prepared("Q1", 10));
+        scheduler.prepared(prepared("Q2", 20));
+        scheduler.prepared(prepared("Q3", 30));
+        assertEquals(-1, scheduler.size("Q1"));
+        assertEquals(20, scheduler.size("Q2"));
+        assertEquals(30, scheduler.size("Q3"));
+    }
+
+    /**
+     * Simulates fetching skewed batches, a few huge entities among many small
+     * ones arriving in random order, on a fixed number of threads and checks
+     * that starting with the largest finishes them sooner overall than
+     * arrival order.
+     */
+    @Test
+    public void shortensSkewedBatchMakespan() {
+        int threads = 10;
+        long inOrder = 0;
+        long largestFirst = 0;
+        for (int seed = 0; seed < 20; seed++) {
+            Random random = new Random(seed);
+            LargestFirstScheduler scheduler = new LargestFirstScheduler(1000);
+            Map<Change, Integer> costs = new HashMap<>();
+            List<Change> batch = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                // Pareto distributed sizes, like wikidata entities
+                int size = (int) (20 / Math.pow(1 - random.nextDouble(), 1 / 1.1));
+                String id = "Q" + i;
+                scheduler.prepared(prepared(id, size));
+                Change change = change(id, i);
+                costs.put(change, size);
+                batch.add(change);
+            }
+            Collections.shuffle(batch, random);
+            inOrder += makespan(FetchScheduler.IN_ORDER.order(batch), costs, threads);
+            largestFirst += makespan(scheduler.order(batch), costs, threads);
+        }
+        // Largest first comes to 284141 against 324508 for arrival order
+        assertThat(largestFirst, lessThan(inOrder * 9 / 10));
+    }
+
+    /**
+     * Time to run changes on a pool of threads taking them in order.
+     */
+    private long makespan(List<Change> ordered, Map<Change, Integer> costs, int threads) {
+        PriorityQueue<Long> busyUntil = new PriorityQueue<>();
+        for (int i = 0; i < threads; i++) {
+            busyUntil.add(0L);
+        }
+        long end = 0;
+        for (Change change : ordered) {
+            long done = busyUntil.poll() + costs.get(change);
+            end = Math.max(end, done);
+            busyUntil.add(done);
+        }
+        return end;
+    }
+
+    private List<Change> listOf(Change... changes) {
+        List<Change> list = new ArrayList<>();
+        Collections.addAll(list, changes);
+        return list;
+    }
+
+    private Change change(String entityId, long time) {
+        return new Change(entityId, 1, new Date(time), 1);
+    }
+
+    private Change prepared(String entityId, int statements) {
+        Change change = change(entityId, 0);
+        List<Statement> list = new ArrayList<>();
+        for (int i = 0; i < statements; i++) {
+            list.add(null);
+        }
+        change.setStatements(list);
+        return change;
+    }
+}
@@ -0,0 +1,60 @@
+package org.wikidata.query.rdf.tool;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+public class PrometheusExporterUnitTest {
+    private final MetricRegistry metrics = new MetricRegistry();
+
+    @Test
+    public void namesAreSanitized() {
+        assertEquals("wdqs_updater_rdf_replica_0_lag", PrometheusExporter.name("rdf-replica-0-lag"));
+    }
+
+    @Test
+    public void metersAreCounters() {
+        metrics.meter("updates").mark(3);
+        String text = PrometheusExporter.format(metrics);
+        assertThat(text, containsString("# TYPE wdqs_updater_updates_total counter\n"));
+        assertThat(text, containsString("wdqs_updater_updates_total 3\n"));
+    }
+
+    @Test
+    public void numericGaugesAreExported() {
+        metrics.register("lag", (Gauge<Long>) () -> 1500L);
+        metrics.register("name", (Gauge<String>) () -> "not a number");
+        String text = PrometheusExporter.format(metrics);
+        assertThat(text, containsString("# TYPE wdqs_updater_lag gauge\n"));
+        assertThat(text, containsString("wdqs_updater_lag 1500\n"));
+        assertThat(text, not(containsString("wdqs_updater_name")));
+    }
+
+    @Test
+    public void histogramsAreSummaries() {
+        for (int i = 0; i < 10; i++) {
+            metrics.histogram("entity-statements").update(42);
+        }
+        String text = PrometheusExporter.format(metrics);
+        assertThat(text, containsString("# TYPE wdqs_updater_entity_statements summary\n"));
+        assertThat(text, containsString("wdqs_updater_entity_statements{quantile=\"0.99\"} 42\n"));
+        assertThat(text, containsString("wdqs_updater_entity_statements_count 10\n"));
+    }
+
+    @Test
+    public void timersAreInSeconds() {
+        metrics.timer("sync").update(1500, TimeUnit.MILLISECONDS);
+        String text = PrometheusExporter.format(metrics);
+        assertThat(text, containsString("# TYPE wdqs_updater_sync_seconds summary\n"));
+        assertThat(text, containsString("wdqs_updater_sync_seconds{quantile=\"0.5\"} 1.5\n"));
+        assertThat(text, containsString("wdqs_updater_sync_seconds_count 1\n"));
+    }
+}
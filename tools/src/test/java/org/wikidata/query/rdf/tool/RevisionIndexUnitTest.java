@@ -0,0 +1,141 @@
+package org.wikidata.query.rdf.tool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.Date;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RevisionIndexUnitTest {
+    private static final URI STORE = URI.create("http://localhost:9999/bigdata/namespace/wdq/sparql");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void unknownIsMinusOne() throws IOException {
+        try (RevisionIndex index = new RevisionIndex(folder.getRoot().toPath())) {
+            assertEquals(-1, index.get("Q42"));
+        }
+    }
+
+    @Test
+    public void putAndGet() throws IOException {
+        try (RevisionIndex index = new RevisionIndex(folder.getRoot().toPath())) {
+            index.put("Q42", 1234);
+            index.put("P42", 5678);
+            index.put("Q0", 0);
+            assertEquals(1234, index.get("Q42"));
+            assertEquals(5678, index.get("P42"));
+            assertEquals(0, index.get("Q0"));
+            assertEquals(-1, index.get("Q43"));
+        }
+    }
+
+    @Test
+    public void forget() throws IOException {
+        try (RevisionIndex index = new RevisionIndex(folder.getRoot().toPath())) {
+            index.put("Q42", 1234);
+            index.put("Q42", -1);
+            assertEquals(-1, index.get("Q42"));
+        }
+    }
+
+    @Test
+    public void spansSegments() throws IOException {
+        try (RevisionIndex index = new RevisionIndex(folder.getRoot().toPath())) {
+            index.put("Q1", 1);
+            index.put("Q16777217", 2);
+            index.put("Q100000000", 3);
+            assertEquals(1, index.get("Q1"));
+            assertEquals(2, index.get("Q16777217"));
+            assertEquals(3, index.get("Q100000000"));
+        }
+    }
+
+    @Test
+    public void persists() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (RevisionIndex index = new RevisionIndex(dir)) {
+            index.put("Q42", 1234);
+            index.put("L7", 99);
+        }
+        try (RevisionIndex index = new RevisionIndex(dir)) {
+            assertEquals(1234, index.get("Q42"));
+            assertEquals(99, index.get("L7"));
+        }
+    }
+
+    @Test
+    public void keptForSameStore() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (RevisionIndex index = new RevisionIndex(dir)) {
+            index.checkStore(STORE, new Date(1000));
+            index.put("Q42", 1234);
+            index.storeSynced(new Date(5000));
+        }
+        try (RevisionIndex index = new RevisionIndex(dir)) {
+            // The store keeps the left off time in whole seconds
+            index.checkStore(STORE, new Date(5000));
+            assertEquals(1234, index.get("Q42"));
+        }
+    }
+
+    @Test
+    public void discardedForOtherStore() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (RevisionIndex index = new RevisionIndex(dir)) {
+            index.checkStore(STORE, new Date(1000));
+            index.put("Q42", 1234);
+        }
+        try (RevisionIndex index = new RevisionIndex(dir)) {
+            index.checkStore(URI.create("http://localhost:9999/bigdata/namespace/other/sparql"), new Date(1000));
+            assertEquals(-1, index.get("Q42"));
+        }
+    }
+
+    @Test
+    public void discardedWhenStoreIsBehind() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (RevisionIndex index = new RevisionIndex(dir)) {
+            index.checkStore(STORE, new Date(1000));
+            index.put("Q42", 1234);
+            index.storeSynced(new Date(5000));
+        }
+        try (RevisionIndex index = new RevisionIndex(dir)) {
+            index.checkStore(STORE, new Date(3000));
+            assertEquals(-1, index.get("Q42"));
+        }
+    }
+
+    @Test
+    public void discardedWhenStoreIsUnknown() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (RevisionIndex index = new RevisionIndex(dir)) {
+            index.put("Q42", 1234);
+        }
+        try (RevisionIndex index = new RevisionIndex(dir)) {
+            index.checkStore(STORE, new Date(1000));
+            assertEquals(-1, index.get("Q42"));
+        }
+    }
+
+    @Test
+    public void ignoresUnindexableIds() throws IOException {
+        assertTrue(RevisionIndex.isIndexable("Q42"));
+        assertFalse(RevisionIndex.isIndexable("L42-F1"));
+        assertFalse(RevisionIndex.isIndexable("Q"));
+        assertFalse(RevisionIndex.isIndexable("q42"));
+        try (RevisionIndex index = new RevisionIndex(folder.getRoot().toPath())) {
+            index.put("L42-F1", 12);
+            assertEquals(-1, index.get("L42-F1"));
+        }
+    }
+}
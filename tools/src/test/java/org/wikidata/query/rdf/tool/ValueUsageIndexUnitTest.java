@@ -0,0 +1,84 @@
+package org.wikidata.query.rdf.tool;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.wikidata.query.rdf.test.StatementHelper.statement;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.impl.LiteralImpl;
+import org.wikidata.query.rdf.common.uri.Ontology;
+import org.wikidata.query.rdf.common.uri.Provenance;
+import org.wikidata.query.rdf.common.uri.RDFS;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+
+import com.google.common.collect.ImmutableSet;
+
+public class ValueUsageIndexUnitTest {
+    private final WikibaseUris uris = WikibaseUris.getURISystem();
+
+    @Test
+    public void nodesOfCollectsValuesAndRefs() {
+        String statementUri = uris.statement() + "Q23-abc";
+        String refUri = uris.reference() + "456def";
+        String valueUri = uris.value() + "123abc";
+        String refValueUri = uris.value() + "789ghi";
+        List<Statement> statements = new ArrayList<>();
+        statements.add(statement("Q23", RDFS.LABEL, new LiteralImpl("George Washington", "en")));
+        statements.add(statement("Q23", "P509", statementUri));
+        statements.add(statement(statementUri, uris.value() + "P569", valueUri));
+        statements.add(statement(statementUri, Provenance.WAS_DERIVED_FROM, refUri));
+        statements.add(statement(refUri, uris.value() + "P813", refValueUri));
+        statements.add(statement(valueUri, Ontology.Time.PRECISION, 11));
+        assertThat(ValueUsageIndex.nodesOf(statements, uris), containsInAnyOrder(valueUri, refUri, refValueUri));
+    }
+
+    @Test
+    public void unknownEntity() {
+        ValueUsageIndex index = new ValueUsageIndex(10);
+        assertFalse(index.knows("Q1"));
+        assertThat(index.nodes("Q1"), empty());
+    }
+
+    @Test
+    public void emptyEntityIsKnown() {
+        ValueUsageIndex index = new ValueUsageIndex(10);
+        index.update("Q1", ImmutableSet.<String>of());
+        assertTrue(index.knows("Q1"));
+    }
+
+    @Test
+    public void countsUsers() {
+        ValueUsageIndex index = new ValueUsageIndex(10);
+        index.update("Q1", ImmutableSet.of("a", "b"));
+        index.update("Q2", ImmutableSet.of("b"));
+        assertThat(index.nodes("Q1"), containsInAnyOrder("a", "b"));
+        assertFalse(index.usedByOthers("a", "Q1"));
+        assertTrue(index.usedByOthers("b", "Q1"));
+        assertTrue(index.usedByOthers("a", "Q2"));
+
+        index.update("Q2", ImmutableSet.of("c"));
+        assertFalse(index.usedByOthers("b", "Q1"));
+        assertTrue(index.usedByOthers("c", "Q1"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        ValueUsageIndex index = new ValueUsageIndex(2);
+        index.update("Q1", ImmutableSet.of("a"));
+        index.update("Q2", ImmutableSet.of("a"));
+        index.nodes("Q1");
+        index.update("Q3", ImmutableSet.of("b"));
+        assertEquals(2, index.size());
+        assertTrue(index.knows("Q1"));
+        assertFalse(index.knows("Q2"));
+        assertFalse(index.usedByOthers("a", "Q1"));
+    }
+}
@@ -0,0 +1,73 @@
+package org.wikidata.query.rdf.tool.rdf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.wikidata.query.rdf.test.StatementHelper.statement;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.impl.LiteralImpl;
+import org.wikidata.query.rdf.common.uri.Ontology;
+import org.wikidata.query.rdf.common.uri.RDFS;
+import org.wikidata.query.rdf.common.uri.SchemaDotOrg;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+
+public class ContentHashUnitTest {
+    private final WikibaseUris uris = WikibaseUris.getURISystem();
+
+    private final String entityUri = uris.entity() + "Q23";
+
+    @Test
+    public void orderDoesntMatter() {
+        List<Statement> statements = content();
+        String hash = ContentHash.hash(entityUri, statements, uris);
+        Collections.reverse(statements);
+        assertEquals(hash, ContentHash.hash(entityUri, statements, uris));
+    }
+
+    @Test
+    public void versionDoesntMatter() {
+        List<Statement> statements = content();
+        String hash = ContentHash.hash(entityUri, statements, uris);
+        statements.add(statement(entityUri, SchemaDotOrg.VERSION, 1234));
+        statements.add(statement(entityUri, SchemaDotOrg.DATE_MODIFIED, new LiteralImpl("2017-01-01T00:00:00Z")));
+        statements.add(statement(entityUri, Ontology.CONTENT_HASH, new LiteralImpl(hash)));
+        assertEquals(hash, ContentHash.hash(entityUri, statements, uris));
+    }
+
+    @Test
+    public void valuesAndReferencesDontMatter() {
+        List<Statement> statements = content();
+        String hash = ContentHash.hash(entityUri, statements, uris);
+        statements.add(statement(uris.value() + "123abc", Ontology.Time.PRECISION, 11));
+        statements.add(statement(uris.reference() + "456def", "P143", "Q328"));
+        assertEquals(hash, ContentHash.hash(entityUri, statements, uris));
+    }
+
+    @Test
+    public void contentMatters() {
+        List<Statement> statements = content();
+        String hash = ContentHash.hash(entityUri, statements, uris);
+        statements.set(0, statement(entityUri, RDFS.LABEL, new LiteralImpl("George Washingmoved", "en")));
+        assertNotEquals(hash, ContentHash.hash(entityUri, statements, uris));
+    }
+
+    @Test
+    public void statementNodesMatter() {
+        List<Statement> statements = content();
+        String hash = ContentHash.hash(entityUri, statements, uris);
+        statements.add(statement(uris.statement() + "Q23-abc", Ontology.RANK, Ontology.NORMAL_RANK));
+        assertNotEquals(hash, ContentHash.hash(entityUri, statements, uris));
+    }
+
+    private List<Statement> content() {
+        List<Statement> statements = new ArrayList<>();
+        statements.add(statement(entityUri, RDFS.LABEL, new LiteralImpl("George Washington", "en")));
+        statements.add(statement(entityUri, "P509", "Q12152"));
+        return statements;
+    }
+}
@@ -0,0 +1,112 @@
+package org.wikidata.query.rdf.tool.rdf;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.junit.Assert.assertThat;
+import static org.wikidata.query.rdf.test.StatementHelper.statement;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.impl.BNodeImpl;
+import org.openrdf.model.impl.LiteralImpl;
+import org.wikidata.query.rdf.common.uri.OWL;
+import org.wikidata.query.rdf.common.uri.Ontology;
+import org.wikidata.query.rdf.common.uri.Provenance;
+import org.wikidata.query.rdf.common.uri.RDF;
+import org.wikidata.query.rdf.common.uri.RDFS;
+import org.wikidata.query.rdf.common.uri.SchemaDotOrg;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+import org.wikidata.query.rdf.common.uri.WikibaseUris.PropertyType;
+
+import com.google.common.collect.ImmutableList;
+
+public class EntityRdfSplitterUnitTest {
+    private final WikibaseUris uris = WikibaseUris.getURISystem();
+
+    @Test
+    public void splitsStatementsAndReferences() {
+        String statementUri = uris.statement() + "Q1-abc";
+        String otherStatementUri = uris.statement() + "Q2-def";
+        String refUri = uris.reference() + "456def";
+        String valueUri = uris.value() + "123abc";
+        List<Statement> statements = new ArrayList<>();
+        Statement q1Label = statement(uris.entity() + "Q1", RDFS.LABEL, new LiteralImpl("universe", "en"));
+        Statement q1Claim = statement(uris.entity() + "Q1", "P31", statementUri);
+        Statement q1Ref = statement(statementUri, Provenance.WAS_DERIVED_FROM, refUri);
+        Statement q1Value = statement(statementUri, uris.value() + "P580", valueUri);
+        Statement q2Label = statement(uris.entity() + "Q2", RDFS.LABEL, new LiteralImpl("earth", "en"));
+        Statement q2Claim = statement(uris.entity() + "Q2", "P31", otherStatementUri);
+        Statement q2Ref = statement(otherStatementUri, Provenance.WAS_DERIVED_FROM, refUri);
+        Statement refValue = statement(refUri, uris.value() + "P813", valueUri);
+        Statement valuePrecision = statement(valueUri, Ontology.Time.PRECISION, 11);
+        statements.add(q1Label);
+        statements.add(q1Claim);
+        statements.add(q1Ref);
+        statements.add(q1Value);
+        statements.add(q2Label);
+        statements.add(q2Claim);
+        statements.add(q2Ref);
+        statements.add(refValue);
+        statements.add(valuePrecision);
+
+        Map<String, Collection<Statement>> split = EntityRdfSplitter.split(statements,
+                ImmutableList.of("Q1", "Q2", "Q3"), uris);
+
+        assertThat(split.get("Q1"), containsInAnyOrder(q1Label, q1Claim, q1Ref, q1Value, refValue, valuePrecision));
+        assertThat(split.get("Q2"), containsInAnyOrder(q2Label, q2Claim, q2Ref, refValue, valuePrecision));
+        assertThat(split.get("Q3"), empty());
+    }
+
+    @Test
+    public void siteLinksAndEntityData() {
+        String link = "https://en.wikipedia.org/wiki/Universe";
+        String site = "https://en.wikipedia.org/";
+        List<Statement> statements = new ArrayList<>();
+        Statement data = statement(uris.entityData() + "Q1", SchemaDotOrg.ABOUT, uris.entity() + "Q1");
+        Statement dataVersion = statement(uris.entityData() + "Q1", SchemaDotOrg.VERSION, 42);
+        Statement linkAbout = statement(link, SchemaDotOrg.ABOUT, uris.entity() + "Q1");
+        Statement linkType = statement(link, RDF.TYPE, SchemaDotOrg.ARTICLE);
+        Statement linkSite = statement(link, SchemaDotOrg.IS_PART_OF, site);
+        Statement siteGroup = statement(site, Ontology.WIKIGROUP, new LiteralImpl("wikipedia"));
+        statements.add(data);
+        statements.add(dataVersion);
+        statements.add(linkAbout);
+        statements.add(linkType);
+        statements.add(linkSite);
+        statements.add(siteGroup);
+
+        Map<String, Collection<Statement>> split = EntityRdfSplitter.split(statements,
+                ImmutableList.of("Q1", "Q2"), uris);
+
+        assertThat(split.get("Q1"), containsInAnyOrder(data, dataVersion, linkAbout, linkType, linkSite, siteGroup));
+        assertThat(split.get("Q2"), empty());
+    }
+
+    @Test
+    public void unownedStatementsAreShared() {
+        String statementUri = uris.statement() + "Q1-abc";
+        List<Statement> statements = new ArrayList<>();
+        Statement declaration = statement(uris.property(PropertyType.CLAIM) + "P31", RDF.TYPE,
+                OWL.CLASS);
+        Statement q1Claim = statement(uris.entity() + "Q1", "P31", statementUri);
+        Statement someValue = statement(statementUri, uris.property(PropertyType.STATEMENT) + "P31",
+                new BNodeImpl("b1"));
+        Statement q2Label = statement(uris.entity() + "Q2", RDFS.LABEL, new LiteralImpl("earth", "en"));
+        statements.add(declaration);
+        statements.add(q1Claim);
+        statements.add(someValue);
+        statements.add(q2Label);
+
+        Map<String, Collection<Statement>> split = EntityRdfSplitter.split(statements,
+                ImmutableList.of("Q1", "Q2", "Q3"), uris);
+
+        assertThat(split.get("Q1"), containsInAnyOrder(q1Claim, someValue, declaration));
+        assertThat(split.get("Q2"), containsInAnyOrder(q2Label, declaration));
+        assertThat(split.get("Q3"), empty());
+    }
+}
@@ -1,5 +1,7 @@
 package org.wikidata.query.rdf.tool.rdf;
 
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.not;
@@ -24,6 +26,8 @@ import org.openrdf.model.impl.StatementImpl;
 import org.openrdf.model.impl.URIImpl;
 import org.openrdf.model.vocabulary.OWL;
 import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
 import org.wikidata.query.rdf.common.uri.GeoSparql;
 import org.wikidata.query.rdf.common.uri.Ontology;
 import org.wikidata.query.rdf.common.uri.Provenance;
@@ -401,6 +405,39 @@ public class MungerUnitTest extends RandomizedTest {
             .test();
     }
 
+    @Test
+    public void streamingEmptyEntityIsDelete() throws RDFHandlerException {
+        List<Statement> munged = new ArrayList<>();
+        RDFHandler handler = new Munger(uris).mungingHandler("Q23", munged, new ArrayList<String>(),
+                new ArrayList<String>(), null);
+        handler.startRDF();
+        handler.endRDF();
+        assertThat(munged, empty());
+    }
+
+    @Test
+    public void streamingRemovesUsedExistingValues() throws RDFHandlerException {
+        String statementUri = uris.statement() + "Q23-ce976010-412f-637b-c687-9fd2d52dc140";
+        String valueUri = uris.value() + "87d0dc1c7847f19ac0f19be978015dfb202cf59a";
+        String unusedValueUri = uris.value() + "0123456789abcdef0123456789abcdef01234567";
+        List<String> existingValues = new ArrayList<>(Arrays.asList(valueUri, unusedValueUri));
+        List<Statement> munged = new ArrayList<>();
+        RDFHandler handler = new Munger(uris).mungingHandler("Q23", munged, existingValues, new ArrayList<String>(),
+                null);
+        handler.startRDF();
+        for (Statement statement : StatementHelper.basicEntity(uris, "Q23")) {
+            handler.handleStatement(statement);
+        }
+        handler.handleStatement(statement("Q23", "P569", statementUri));
+        handler.handleStatement(statement(statementUri, uris.value() + "P569", valueUri));
+        handler.handleStatement(statement(valueUri, Ontology.Time.PRECISION, new IntegerLiteralImpl(BigInteger.valueOf(11))));
+        handler.endRDF();
+        assertThat(munged, hasItem(statement(statementUri, uris.value() + "P569", valueUri)));
+        assertThat(munged, not(hasItem(statement(valueUri, Ontology.Time.PRECISION,
+                new IntegerLiteralImpl(BigInteger.valueOf(11))))));
+        assertThat(existingValues, contains(unusedValueUri));
+    }
+
     private Mungekin entity(String id) {
         return new Mungekin(uris, id);
     }
@@ -494,7 +531,11 @@ public class MungerUnitTest extends RandomizedTest {
         }
 
         private List<Statement> testWithoutShuffle() {
-            munger.munge(id, statements);
+            if (randomBoolean()) {
+                mungeStreaming();
+            } else {
+                munger.munge(id, statements);
+            }
             for (Statement x : toRetain) {
                 assertThat(statements, hasItem(x));
             }
@@ -504,6 +545,26 @@ public class MungerUnitTest extends RandomizedTest {
             return statements;
         }
 
+        /**
+         * Munge the statements as if they were streamed from the parser.
+         */
+        private void mungeStreaming() {
+            List<Statement> munged = new ArrayList<>();
+            RDFHandler handler = munger.mungingHandler(id, munged, new ArrayList<String>(), new ArrayList<String>(),
+                    null);
+            try {
+                handler.startRDF();
+                for (Statement statement : statements) {
+                    handler.handleStatement(statement);
+                }
+                handler.endRDF();
+            } catch (RDFHandlerException e) {
+                throw new RuntimeException(e);
+            }
+            statements.clear();
+            statements.addAll(munged);
+        }
+
         private Mungekin format(String version) {
             remove(statement(uris.entityData() + id, SchemaDotOrg.SOFTWARE_VERSION, new LiteralImpl(version)));
             munger.addFormatHandler(version, new TestFormatHandler());
@@ -1,6 +1,7 @@
 package org.wikidata.query.rdf.tool.rdf;
 
 import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.hasItem;
 import static org.wikidata.query.rdf.test.Matchers.binds;
 import static org.wikidata.query.rdf.test.StatementHelper.siteLink;
 import static org.wikidata.query.rdf.test.StatementHelper.statement;
@@ -24,6 +25,9 @@ import org.openrdf.model.Statement;
 import org.openrdf.model.impl.BNodeImpl;
 import org.openrdf.model.impl.IntegerLiteralImpl;
 import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
+import org.openrdf.query.AbstractTupleQueryResultHandler;
+import org.openrdf.query.BindingSet;
 import org.openrdf.query.QueryEvaluationException;
 import org.openrdf.query.TupleQueryResult;
 import org.wikidata.query.rdf.common.uri.Ontology;
@@ -34,6 +38,7 @@ import org.wikidata.query.rdf.common.uri.SchemaDotOrg;
 import org.wikidata.query.rdf.common.uri.WikibaseUris;
 import org.wikidata.query.rdf.common.uri.WikibaseUris.PropertyType;
 import org.wikidata.query.rdf.tool.RdfRepositoryForTesting;
+import org.wikidata.query.rdf.tool.change.Change;
 
 import com.carrotsearch.randomizedtesting.RandomizedRunner;
 import com.carrotsearch.randomizedtesting.RandomizedTest;
@@ -605,6 +610,123 @@ public class RdfRepositoryIntegrationTest extends RandomizedTest {
         assertFalse(r.hasNext());
     }
 
+    @Test
+    public void chunkedSyncFromChanges() throws QueryEvaluationException {
+        List<Change> changes = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            Change change = new Change("Q" + i, -1, null, 0);
+            change.setStatements(ImmutableList.of(//
+                    statement("Q" + i, RDFS.LABEL, new LiteralImpl("Item " + i, "en"))));
+            change.setCleanupList(Collections.<String> emptyList());
+            changes.add(change);
+        }
+        rdfRepository.setChunkLimits(randomIntBetween(0, 2), randomIntBetween(0, 2));
+        rdfRepository.setChunkConcurrency(randomIntBetween(1, 3));
+        try {
+            assertEquals(5, rdfRepository.syncFromChanges(changes, true));
+        } finally {
+            rdfRepository.setChunkConcurrency(1);
+        }
+        TupleQueryResult r = rdfRepository.query("SELECT (COUNT(?s) as ?sc) WHERE {?s ?p ?o}");
+        assertTrue(r.hasNext());
+        assertThat(r.next(), binds("sc", new IntegerLiteralImpl(BigInteger.valueOf(5))));
+        assertFalse(r.hasNext());
+    }
+
+    @Test
+    public void diffSyncFromChanges() throws QueryEvaluationException {
+        rdfRepository.setDiffSync(true);
+        List<Statement> statements = new ArrayList<>();
+        statements.add(statement("Q23", RDFS.LABEL, new LiteralImpl("George Washington", "en")));
+        statements.add(statement("Q23", "P509", "Q12152"));
+        syncChange("Q23", statements);
+        statements.set(0, statement("Q23", RDFS.LABEL, new LiteralImpl("George Washingmoved", "en")));
+        // Only the changed label is deleted and inserted
+        assertEquals(2, syncChange("Q23", statements));
+        TupleQueryResult r = rdfRepository.query("SELECT * WHERE {?s <" + RDFS.LABEL + "> ?o}");
+        assertTrue(r.hasNext());
+        assertThat(r.next(), allOf(//
+                binds("s", "Q23"), //
+                binds("o", new LiteralImpl("George Washingmoved", "en"))));
+        assertFalse(r.hasNext());
+        r = rdfRepository.query("SELECT (COUNT(?s) as ?sc) WHERE {?s ?p ?o}");
+        assertThat(r.next(), binds("sc", new IntegerLiteralImpl(BigInteger.valueOf(2))));
+    }
+
+    @Test
+    public void diffSyncComparesCanonicalLiterals() throws QueryEvaluationException {
+        rdfRepository.setDiffSync(true);
+        List<Statement> statements = new ArrayList<>();
+        statements.add(statement("Q23", "P1082", new LiteralImpl("+1", XMLSchema.DECIMAL)));
+        statements.add(statement("Q23", "P569", new LiteralImpl("1732-02-22T00:00:00Z", XMLSchema.DATETIME)));
+        syncChange("Q23", statements);
+        // The store hands these back in canonical form, "+1" as "1"
+        assertEquals(0, syncChange("Q23", statements));
+        TupleQueryResult r = rdfRepository.query("SELECT (COUNT(?s) as ?sc) WHERE {?s ?p ?o}");
+        assertThat(r.next(), binds("sc", new IntegerLiteralImpl(BigInteger.valueOf(2))));
+    }
+
+    @Test
+    public void diffSyncWithBnodeFallsBack() throws QueryEvaluationException {
+        rdfRepository.setDiffSync(true);
+        syncChange("Q42", ImmutableList.of(//
+                statement("Q42", "P396", new BNodeImpl("testBnode"))));
+        syncChange("Q42", ImmutableList.of(//
+                statement("Q42", "P396", new LiteralImpl("not a bnode"))));
+        TupleQueryResult r = rdfRepository.query("SELECT * WHERE {?s ?p ?o}");
+        assertTrue(r.hasNext());
+        assertThat(r.next(), allOf(//
+                binds("s", "Q42"), //
+                binds("p", "P396"), //
+                binds("o", new LiteralImpl("not a bnode"))));
+        assertFalse(r.hasNext());
+    }
+
+    @Test
+    public void rdfInsertSyncFromChanges() throws QueryEvaluationException {
+        rdfRepository.setRdfInsert(randomBoolean());
+        List<Statement> statements = new ArrayList<>();
+        statements.add(statement("Q23", RDFS.LABEL, new LiteralImpl("George \"Washington\"\n", "en")));
+        statements.add(statement("Q23", "P509", "Q12152"));
+        syncChange("Q23", statements);
+        statements.set(0, statement("Q23", RDFS.LABEL, new LiteralImpl("George Washingmoved", "en")));
+        syncChange("Q23", statements);
+        TupleQueryResult r = rdfRepository.query("SELECT * WHERE {?s <" + RDFS.LABEL + "> ?o}");
+        assertTrue(r.hasNext());
+        assertThat(r.next(), allOf(//
+                binds("s", "Q23"), //
+                binds("o", new LiteralImpl("George Washingmoved", "en"))));
+        assertFalse(r.hasNext());
+        r = rdfRepository.query("SELECT (COUNT(?s) as ?sc) WHERE {?s ?p ?o}");
+        assertThat(r.next(), binds("sc", new IntegerLiteralImpl(BigInteger.valueOf(2))));
+    }
+
+    @Test
+    public void nativeSyncFromChanges() throws QueryEvaluationException {
+        rdfRepository.setNativeSync(true);
+        List<Statement> statements = new ArrayList<>();
+        statements.add(statement("Q23", RDFS.LABEL, new LiteralImpl("George \"Washington\"\n", "en")));
+        statements.add(statement("Q23", "P509", "Q12152"));
+        syncChange("Q23", statements);
+        statements.set(0, statement("Q23", RDFS.LABEL, new LiteralImpl("George Washingmoved", "en")));
+        syncChange("Q23", statements);
+        TupleQueryResult r = rdfRepository.query("SELECT * WHERE {?s <" + RDFS.LABEL + "> ?o}");
+        assertTrue(r.hasNext());
+        assertThat(r.next(), allOf(//
+                binds("s", "Q23"), //
+                binds("o", new LiteralImpl("George Washingmoved", "en"))));
+        assertFalse(r.hasNext());
+        r = rdfRepository.query("SELECT (COUNT(?s) as ?sc) WHERE {?s ?p ?o}");
+        assertThat(r.next(), binds("sc", new IntegerLiteralImpl(BigInteger.valueOf(2))));
+    }
+
+    private int syncChange(String entityId, List<Statement> statements) {
+        Change change = new Change(entityId, -1, null, 0);
+        change.setStatements(statements);
+        change.setCleanupList(Collections.<String> emptyList());
+        return rdfRepository.syncFromChanges(ImmutableList.of(change), true);
+    }
+
     @Test
     public void delete() throws QueryEvaluationException {
         newSiteLink();
@@ -643,4 +765,22 @@ public class RdfRepositoryIntegrationTest extends RandomizedTest {
                 binds("o", BNode.class)));
         assertFalse(r.hasNext());
     }
+
+    @Test
+    public void queryStreamsRowsToHandler() {
+        List<Statement> statements = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            statements.add(statement("Q23", RDFS.LABEL, new LiteralImpl("George Washington " + i, "en")));
+        }
+        rdfRepository.sync("Q23", statements);
+        List<String> labels = new ArrayList<>();
+        rdfRepository.query("SELECT ?o WHERE {?s ?p ?o}", new AbstractTupleQueryResultHandler() {
+            @Override
+            public void handleSolution(BindingSet bindings) {
+                labels.add(bindings.getValue("o").stringValue());
+            }
+        });
+        assertEquals(1000, labels.size());
+        assertThat(labels, hasItem("George Washington 999"));
+    }
 }
@@ -0,0 +1,161 @@
+package org.wikidata.query.rdf.tool.rdf;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.openrdf.model.impl.StatementImpl;
+import org.openrdf.model.impl.URIImpl;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+import org.wikidata.query.rdf.common.uri.WikibaseUris.PropertyType;
+import org.wikidata.query.rdf.tool.change.Change;
+import org.wikidata.query.rdf.tool.exception.ContainedException;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableSetMultimap;
+
+public class ReplicatedRdfRepositoryUnitTest {
+    private final RdfRepository primary = mock(RdfRepository.class);
+    private final RdfRepository replica = mock(RdfRepository.class);
+    private final ReplicatedRdfRepository repository = new ReplicatedRdfRepository(
+            URI.create("http://localhost:9999/bigdata/namespace/wdq/sparql"), WikibaseUris.WIKIDATA,
+            Arrays.asList(primary, replica));
+    private final List<Change> changes = Collections.singletonList(new Change("Q1", 1, new Date(0), 1));
+
+    @After
+    public void close() throws Exception {
+        repository.close();
+    }
+
+    @Test
+    public void syncGoesToAllReplicas() {
+        when(primary.syncFromChanges(changes, false)).thenReturn(10);
+        when(replica.syncFromChanges(changes, false)).thenReturn(12);
+        assertEquals(10, repository.syncFromChanges(changes, false));
+        verify(replica).syncFromChanges(changes, false);
+    }
+
+    @Test
+    public void updatesNeededByAnyReplica() {
+        when(primary.hasRevisions(changes)).thenReturn(new HashSet<>(Arrays.asList("Q1")));
+        when(replica.hasRevisions(changes)).thenReturn(new HashSet<>(Arrays.asList("Q2")));
+        assertThat(repository.hasRevisions(changes), containsInAnyOrder("Q1", "Q2"));
+    }
+
+    @Test
+    public void revisionsOfTheReplicaFurthestBehind() {
+        Collection<String> ids = Arrays.asList("Q1", "Q2", "Q3");
+        Map<String, Long> primaryRevisions = new HashMap<>();
+        primaryRevisions.put("Q1", 10L);
+        primaryRevisions.put("Q2", 20L);
+        Map<String, Long> replicaRevisions = new HashMap<>();
+        replicaRevisions.put("Q1", 9L);
+        replicaRevisions.put("Q3", 30L);
+        when(primary.fetchRevisions(ids)).thenReturn(primaryRevisions);
+        when(replica.fetchRevisions(ids)).thenReturn(replicaRevisions);
+        Map<String, Long> expected = new HashMap<>();
+        expected.put("Q1", 9L);
+        assertEquals(expected, repository.fetchRevisions(ids));
+    }
+
+    @Test
+    public void startsFromEarliestLeftOff() {
+        when(primary.fetchLeftOffTime()).thenReturn(new Date(2000));
+        when(replica.fetchLeftOffTime()).thenReturn(new Date(1000));
+        assertEquals(new Date(1000), repository.fetchLeftOffTime());
+    }
+
+    @Test
+    public void startsFromScratchIfAnyReplicaHasNoLeftOff() {
+        when(primary.fetchLeftOffTime()).thenReturn(new Date(2000));
+        assertNull(repository.fetchLeftOffTime());
+    }
+
+    @Test
+    public void failedReplicaIsDropped() {
+        MetricRegistry metrics = new MetricRegistry();
+        repository.registerMetrics(metrics);
+        repository.updateLeftOffTime(new Date(1000));
+        when(replica.syncFromChanges(changes, false)).thenThrow(new ContainedException("down"));
+        repository.syncFromChanges(changes, false);
+        repository.syncFromChanges(changes, false);
+        repository.updateLeftOffTime(new Date(2000));
+        verify(primary, times(2)).syncFromChanges(changes, false);
+        verify(replica, times(1)).syncFromChanges(changes, false);
+        verify(replica, never()).updateLeftOffTime(new Date(2000));
+        assertEquals(1, metrics.getGauges().get("rdf-replicas-failed").getValue());
+        Gauge<?> primaryLag = metrics.getGauges().get("rdf-replica-0-lag");
+        Gauge<?> replicaLag = metrics.getGauges().get("rdf-replica-1-lag");
+        assertEquals(1000L, (Long) replicaLag.getValue() - (Long) primaryLag.getValue(), 100);
+    }
+
+    @Test
+    public void replicasDisagreeingAboutValues() {
+        WikibaseUris uris = WikibaseUris.WIKIDATA;
+        String entityUri = uris.entity() + "Q1";
+        String usedValue = uris.value() + "used";
+        String sharedValue = uris.value() + "shared";
+        String primaryOnlyValue = uris.value() + "primaryOnly";
+        String replicaOnlyValue = uris.value() + "replicaOnly";
+        List<String> ids = Collections.singletonList(entityUri);
+        when(primary.getValues(ids)).thenReturn(ImmutableSetMultimap.of(
+                entityUri, usedValue, entityUri, sharedValue, entityUri, primaryOnlyValue));
+        when(replica.getValues(ids)).thenReturn(ImmutableSetMultimap.of(
+                entityUri, usedValue, entityUri, sharedValue, entityUri, replicaOnlyValue));
+        when(primary.getRefs(ids)).thenReturn(ImmutableSetMultimap.of());
+        when(replica.getRefs(ids)).thenReturn(ImmutableSetMultimap.of());
+
+        // The munger only skips inserting values every replica has
+        assertThat(repository.getValues(ids).get(entityUri), containsInAnyOrder(usedValue, sharedValue));
+        assertThat(repository.getRefs(ids).get(entityUri), empty());
+
+        // What the munger leaves in the cleanup list after seeing the new statements use usedValue
+        Change change = changes.get(0);
+        change.setStatements(Collections.singletonList(new StatementImpl(
+                new URIImpl(uris.statement() + "Q1-abc"), new URIImpl(uris.property(PropertyType.STATEMENT_VALUE) + "P1"),
+                new URIImpl(usedValue))));
+        change.setCleanupList(Collections.singletonList(sharedValue));
+        repository.syncFromChanges(changes, false);
+
+        assertThat(syncedCleanup(primary), containsInAnyOrder(sharedValue, primaryOnlyValue));
+        assertThat(syncedCleanup(replica), containsInAnyOrder(sharedValue, replicaOnlyValue));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Collection<String> syncedCleanup(RdfRepository repository) {
+        ArgumentCaptor<Collection<Change>> synced = (ArgumentCaptor<Collection<Change>>) (Object) ArgumentCaptor
+                .forClass(Collection.class);
+        verify(repository).syncFromChanges(synced.capture(), eq(false));
+        assertThat(synced.getValue(), hasSize(1));
+        return synced.getValue().iterator().next().getCleanupList();
+    }
+
+    @Test(expected = ContainedException.class)
+    public void primaryFailureIsFatal() {
+        when(primary.syncFromChanges(changes, false)).thenThrow(new ContainedException("down"));
+        repository.syncFromChanges(changes, false);
+    }
+}
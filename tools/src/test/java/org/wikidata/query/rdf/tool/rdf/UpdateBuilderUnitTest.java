@@ -0,0 +1,109 @@
+package org.wikidata.query.rdf.tool.rdf;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.impl.BNodeImpl;
+import org.openrdf.model.impl.LiteralImpl;
+import org.openrdf.model.impl.StatementImpl;
+import org.openrdf.model.impl.URIImpl;
+import org.openrdf.model.vocabulary.XMLSchema;
+
+public class UpdateBuilderUnitTest {
+    private static final URIImpl Q1 = new URIImpl("http://www.wikidata.org/entity/Q1");
+    private static final URIImpl NAME = new URIImpl("http://schema.org/name");
+
+    @Test
+    public void placeholdersAreReplacedEverywhere() {
+        UpdateTemplate template = new UpdateTemplate("SELECT * { VALUES ?s { %entityList% } ?s %schema:about% ?o . "
+                + "FILTER(?o != %entityList%) }");
+        UpdateBuilder b = new UpdateBuilder(template);
+        b.bindUris("entityList", Arrays.asList("Q1", "Q2"), "wd:");
+        b.bindUri("schema:about", "http://schema.org/about");
+        assertEquals("SELECT * { VALUES ?s { <wd:Q1> <wd:Q2> } ?s <http://schema.org/about> ?o . "
+                + "FILTER(?o != <wd:Q1> <wd:Q2>) }", b.toString());
+    }
+
+    @Test
+    public void templateIsReusable() {
+        UpdateTemplate template = new UpdateTemplate("%a%-%b%");
+        assertEquals("1-2", new UpdateBuilder(template).bind("a", "1").bind("b", "2").toString());
+        assertEquals("3-4", new UpdateBuilder(template).bind("a", "3").bind("b", "4").toString());
+    }
+
+    @Test
+    public void unboundPlaceholdersAreLeftAlone() {
+        assertEquals("a %b% 100%", new UpdateBuilder("%a% %b% 100%").bind("a", "a").toString());
+    }
+
+    @Test
+    public void boundValuesAreNotReplacedAgain() {
+        assertEquals("%b% b", new UpdateBuilder("%a% %b%").bind("a", "%b%").bind("b", "b").toString());
+    }
+
+    @Test
+    public void statementsAreEscaped() {
+        UpdateBuilder b = new UpdateBuilder("INSERT { %insertStatements% }");
+        b.bindStatements("insertStatements", Arrays.<Statement>asList(
+                new StatementImpl(Q1, NAME, new LiteralImpl("a \"quoted\"\nback\\slash", "en")),
+                new StatementImpl(Q1, NAME, new LiteralImpl("12", XMLSchema.INTEGER)),
+                new StatementImpl(Q1, NAME, new BNodeImpl("b1"))));
+        assertEquals("INSERT { <http://www.wikidata.org/entity/Q1> <http://schema.org/name> "
+                + "\"a \\\"quoted\\\"\\nback\\\\slash\"@en .\n"
+                + "<http://www.wikidata.org/entity/Q1> <http://schema.org/name> "
+                + "\"12\"^^<http://www.w3.org/2001/XMLSchema#integer> .\n"
+                + "<http://www.wikidata.org/entity/Q1> <http://schema.org/name> _:b1 . }", b.toString());
+    }
+
+    @Test
+    public void valuesSkipBNodes() {
+        UpdateBuilder b = new UpdateBuilder("VALUES (?s ?p ?o) { %values% }");
+        b.bindValues("values", Arrays.<Statement>asList(
+                new StatementImpl(Q1, NAME, new BNodeImpl("b1")),
+                new StatementImpl(Q1, NAME, new LiteralImpl("name", "en"))));
+        assertEquals("VALUES (?s ?p ?o) { ( <http://www.wikidata.org/entity/Q1> <http://schema.org/name> "
+                + "\"name\"@en ) }", b.toString());
+    }
+
+    @Test
+    public void emptyCollectionsBindNothing() {
+        UpdateBuilder b = new UpdateBuilder("[%a%][%b%][%c%]");
+        b.bindStatements("a", Collections.<Statement>emptyList());
+        b.bindValues("b", Collections.<Statement>emptyList());
+        b.bindUris("c", Collections.<String>emptyList());
+        assertEquals("[][][]", b.toString());
+    }
+
+    @Test
+    public void stringValuesOnlyEscapeQuotes() {
+        assertEquals("a \\\"b\\\" c\\d", new UpdateBuilder("%v%").bindValue("v", "a \"b\" c\\d").toString());
+    }
+
+    @Test
+    public void writtenUpdateMatchesString() throws IOException {
+        List<Statement> statements = new ArrayList<>();
+        List<String> uris = new ArrayList<>();
+        // Enough to be written in several chunks
+        for (int i = 0; i < 5000; i++) {
+            statements.add(new StatementImpl(Q1, NAME, new LiteralImpl("name " + i, "en")));
+            uris.add("Q" + i);
+        }
+        UpdateBuilder b = new UpdateBuilder("DELETE { %uris% } INSERT { %insertStatements% } WHERE { %values% } %unbound%");
+        b.bindUris("uris", uris, "wd:");
+        b.bindStatements("insertStatements", statements);
+        b.bindValues("values", statements);
+        StringWriter writer = new StringWriter();
+        long written = b.writeTo(writer);
+        String expected = b.toString();
+        assertEquals(expected, writer.toString());
+        assertEquals(expected.length(), written);
+    }
+}
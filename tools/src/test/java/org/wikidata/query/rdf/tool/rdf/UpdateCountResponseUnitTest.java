@@ -0,0 +1,79 @@
+package org.wikidata.query.rdf.tool.rdf;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.wikidata.query.rdf.tool.rdf.RdfRepository.UpdateCountResponse;
+
+import com.codahale.metrics.MetricRegistry;
+
+public class UpdateCountResponseUnitTest {
+    private final UpdateCountResponse response = new UpdateCountResponse();
+
+    @Test
+    public void syncOperationsAreTimed() throws IOException {
+        int mutations = response.parse(syncResponse(true), UpdateCountResponse.SYNC_OPERATIONS);
+        assertEquals(17, mutations);
+        assertEquals(3, response.operation("delete-about").getSnapshot().getMax());
+        assertEquals(5, response.operation("delete-statements").getSnapshot().getMax());
+        assertEquals(7, response.operation("delete-entity").getSnapshot().getMax());
+        assertEquals(11, response.operation("insert").getSnapshot().getMax());
+        assertEquals(13, response.operation("cleanup").getSnapshot().getMax());
+    }
+
+    @Test
+    public void cleanupIsOptional() throws IOException {
+        response.parse(syncResponse(false), UpdateCountResponse.SYNC_OPERATIONS);
+        assertEquals(1, response.operation("insert").getCount());
+        assertEquals(0, response.operation("cleanup").getCount());
+    }
+
+    @Test
+    public void totalsAreTimed() throws IOException {
+        MetricRegistry metrics = new MetricRegistry();
+        response.registerMetrics(metrics);
+        response.parse(syncResponse(true), null);
+        assertEquals(39, metrics.getHistograms().get("blazegraph-update-elapsed").getSnapshot().getMax());
+        // Committed at 45ms, the last operation finished at 40ms
+        assertEquals(5, metrics.getHistograms().get("blazegraph-commit").getSnapshot().getMax());
+        // Operations aren't timed without their names
+        assertEquals(0, metrics.getHistograms().get("blazegraph-sync-insert").getCount());
+    }
+
+    @Test
+    public void unexpectedOperationsAreNotTimed() throws IOException {
+        StringBuilder content = new StringBuilder(syncResponse(true));
+        content.insert(0, operation(30, 1) + "\n");
+        response.parse(content.toString(), UpdateCountResponse.SYNC_OPERATIONS);
+        assertEquals(0, response.operation("delete-about").getCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void missingMutationCountIsAnError() throws IOException {
+        response.parse(operation(1, 1), UpdateCountResponse.SYNC_OPERATIONS);
+    }
+
+    private String syncResponse(boolean cleanup) {
+        StringBuilder content = new StringBuilder("<html><head><meta http-equiv=\"Content-Type\" "
+                + "content=\"text&#47;html;charset=UTF-8\"><title>blazegraph&trade; by SYSTAP</title\n");
+        content.append("></head\n><body<p>\n");
+        content.append(operation(4, 3)).append('\n');
+        content.append(operation(9, 5)).append('\n');
+        content.append(operation(16, 7)).append('\n');
+        content.append(operation(27, 11)).append('\n');
+        if (cleanup) {
+            content.append(operation(40, 13)).append('\n');
+        }
+        content.append("><hr><p>COMMIT: totalElapsed=").append(cleanup ? 45 : 32)
+                .append("ms commitTime=1469469282935 mutationCount=17</p\n");
+        content.append("></html\n>");
+        return content.toString();
+    }
+
+    private String operation(long total, long elapsed) {
+        return "><p>totalElapsed=" + total + "ms elapsed=" + elapsed + "ms connFlush=0ms batchResolve=0ms "
+                + "whereClause=1ms deleteClause=1ms insertClause=0ms</p";
+    }
+}
@@ -0,0 +1,143 @@
+package org.wikidata.query.rdf.tool.wikibase;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.io.ByteStreams;
+
+public class RdfResponseCacheUnitTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void putAndGet() throws IOException {
+        RdfResponseCache cache = new RdfResponseCache(folder.getRoot().toPath(), 10);
+        assertNull(cache.get("Q1"));
+        cache.put("Q1", 12, "\"etag\"", body("rdf of Q1"));
+        RdfResponseCache.Entry entry = cache.get("Q1");
+        assertEquals(12, entry.revision());
+        assertEquals("\"etag\"", entry.etag());
+        assertEquals("rdf of Q1", read(entry));
+    }
+
+    @Test
+    public void missingEtag() throws IOException {
+        RdfResponseCache cache = new RdfResponseCache(folder.getRoot().toPath(), 10);
+        cache.put("Q1", 12, null, body("rdf of Q1"));
+        assertNull(cache.get("Q1").etag());
+    }
+
+    @Test
+    public void newRevisionReplacesOld() throws IOException {
+        RdfResponseCache cache = new RdfResponseCache(folder.getRoot().toPath(), 10);
+        RdfResponseCache.Entry old = cache.put("Q1", 12, null, body("old"));
+        cache.put("Q1", 13, null, body("new"));
+        assertEquals(13, cache.get("Q1").revision());
+        assertEquals("new", read(cache.get("Q1")));
+        try {
+            old.open().close();
+            fail("Expected the old entry to be gone");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void pendingResponseIsCommittedWithItsRevision() throws IOException {
+        RdfResponseCache cache = new RdfResponseCache(folder.getRoot().toPath(), 10);
+        try (RdfResponseCache.Pending pending = cache.write("Q1", "\"etag\"", body("rdf of Q1"))) {
+            assertNull(cache.get("Q1"));
+            try (InputStream in = pending.open()) {
+                assertEquals("rdf of Q1", new String(ByteStreams.toByteArray(in), UTF_8));
+            }
+            pending.commit(12);
+        }
+        assertEquals(12, cache.get("Q1").revision());
+        assertEquals("\"etag\"", cache.get("Q1").etag());
+        assertEquals("rdf of Q1", read(cache.get("Q1")));
+    }
+
+    @Test
+    public void uncommittedResponseIsDropped() throws IOException {
+        RdfResponseCache cache = new RdfResponseCache(folder.getRoot().toPath(), 10);
+        cache.write("Q1", null, body("rdf of Q1")).close();
+        assertNull(cache.get("Q1"));
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws IOException {
+        RdfResponseCache cache = new RdfResponseCache(folder.getRoot().toPath(), 2);
+        cache.put("Q1", 1, null, body("1"));
+        cache.put("Q2", 2, null, body("2"));
+        cache.get("Q1");
+        cache.put("Q3", 3, null, body("3"));
+        assertEquals(2, cache.size());
+        assertNull(cache.get("Q2"));
+        assertEquals("1", read(cache.get("Q1")));
+    }
+
+    @Test
+    public void remove() throws IOException {
+        RdfResponseCache cache = new RdfResponseCache(folder.getRoot().toPath(), 10);
+        cache.put("Q1", 1, null, body("1"));
+        cache.remove("Q1");
+        assertNull(cache.get("Q1"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void reloadsFromDisk() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        new RdfResponseCache(dir, 10).put("Q1", 12, "\"etag\"", body("rdf of Q1"));
+        RdfResponseCache cache = new RdfResponseCache(dir, 10);
+        assertEquals(12, cache.get("Q1").revision());
+        assertEquals("rdf of Q1", read(cache.get("Q1")));
+    }
+
+    @Test
+    public void cacheableIds() {
+        assertTrue(RdfResponseCache.isCacheable("Q1"));
+        assertTrue(RdfResponseCache.isCacheable("L1-F1"));
+        assertFalse(RdfResponseCache.isCacheable("../Q1"));
+        assertFalse(RdfResponseCache.isCacheable(""));
+    }
+
+    @Test
+    public void hitRatio() {
+        RdfResponseCache cache = new RdfResponseCache(folder.getRoot().toPath(), 10);
+        MetricRegistry metrics = new MetricRegistry();
+        cache.registerMetrics(metrics);
+        cache.hit();
+        cache.notModified();
+        cache.miss();
+        cache.miss();
+        Gauge<?> ratio = metrics.getGauges().get("rdf-cache-hit-ratio");
+        assertEquals(0.5, (Double) ratio.getValue(), 0.0001);
+    }
+
+    private InputStream body(String body) {
+        return new ByteArrayInputStream(body.getBytes(UTF_8));
+    }
+
+    private String read(RdfResponseCache.Entry entry) throws IOException {
+        try (InputStream in = entry.open()) {
+            return new String(ByteStreams.toByteArray(in), UTF_8);
+        }
+    }
+}
@@ -2,27 +2,44 @@ package org.wikidata.query.rdf.tool.wikibase;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
 import static com.github.tomakehurst.wiremock.client.WireMock.anyUrl;
+import static com.github.tomakehurst.wiremock.client.WireMock.equalTo;
 import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.getRequestedFor;
 import static com.github.tomakehurst.wiremock.client.WireMock.stubFor;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlPathEqualTo;
+import static com.github.tomakehurst.wiremock.client.WireMock.verify;
 import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+import static com.github.tomakehurst.wiremock.stubbing.Scenario.STARTED;
 import static com.google.common.base.Charsets.UTF_8;
 import static com.google.common.io.Resources.getResource;
+import static com.google.common.util.concurrent.MoreExecutors.directExecutor;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.junit.Assert.fail;
 import static org.wikidata.query.rdf.tool.wikibase.WikibaseRepository.inputDateFormat;
 
 import java.io.IOException;
 import java.text.ParseException;
+import java.util.Collection;
 import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openrdf.model.Statement;
+import org.wikidata.query.rdf.common.uri.WikibaseUris;
+import org.wikidata.query.rdf.tool.exception.ContainedException;
 import org.wikidata.query.rdf.tool.exception.RetryableException;
 
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.google.common.collect.ImmutableList;
 import com.google.common.io.Resources;
 
 public class WikibaseRepositoryWireIntegrationTest {
@@ -30,8 +47,23 @@ public class WikibaseRepositoryWireIntegrationTest {
     @Rule public WireMockRule wireMockRule = new WireMockRule(wireMockConfig()
             .dynamicPort()
             .dynamicHttpsPort());
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
     private WikibaseRepository repository;
 
+    private static final String ENTITY_RDF = "@prefix wd: <http://www.wikidata.org/entity/> .\n"
+            + "@prefix rdfs: <http://www.w3.org/2000/01/rdf-schema#> .\n"
+            + "wd:Q1 rdfs:label \"universe\"@en ;\n"
+            + "    rdfs:label \"univers\"@fr .\n";
+
+    private static final String ENTITY_VERSION_RDF = "@prefix wdata: <https://www.wikidata.org/wiki/Special:EntityData/> .\n"
+            + "@prefix schema: <http://schema.org/> .\n"
+            + "@prefix xsd: <http://www.w3.org/2001/XMLSchema#> .\n"
+            + "wdata:Q1 schema:version \"%d\"^^xsd:integer .\n";
+
+    private static final String OTHER_ENTITY_RDF = "@prefix wd: <http://www.wikidata.org/entity/> .\n"
+            + "@prefix rdfs: <http://www.w3.org/2000/01/rdf-schema#> .\n"
+            + "wd:Q2 rdfs:label \"earth\"@en .\n";
+
 
     @Before
     public void createWikibaseRepository() {
@@ -76,6 +108,183 @@ public class WikibaseRepositoryWireIntegrationTest {
         assertThat(change.getTitle(), is("Q16013051"));
     }
 
+    @Test
+    public void asyncFetchParsesRdf() throws Exception {
+        stubFor(get(anyUrl())
+                .willReturn(aResponse().withBody(ENTITY_RDF)));
+
+        Collection<Statement> statements = repository.fetchRdfForEntityAsync("Q1", directExecutor()).get();
+
+        assertThat(statements, hasSize(2));
+    }
+
+    @Test
+    public void asyncFetchOfMissingEntityIsEmpty() throws Exception {
+        stubFor(get(anyUrl())
+                .willReturn(aResponse().withStatus(404)));
+
+        assertThat(repository.fetchRdfForEntityAsync("Q1", directExecutor()).get(), hasSize(0));
+    }
+
+    @Test
+    public void asyncFetchRetriesWhenBusy() throws Exception {
+        stubFor(get(anyUrl()).inScenario("busy")
+                .whenScenarioStateIs(STARTED)
+                .willReturn(aResponse().withStatus(503))
+                .willSetStateTo("ready"));
+        stubFor(get(anyUrl()).inScenario("busy")
+                .whenScenarioStateIs("ready")
+                .willReturn(aResponse().withBody(ENTITY_RDF)));
+
+        assertThat(repository.fetchRdfForEntityAsync("Q1", directExecutor()).get(), hasSize(2));
+    }
+
+    @Test
+    public void asyncFetchFailsOnServerError() throws Exception {
+        stubFor(get(anyUrl())
+                .willReturn(aResponse().withStatus(500)));
+
+        try {
+            repository.fetchRdfForEntityAsync("Q1", directExecutor()).get();
+            fail("Expected a ContainedException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(ContainedException.class));
+        }
+    }
+
+    @Test
+    public void asyncFetchOfTooLargeRdfIsContained() throws Exception {
+        repository.setMaxRdfSize(ENTITY_RDF.length() - 1);
+        stubFor(get(anyUrl())
+                .willReturn(aResponse().withBody(ENTITY_RDF)));
+        try {
+            repository.fetchRdfForEntityAsync("Q1", directExecutor()).get();
+            fail("Expected a ContainedException");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(ContainedException.class));
+        }
+    }
+
+    @Test
+    public void bulkFetchIsSplitByEntity() throws Exception {
+        stubFor(get(urlPathEqualTo("/wiki/Special:EntityData"))
+                .willReturn(aResponse().withBody(ENTITY_RDF + OTHER_ENTITY_RDF)));
+
+        Map<String, Collection<Statement>> rdf = repository.fetchRdfForEntities(ImmutableList.of("Q1", "Q2", "Q3"),
+                new WikibaseUris("www.wikidata.org"));
+
+        assertThat(rdf.get("Q1"), hasSize(2));
+        assertThat(rdf.get("Q2"), hasSize(1));
+        assertThat(rdf.get("Q3"), hasSize(0));
+        // Only its own fetch can tell an entity missing from the response is deleted
+        verify(1, getRequestedFor(urlPathEqualTo("/wiki/Special:EntityData/Q3.ttl")));
+    }
+
+    @Test
+    public void bulkFetchNotFoundFallsBackToSingleFetches() throws Exception {
+        stubFor(get(urlPathEqualTo("/wiki/Special:EntityData"))
+                .willReturn(aResponse().withBody(ENTITY_RDF + OTHER_ENTITY_RDF)));
+        repository.fetchRdfForEntities(ImmutableList.of("Q1", "Q2"), new WikibaseUris("www.wikidata.org"));
+
+        stubFor(get(urlPathEqualTo("/wiki/Special:EntityData"))
+                .willReturn(aResponse().withStatus(404)));
+        stubFor(get(urlPathEqualTo("/wiki/Special:EntityData/Q1.ttl"))
+                .willReturn(aResponse().withBody(ENTITY_RDF)));
+        stubFor(get(urlPathEqualTo("/wiki/Special:EntityData/Q2.ttl"))
+                .willReturn(aResponse().withBody(OTHER_ENTITY_RDF)));
+        Map<String, Collection<Statement>> rdf = repository.fetchRdfForEntities(ImmutableList.of("Q1", "Q2"),
+                new WikibaseUris("www.wikidata.org"));
+        assertThat(rdf.get("Q1"), hasSize(2));
+        assertThat(rdf.get("Q2"), hasSize(1));
+
+        // A refusal after the probe succeeded doesn't turn bulk fetches off
+        stubFor(get(urlPathEqualTo("/wiki/Special:EntityData"))
+                .willReturn(aResponse().withBody(ENTITY_RDF + OTHER_ENTITY_RDF)));
+        repository.fetchRdfForEntities(ImmutableList.of("Q1", "Q2"), new WikibaseUris("www.wikidata.org"));
+        verify(3, getRequestedFor(urlPathEqualTo("/wiki/Special:EntityData")));
+    }
+
+    @Test
+    public void bulkFetchProbeNeedsSeveralEntities() throws Exception {
+        // Looks like wikibase only understood one of the ids
+        stubFor(get(urlPathEqualTo("/wiki/Special:EntityData"))
+                .willReturn(aResponse().withBody(ENTITY_RDF)));
+        stubFor(get(urlPathEqualTo("/wiki/Special:EntityData/Q1.ttl"))
+                .willReturn(aResponse().withBody(ENTITY_RDF)));
+        stubFor(get(urlPathEqualTo("/wiki/Special:EntityData/Q2.ttl"))
+                .willReturn(aResponse().withBody(OTHER_ENTITY_RDF)));
+
+        Map<String, Collection<Statement>> rdf = repository.fetchRdfForEntities(ImmutableList.of("Q1", "Q2"),
+                new WikibaseUris("www.wikidata.org"));
+        assertThat(rdf.get("Q1"), hasSize(2));
+        assertThat(rdf.get("Q2"), hasSize(1));
+        repository.fetchRdfForEntities(ImmutableList.of("Q1", "Q2"), new WikibaseUris("www.wikidata.org"));
+        verify(1, getRequestedFor(urlPathEqualTo("/wiki/Special:EntityData")));
+    }
+
+    @Test
+    public void bulkFetchFallsBackToSingleFetches() throws Exception {
+        stubFor(get(urlPathEqualTo("/wiki/Special:EntityData"))
+                .willReturn(aResponse().withStatus(400)));
+        stubFor(get(urlPathEqualTo("/wiki/Special:EntityData/Q1.ttl"))
+                .willReturn(aResponse().withBody(ENTITY_RDF)));
+        stubFor(get(urlPathEqualTo("/wiki/Special:EntityData/Q2.ttl"))
+                .willReturn(aResponse().withBody(OTHER_ENTITY_RDF)));
+
+        Map<String, Collection<Statement>> rdf = repository.fetchRdfForEntities(ImmutableList.of("Q1", "Q2"),
+                new WikibaseUris("www.wikidata.org"));
+
+        assertThat(rdf.get("Q1"), hasSize(2));
+        assertThat(rdf.get("Q2"), hasSize(1));
+    }
+
+    @Test
+    public void cachedRevisionIsNotRefetched() throws Exception {
+        repository.setResponseCache(new RdfResponseCache(folder.getRoot().toPath(), 10));
+        stubFor(get(anyUrl())
+                .willReturn(aResponse().withBody(ENTITY_RDF + String.format(Locale.ROOT, ENTITY_VERSION_RDF, 12))));
+
+        assertThat(repository.fetchRdfForEntity("Q1", 12), hasSize(3));
+        assertThat(repository.fetchRdfForEntity("Q1", 12), hasSize(3));
+        assertThat(repository.fetchRdfForEntityAsync("Q1", 12, directExecutor()).get(), hasSize(3));
+
+        verify(1, getRequestedFor(anyUrl()));
+    }
+
+    @Test
+    public void staleResponseIsNotCachedAsRequestedRevision() throws Exception {
+        repository.setResponseCache(new RdfResponseCache(folder.getRoot().toPath(), 10));
+        // Wikibase lags behind and still serves revision 11
+        stubFor(get(anyUrl())
+                .willReturn(aResponse().withBody(ENTITY_RDF + String.format(Locale.ROOT, ENTITY_VERSION_RDF, 11))));
+
+        repository.fetchRdfForEntity("Q1", 12);
+        repository.fetchRdfForEntityAsync("Q1", 12, directExecutor()).get();
+        verify(2, getRequestedFor(anyUrl()));
+
+        // Once wikibase catches up the cache is repaired
+        stubFor(get(anyUrl())
+                .willReturn(aResponse().withBody(ENTITY_RDF + String.format(Locale.ROOT, ENTITY_VERSION_RDF, 12))));
+        repository.fetchRdfForEntity("Q1", 12);
+        repository.fetchRdfForEntity("Q1", 12);
+        verify(3, getRequestedFor(anyUrl()));
+    }
+
+    @Test
+    public void otherRevisionIsFetchedConditionally() throws Exception {
+        repository.setResponseCache(new RdfResponseCache(folder.getRoot().toPath(), 10));
+        stubFor(get(anyUrl())
+                .willReturn(aResponse().withHeader("ETag", "\"abc\"").withBody(ENTITY_RDF)));
+        stubFor(get(anyUrl()).withHeader("If-None-Match", equalTo("\"abc\""))
+                .willReturn(aResponse().withStatus(304)));
+
+        assertThat(repository.fetchRdfForEntity("Q1", 12), hasSize(2));
+        assertThat(repository.fetchRdfForEntity("Q1", 13), hasSize(2));
+        assertThat(repository.fetchRdfForEntityAsync("Q1", 14, directExecutor()).get(), hasSize(2));
+
+        verify(2, getRequestedFor(anyUrl()).withHeader("If-None-Match", equalTo("\"abc\"")));
+    }
+
     private String load(String name) throws IOException {
         String prefix = this.getClass().getPackage().getName().replace(".", "/");
         return Resources.toString(getResource(prefix + "/" + name), UTF_8);